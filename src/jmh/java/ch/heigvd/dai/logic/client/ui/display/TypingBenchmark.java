@@ -0,0 +1,69 @@
+package ch.heigvd.dai.logic.client.ui.display;
+
+import ch.heigvd.dai.logic.client.TypingModel;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Client side of a race: the progress update done on every keystroke and the layout of the race
+ * text, computed when the race starts and on every resize.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TypingBenchmark {
+  private static final String WORDS =
+      "cats are popular pets, known for independence and playfulness. they groom themselves and"
+          + " bond with owners. ";
+
+  @Param({"100", "1000", "10000"})
+  public int textLength;
+
+  @Param({"80"})
+  public int width;
+
+  private String text;
+  private TypingModel model;
+
+  @Setup
+  public void setup() {
+    text = WORDS.repeat(textLength / WORDS.length() + 1).substring(0, textLength);
+    model = new TypingModel(text);
+  }
+
+  /** One keystroke and the progress computed after it, as done by the race display. */
+  @Benchmark
+  public int keystroke() {
+    if (!model.type('x')) {
+      model = new TypingModel(text);
+    }
+    return model.getProgress();
+  }
+
+  /** A keystroke followed by its correction. */
+  @Benchmark
+  public int keystrokeAndBackspace() {
+    model.type('x');
+    model.backspace();
+    return model.getProgress();
+  }
+
+  @Benchmark
+  public void layout(Blackhole bh) {
+    bh.consume(new TextLayout(text, width));
+  }
+}
@@ -0,0 +1,80 @@
+package ch.heigvd.dai.logic.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building and encoding the ALL_USERS_PROGRESS payload of a room, as done on every broadcast tick.
+ * Keyframes list every player, deltas only the tenth of the players whose progress changed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProgressFrameBenchmark {
+  /** Size of the largest packet, a full set of fragments. */
+  private static final int LARGE_PACKET_SIZE = 64 * 1024;
+
+  @Param({"10", "100", "1000", "10000"})
+  public int numPlayers;
+
+  private final PlayerTable players = new PlayerTable();
+  private final ServerState state = new ServerState(0, players);
+  private final ProgressFrame frame = new ProgressFrame();
+  private final ByteBuffer buffer = ByteBuffer.allocate(LARGE_PACKET_SIZE);
+  private int round = 0;
+
+  @Setup
+  public void setup() {
+    for (int i = 0; i < numPlayers; ++i) {
+      int id = players.allocate("player" + i);
+      state.registerClient(id, true);
+      state.setInGame(id, true);
+      state.setPlayerProgress(id, i % 100);
+    }
+  }
+
+  @Benchmark
+  public int keyframeBinary() {
+    frame.forceKeyframe();
+    frame.build(state, 0);
+    buffer.clear();
+    return frame.putBinary(buffer, 0);
+  }
+
+  @Benchmark
+  public int keyframeText() {
+    frame.forceKeyframe();
+    frame.build(state, 0);
+    StringBuilder sb = new StringBuilder("ALL_USERS_PROGRESS");
+    frame.appendText(sb, 0, ServerProtocol.BUFFER_SIZE);
+    return sb.length();
+  }
+
+  @Benchmark
+  public int deltaBinary() {
+    round++;
+    for (int i = round % 10; i < numPlayers; i += 10) {
+      players.setProgress(i, (players.getProgress(i) + 1) % 100);
+    }
+    // The clock doesn't move, so no keyframe is due and only the changes are listed
+    frame.build(state, 0);
+    buffer.clear();
+    int count = frame.putBinary(buffer, 0);
+    frame.markSent(count);
+    return count;
+  }
+}
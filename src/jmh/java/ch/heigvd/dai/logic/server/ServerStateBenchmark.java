@@ -0,0 +1,77 @@
+package ch.heigvd.dai.logic.server;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lookups of players by ID in the state of a room and the ready check done on every USER_READY. The
+ * grouped benchmark runs the ready check while another thread keeps marking players as ready, as
+ * happens in a full lobby.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ServerStateBenchmark {
+  @Param({"10", "100", "1000"})
+  public int numPlayers;
+
+  private final ServerState state = new ServerState(0, new PlayerTable());
+
+  @Setup
+  public void setup() {
+    for (int i = 0; i < numPlayers; ++i) {
+      int id = state.getPlayers().allocate("player" + i);
+      state.registerClient(id, true);
+      state.setUserReady(id);
+    }
+  }
+
+  private int randomId() {
+    return ThreadLocalRandom.current().nextInt(numPlayers);
+  }
+
+  @Benchmark
+  public String getUsername() {
+    return state.getPlayers().getUsername(randomId());
+  }
+
+  @Benchmark
+  public boolean isMember() {
+    return state.isMember(randomId());
+  }
+
+  @Benchmark
+  public boolean areAllUsersReady() {
+    return state.areAllUsersReady();
+  }
+
+  @Benchmark
+  @Group("contended")
+  @GroupThreads(3)
+  public boolean contendedAreAllUsersReady() {
+    return state.areAllUsersReady();
+  }
+
+  @Benchmark
+  @Group("contended")
+  @GroupThreads(1)
+  public void contendedSetUserReady() {
+    state.setUserReady(randomId());
+  }
+}
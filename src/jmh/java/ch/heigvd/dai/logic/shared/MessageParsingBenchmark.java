@@ -0,0 +1,67 @@
+package ch.heigvd.dai.logic.shared;
+
+import ch.heigvd.dai.commands.Client;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing of a USER_PROGRESS message, the most frequent message received by the server. Splitting
+ * the decoded string with {@link Message#getParts()} is compared with the tokenizer used by the
+ * server, which matches the command and the username from the bytes of the datagram.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageParsingBenchmark {
+  private static final String MESSAGE = "USER_PROGRESS alice 42";
+  private static final CommandNames<Client.Command> COMMANDS =
+      new CommandNames<>(Client.Command.values());
+
+  private final Tokenizer tokenizer = new Tokenizer();
+  private final InternTable usernames = new InternTable();
+  private ByteBuffer buffer;
+  private InetAddress address;
+
+  @Setup
+  public void setup() {
+    buffer = ByteBuffer.wrap(MESSAGE.getBytes(StandardCharsets.UTF_8));
+    address = InetAddress.getLoopbackAddress();
+    usernames.intern("alice");
+  }
+
+  @Benchmark
+  public void splitParts(Blackhole bh) {
+    String str = new String(buffer.array(), 0, buffer.limit(), StandardCharsets.UTF_8);
+    String[] parts = new Message(str, address, 4445).getParts();
+    bh.consume(Client.Command.valueOf(parts[0]));
+    bh.consume(parts[1]);
+    bh.consume(Integer.parseInt(parts[2]));
+  }
+
+  @Benchmark
+  public void tokenize(Blackhole bh) {
+    tokenizer.reset(buffer);
+    tokenizer.next();
+    bh.consume(COMMANDS.match(tokenizer));
+    tokenizer.next();
+    bh.consume(tokenizer.tokenInterned(usernames));
+    tokenizer.next();
+    bh.consume(tokenizer.tokenInt());
+  }
+}
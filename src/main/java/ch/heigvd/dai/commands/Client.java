@@ -2,15 +2,28 @@ package ch.heigvd.dai.commands;
 
 import ch.heigvd.dai.logic.client.ClientProtocol;
 import ch.heigvd.dai.logic.client.ClientState;
+import ch.heigvd.dai.logic.client.ControlSequencer;
+import ch.heigvd.dai.logic.client.ProgressReporter;
+import ch.heigvd.dai.logic.client.TextCache;
 import ch.heigvd.dai.logic.client.ui.TerminalUI;
 import ch.heigvd.dai.logic.client.ui.event.UIEvent;
 import ch.heigvd.dai.logic.shared.BaseState;
-import ch.heigvd.dai.logic.shared.Message;
+import ch.heigvd.dai.logic.shared.BinaryCodec;
+import ch.heigvd.dai.logic.shared.CommandNames;
 import ch.heigvd.dai.logic.shared.Player;
+import ch.heigvd.dai.logic.shared.Tokenizer;
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.Scanner;
 import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 import picocli.CommandLine;
 
@@ -42,24 +55,76 @@ public class Client implements Callable<Integer> {
       defaultValue = "4446")
   protected int serverMulticastPort;
 
+  @CommandLine.Option(
+      names = {"-r", "--room"},
+      description = "Room to join on the server (default: ${DEFAULT-VALUE}).",
+      defaultValue = "0")
+  protected int room;
+
   @CommandLine.Option(
       names = {"-I", "--network-interface"},
       description = "Network interface to use",
       required = true)
   protected String networkInterface;
 
+  @CommandLine.Option(
+      names = {"--protocol-version"},
+      description =
+          "Protocol version to ask the server for, 1 for text and 5 for binary (default: ${DEFAULT-VALUE}).",
+      defaultValue = "5")
+  protected int protocolVersion;
+
+  @CommandLine.Option(
+      names = {"--progress-interval"},
+      description =
+          "Minimum interval in milliseconds between two progress updates sent to the server (default: ${DEFAULT-VALUE}).",
+      defaultValue = "200")
+  protected long progressInterval;
+
+  @CommandLine.Option(
+      names = {"--text-cache"},
+      description =
+          "Directory caching the texts of the races fetched from the server (default: ${DEFAULT-VALUE}).",
+      defaultValue = "${sys:user.home}/.cache/fastpaws/texts")
+  protected Path textCacheDirectory;
+
   public enum Command {
     USER_JOIN,
     USER_READY,
     USER_PROGRESS,
     USER_QUIT,
+    TEXT_REQUEST,
+    HEARTBEAT,
+    CONTROL_ACK,
+    CONTROL_NACK;
+
+    private static final Command[] VALUES = values();
+
+    public static Command fromOpcode(byte opcode) {
+      int ordinal = BinaryCodec.ordinal(opcode);
+      return ordinal < VALUES.length ? VALUES[ordinal] : null;
+    }
   }
 
   private static final Logger LOGGER = Logger.getLogger(Client.class.getName());
+  private static final long CONTROL_GAP_TIMEOUT_MS = 5000;
+  private static final int CONTROL_GAP_CHECK_MS = 1000; // Without multicast messages
+  private static final int TEXT_FETCH_ATTEMPTS = 3;
+  private static final long TEXT_FETCH_RETRY_MS = 1000;
+  private static final UIEvent STATE_UPDATED = new UIEvent(UIEvent.EventType.STATE_UPDATED, null);
+  private static final CommandNames<Server.Command> SERVER_COMMANDS =
+      new CommandNames<>(Server.Command.values());
 
   private final Scanner scanner = new Scanner(System.in);
+  private final Tokenizer tokenizer = new Tokenizer();
+  private final ScheduledExecutorService gameStarts =
+      Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("game-start").factory());
+  private ScheduledFuture<?> pendingStart;
   private ClientProtocol network;
+  private ProgressReporter progressReporter;
   private ClientState state;
+  private TextCache textCache;
+  private ControlSequencer controlSequencer;
 
   @Override
   public Integer call() {
@@ -69,8 +134,9 @@ public class Client implements Callable<Integer> {
               serverHost,
               serverPort,
               serverMulticastAddress,
-              serverMulticastPort,
+              serverMulticastPort + room,
               networkInterface);
+      textCache = new TextCache(textCacheDirectory);
       connectToGame();
       startGameUI();
     } catch (Exception e) {
@@ -100,16 +166,22 @@ public class Client implements Callable<Integer> {
         continue;
       }
 
-      Message res = network.sendWithResponseUnicast(Command.USER_JOIN, username);
-      Server.Command command = Server.Command.fromString(res.getParts()[0]);
+      ByteBuffer res = network.sendWithResponseUnicast(Command.USER_JOIN, joinArguments(username));
+      if (BinaryCodec.isBinary(res)) {
+        success = handleBinaryJoinResponse(username, res);
+        continue;
+      }
+
+      String[] parts = StandardCharsets.UTF_8.decode(res).toString().split(" ");
+      Server.Command command = Server.Command.fromString(parts[0]);
 
       switch (command) {
         case OK:
-          handleSuccessfulJoin(username, res.getParts());
+          handleSuccessfulJoin(username, parts);
           success = true;
           break;
         case USER_JOIN_ERR:
-          handleJoinError(res.getParts());
+          handleJoinError(parts);
           break;
         case null:
         default:
@@ -120,6 +192,53 @@ public class Client implements Callable<Integer> {
     Runtime.getRuntime().addShutdownHook(new Thread(this::quit));
   }
 
+  /**
+   * Build the arguments of the USER_JOIN command. The room and the protocol version are only sent
+   * when needed, so that the default settings work with older servers.
+   *
+   * @param username the username of the player
+   * @return the arguments of the command
+   */
+  private String joinArguments(String username) {
+    if (protocolVersion > BinaryCodec.TEXT_VERSION) {
+      return username + " " + room + " " + protocolVersion;
+    }
+    return room == 0 ? username : username + " " + room;
+  }
+
+  /**
+   * Handle a binary response to a join request: the negotiated version, the ID of the player and
+   * the list of existing players with their ID and state.
+   *
+   * @param username the username of the player
+   * @param res the response frame
+   * @return true if the player joined, false otherwise
+   */
+  private boolean handleBinaryJoinResponse(String username, ByteBuffer res) {
+    Server.Command command = Server.Command.fromOpcode(res.get());
+    if (command != Server.Command.OK) {
+      LOGGER.severe("Unknown message");
+      return false;
+    }
+    int version = res.get();
+    int selfId = BinaryCodec.getVarint(res);
+    handleSuccessfulJoin(username, new String[0]);
+    network.setSession(username, version, selfId);
+    state.setPlayerId(selfId, username);
+
+    int numPlayers = BinaryCodec.getVarint(res);
+    for (int i = 0; i < numPlayers; ++i) {
+      int id = BinaryCodec.getVarint(res);
+      String player = BinaryCodec.getString(res);
+      state.setPlayerId(id, player);
+      addExistingPlayer(player, Server.CommandPlayerState.fromOrdinal(res.get()));
+    }
+    if (version >= BinaryCodec.RELIABLE_VERSION) {
+      controlSequencer = new ControlSequencer(res.getInt(), CONTROL_GAP_TIMEOUT_MS);
+    }
+    return true;
+  }
+
   /**
    * Start the game UI and listen to multicast messages from the server.
    *
@@ -127,9 +246,11 @@ public class Client implements Callable<Integer> {
    * @throws InterruptedException if the UI is interrupted
    */
   private void startGameUI() throws IOException, InterruptedException {
-    TerminalUI ui = new TerminalUI(state, network);
+    progressReporter = new ProgressReporter(network, progressInterval);
+    TerminalUI ui = new TerminalUI(state, network, progressReporter);
     ui.start();
-    network.listenToMulticast(this::handleMulticastMessage); // Blocking until the socket is closed
+    // Blocking until the socket is closed
+    network.listenToMulticast(this::handleMulticastPacket, CONTROL_GAP_CHECK_MS, this::expireGap);
     ui.end();
     ui.join();
   }
@@ -144,25 +265,39 @@ public class Client implements Callable<Integer> {
     LOGGER.info("Successfully joined the server!");
     state = new ClientState(username);
     state.setGameState(BaseState.GameState.WAITING);
+    network.setSession(username, BinaryCodec.TEXT_VERSION, -1);
 
     // Add existing users to state
     for (int i = 1; i + 1 < parts.length; i += 2) {
       String player = parts[i];
       String status = parts[i + 1];
       if (!player.isEmpty()) {
-        state.addPlayer(player);
         Server.CommandPlayerState playerState = Server.CommandPlayerState.fromString(status);
         if (playerState == null) {
           throw new RuntimeException("Unknown player state: " + status);
         }
-        switch (playerState) {
-          case READY -> state.setPlayerReady(player);
-          case IN_GAME -> state.getPlayers().get(player).setInGame(true);
-        }
+        addExistingPlayer(player, playerState);
       }
     }
   }
 
+  /**
+   * Add a player that was already connected when joining.
+   *
+   * @param player the username of the player
+   * @param playerState the state of the player
+   */
+  private void addExistingPlayer(String player, Server.CommandPlayerState playerState) {
+    if (playerState == null) {
+      throw new RuntimeException("Unknown state for player: " + player);
+    }
+    state.addPlayer(player);
+    switch (playerState) {
+      case READY -> state.setPlayerReady(player);
+      case IN_GAME -> state.getPlayers().get(player).setInGame(true);
+    }
+  }
+
   /**
    * Handle a join error from the server.
    *
@@ -177,7 +312,11 @@ public class Client implements Callable<Integer> {
   /** Send a USER_QUIT command to the server to signal the end of the game. */
   private void quit() {
     try {
-      network.sendUnicast(Command.USER_QUIT, state.getSelfUsername());
+      if (progressReporter != null) {
+        progressReporter.close();
+      }
+      network.sendQuit();
+      network.closeUnicast();
     } catch (IOException e) {
       // Note: We ignore the exception as this is called through an exit signal
       LOGGER.severe("Failed to disconnect from server");
@@ -185,32 +324,218 @@ public class Client implements Callable<Integer> {
   }
 
   /**
-   * Handle a multicast message from the server.
+   * Handle a multicast packet from the server. When both protocols are used in a room, the server
+   * sends every message in both forms, so only the frames of the negotiated protocol are handled.
+   *
+   * @param packet the packet to handle
+   */
+  private void handleMulticastPacket(ByteBuffer packet) {
+    boolean binary = BinaryCodec.isBinary(packet);
+    if (binary != network.isBinary()) {
+      return;
+    }
+    if (binary) {
+      handleBinaryMulticastMessage(packet);
+    } else {
+      handleMulticastMessage(packet);
+    }
+    state.fireUIEvent(STATE_UPDATED);
+  }
+
+  /**
+   * Handle a binary multicast message from the server. Control frames go through the control
+   * sequencer when the server sends them reliably, and are acknowledged. Any other frame is a
+   * chance to give up on missing control frames that never came.
+   *
+   * @param frame the frame to handle
+   */
+  private void handleBinaryMulticastMessage(ByteBuffer frame) {
+    Server.Command command = Server.Command.fromOpcode(frame.get(frame.position()));
+    boolean control =
+        command == Server.Command.START_GAME
+            || command == Server.Command.END_GAME
+            || command == Server.Command.DEL_USER;
+    if (!control || controlSequencer == null || frame.remaining() < Integer.BYTES + 1) {
+      handleBinaryFrame(frame);
+      expireGap();
+      return;
+    }
+    int sequence = frame.getInt(frame.limit() - Integer.BYTES);
+    controlSequencer.accept(sequence, frame, System.currentTimeMillis(), this::handleBinaryFrame);
+    try {
+      controlSequencer.forEachMissing(this::requestControlFrame);
+      network.sendControlAck(controlSequencer.getLastHandled());
+    } catch (IOException e) {
+      LOGGER.warning("Failed to acknowledge control frame " + sequence);
+    }
+  }
+
+  /**
+   * Handle the control frames that waited too long for missing ones, and acknowledge them. Called
+   * on the thread receiving the multicast messages, also when none arrived for a while, so that a
+   * frame such as END_GAME is not held forever behind a frame that never comes.
+   */
+  private void expireGap() {
+    if (controlSequencer == null) {
+      return;
+    }
+    int previous = controlSequencer.getLastHandled();
+    controlSequencer.expire(System.currentTimeMillis(), this::handleBinaryFrame);
+    int lastHandled = controlSequencer.getLastHandled();
+    if (lastHandled == previous) {
+      return;
+    }
+    state.fireUIEvent(STATE_UPDATED);
+    try {
+      network.sendControlAck(lastHandled);
+    } catch (IOException e) {
+      LOGGER.warning("Failed to acknowledge control frame " + lastHandled);
+    }
+  }
+
+  /**
+   * Ask the server for a missing control frame.
+   *
+   * @param sequence the sequence number of the frame
+   */
+  private void requestControlFrame(int sequence) {
+    try {
+      network.sendControlNack(sequence);
+    } catch (IOException e) {
+      LOGGER.warning("Failed to ask for control frame " + sequence);
+    }
+  }
+
+  /**
+   * Handle a binary frame from the server, in order.
+   *
+   * @param frame the frame to handle
+   */
+  private void handleBinaryFrame(ByteBuffer frame) {
+    try {
+      Server.Command command = Server.Command.fromOpcode(frame.get());
+      if (command == null) {
+        LOGGER.warning("Received unknown binary command");
+        return;
+      }
+      switch (command) {
+        case NEW_USER -> {
+          int id = BinaryCodec.getVarint(frame);
+          String username = BinaryCodec.getString(frame);
+          state.setPlayerId(id, username);
+          handleUserJoin(username);
+        }
+        case USER_READY -> {
+          String username = state.getUsername(BinaryCodec.getVarint(frame));
+          if (username != null) handleUserReady(username);
+        }
+        case START_GAME -> {
+          int delayMs = BinaryCodec.getVarint(frame);
+          int textId = BinaryCodec.getVarint(frame);
+          long hash = frame.getLong();
+          int length = BinaryCodec.getVarint(frame);
+          prepareStartGame(textId, hash, length, System.currentTimeMillis() + delayMs);
+        }
+        case ALL_USERS_PROGRESS -> handleBinaryUsersProgress(frame);
+        case END_GAME -> {
+          int winnerId = BinaryCodec.getVarint(frame);
+          if (winnerId == BinaryCodec.NO_WINNER) {
+            handleCancelGame();
+            return;
+          }
+          String username = state.getUsername(winnerId);
+          if (username != null) handleEndGame(username);
+        }
+        case DEL_USER -> {
+          int id = BinaryCodec.getVarint(frame);
+          String username = state.getUsername(id);
+          if (username != null) {
+            handleUserDelete(username);
+            state.removePlayerId(id);
+          }
+        }
+        case ERROR -> LOGGER.warning("Error: " + BinaryCodec.getRest(frame));
+        default -> LOGGER.warning("Unhandled binary multicast message: " + command);
+      }
+    } catch (BufferUnderflowException | IllegalArgumentException e) {
+      LOGGER.warning("Received malformed binary message");
+    }
+  }
+
+  /**
+   * Handle a binary progress frame. Frames only carry the players whose progress changed, so they
+   * are applied on top of the current progress. Frames older than the last applied one are dropped,
+   * except keyframes which carry the progress of every player.
+   *
+   * @param frame the frame to handle, positioned after the opcode
+   */
+  private void handleBinaryUsersProgress(ByteBuffer frame) {
+    int sequence = BinaryCodec.getVarint(frame);
+    boolean keyframe = frame.get() != 0;
+    if (!state.acceptProgressSequence(sequence, keyframe)) {
+      return;
+    }
+    int count = frame.getShort() & 0xFFFF;
+    for (int i = 0; i < count; ++i) {
+      String username = state.getUsername(BinaryCodec.getVarint(frame));
+      int progress = frame.get();
+      if (username != null && state.playerExists(username)) {
+        state.setPlayerProgress(username, progress);
+      }
+    }
+  }
+
+  /**
+   * Handle a text multicast message from the server. The message is tokenized in place, and the
+   * usernames of known players are looked up without decoding them.
    *
    * @param message the message to handle
    */
-  private void handleMulticastMessage(String message) {
-    String[] parts = message.split("\\s+");
-    LOGGER.info("Received message: " + message);
+  private void handleMulticastMessage(ByteBuffer message) {
+    LOGGER.info(() -> "Received message: " + StandardCharsets.UTF_8.decode(message.duplicate()));
 
-    Server.Command command = Server.Command.fromString(parts[0]);
+    Tokenizer tokenizer = this.tokenizer.reset(message);
+    Server.Command command = tokenizer.next() ? SERVER_COMMANDS.match(tokenizer) : null;
     if (command == null) {
-      LOGGER.warning("Received unknown command: " + message);
+      LOGGER.warning("Received unknown command: " + tokenizer.tokenString());
       return;
     }
 
     switch (command) {
-      case NEW_USER -> handleUserJoin(parts[1]);
-      case USER_READY -> handleUserReady(parts[1]);
-      case START_GAME -> handleStartGame(message.split("\\s+", 2)[1]);
-      case ALL_USERS_PROGRESS -> handleUpdateUsersProgress(parts);
-      case END_GAME -> handleEndGame(parts[1]);
-      case DEL_USER -> handleUserDelete(parts[1]);
-      case ERROR -> LOGGER.warning("Error: " + message.split("\\s+", 2)[1]);
-      default -> LOGGER.warning("Unhandled multicast message: " + message);
+      case NEW_USER, USER_READY, END_GAME, DEL_USER -> {
+        String username = nextUsername(tokenizer);
+        if (username == null) {
+          LOGGER.warning("Missing username in " + command);
+          return;
+        }
+        switch (command) {
+          case NEW_USER -> handleUserJoin(username);
+          case USER_READY -> handleUserReady(username);
+          case END_GAME -> handleEndGame(username);
+          default -> handleUserDelete(username);
+        }
+      }
+      case START_GAME -> handleStartGame(tokenizer.rest());
+      case ALL_USERS_PROGRESS -> handleUpdateUsersProgress(tokenizer);
+      case ERROR -> LOGGER.warning("Error: " + tokenizer.rest());
+      default -> LOGGER.warning("Unhandled multicast message: " + command);
     }
   }
 
+  /**
+   * Read the next token as a username. Known usernames are returned without allocating.
+   *
+   * @param tokenizer the tokenizer to read from
+   * @return the username or null if there is no next token
+   */
+  private String nextUsername(Tokenizer tokenizer) {
+    if (!tokenizer.next()) {
+      return null;
+    }
+    String username = state.findPlayer(tokenizer);
+    return username != null ? username : tokenizer.tokenString();
+  }
+
   /**
    * Handle a new user joining the server.
    *
@@ -237,12 +562,117 @@ public class Client implements Callable<Integer> {
     state.setPlayerReady(username);
   }
 
+  /**
+   * Handle a binary start game command, sent by the server when the countdown begins. The text of
+   * the game is read from the cache, or fetched from the server during the countdown, on another
+   * thread so that the multicast messages are not blocked. A failed fetch is tried again while the
+   * game isn't cancelled, and the race starts late if the text arrives after the countdown.
+   *
+   * @param textId the ID of the text on the server
+   * @param hash the hash of the text
+   * @param length the length of the text in bytes
+   * @param startTime the time at which the game starts, in milliseconds
+   */
+  private void prepareStartGame(int textId, long hash, int length, long startTime) {
+    synchronized (this) {
+      state.setGameStartTime(startTime);
+    }
+    Thread.ofVirtual()
+        .name("text-fetch")
+        .start(
+            () -> {
+              String text = textCache.get(hash);
+              if (text == null) {
+                text = fetchText(textId, hash, length, startTime);
+              }
+              if (text != null) {
+                scheduleStartGame(text, startTime);
+              }
+            });
+  }
+
+  /**
+   * Fetch the text of a game from the server, and keep it in the cache.
+   *
+   * @param textId the ID of the text on the server
+   * @param hash the hash of the text
+   * @param length the length of the text in bytes
+   * @param startTime the time at which the game starts, in milliseconds
+   * @return the text, or null if it couldn't be fetched or the game was cancelled
+   */
+  private String fetchText(int textId, long hash, int length, long startTime) {
+    for (int attempt = 1; ; ++attempt) {
+      try {
+        String text = network.fetchText(textId, hash, length);
+        textCache.put(hash, text);
+        return text;
+      } catch (IOException e) {
+        if (attempt == TEXT_FETCH_ATTEMPTS) {
+          LOGGER.severe("Could not fetch the text of the game: " + e.getMessage());
+          return null;
+        }
+      }
+      try {
+        Thread.sleep(TEXT_FETCH_RETRY_MS);
+      } catch (InterruptedException e) {
+        return null;
+      }
+      synchronized (this) {
+        if (state.getGameStartTime() != startTime) {
+          return null;
+        }
+      }
+    }
+  }
+
+  /**
+   * Start the game once its countdown is over, unless it was cancelled in the meantime.
+   *
+   * @param text the text of the game
+   * @param startTime the time at which the game starts, in milliseconds
+   */
+  private synchronized void scheduleStartGame(String text, long startTime) {
+    if (state.getGameStartTime() != startTime) {
+      return;
+    }
+    long delayMs = Math.max(0, startTime - System.currentTimeMillis());
+    pendingStart =
+        gameStarts.schedule(
+            () -> startScheduledGame(text, startTime), delayMs, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Start a game whose countdown is over, unless it was cancelled just before.
+   *
+   * @param text the text of the game
+   * @param startTime the time at which the game starts, in milliseconds
+   */
+  private synchronized void startScheduledGame(String text, long startTime) {
+    pendingStart = null;
+    if (state.getGameStartTime() == startTime) {
+      handleStartGame(text);
+    }
+  }
+
+  /**
+   * Handle the cancellation of a game during its countdown, sent by the server as an END_GAME
+   * without a winner when too many players left. The players stay ready.
+   */
+  private synchronized void handleCancelGame() {
+    state.setGameStartTime(-1);
+    if (pendingStart != null) {
+      pendingStart.cancel(false);
+      pendingStart = null;
+    }
+  }
+
   /**
    * Handle a start game command from the server.
    *
    * @param text the text of the game
    */
   private void handleStartGame(String text) {
+    state.setGameStartTime(-1);
     state.setGameState(BaseState.GameState.RUNNING);
     for (Player player : state.getPlayers().values()) {
       player.setInGame(true);
@@ -251,13 +681,20 @@ public class Client implements Callable<Integer> {
   }
 
   /**
-   * Handle a user progress update from the server.
+   * Handle a user progress update from the server. Unknown players are ignored.
    *
-   * @param message the message to handle
+   * @param tokenizer the tokenizer over the pairs of username and progress
    */
-  private void handleUpdateUsersProgress(String[] message) {
-    for (int i = 1; i + 1 < message.length; i += 2) {
-      state.setPlayerProgress(message[i], Integer.parseInt(message[i + 1]));
+  private void handleUpdateUsersProgress(Tokenizer tokenizer) {
+    while (tokenizer.next()) {
+      String username = state.findPlayer(tokenizer);
+      if (!tokenizer.next()) {
+        break;
+      }
+      int progress = tokenizer.tokenInt();
+      if (username != null && progress >= 0) {
+        state.setPlayerProgress(username, progress);
+      }
     }
   }
 
@@ -276,6 +713,10 @@ public class Client implements Callable<Integer> {
    * @param winner the username of the winner
    */
   private void handleEndGame(String winner) {
+    synchronized (this) {
+      // A text still being fetched is for a game that is over
+      state.setGameStartTime(-1);
+    }
     if (state.getSelf().isInGame()) {
       state.setEndGameWinner(winner);
     }
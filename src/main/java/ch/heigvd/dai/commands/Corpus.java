@@ -0,0 +1,42 @@
+package ch.heigvd.dai.commands;
+
+import ch.heigvd.dai.logic.server.TextCorpus;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.Callable;
+import java.util.function.UnaryOperator;
+import java.util.logging.Logger;
+import picocli.CommandLine;
+
+@CommandLine.Command(
+    name = "corpus",
+    description = "Build a corpus file of race texts for the server from a text file")
+public class Corpus implements Callable<Integer> {
+  @CommandLine.ParentCommand private Root parent;
+
+  @CommandLine.Parameters(index = "0", description = "Text file holding one race text per line.")
+  protected Path source;
+
+  @CommandLine.Parameters(index = "1", description = "Corpus file to write.")
+  protected Path target;
+
+  @CommandLine.Option(
+      names = {"--keep-case"},
+      description = "Keep the case of the texts instead of lowercasing them.")
+  protected boolean keepCase;
+
+  private static final Logger LOGGER = Logger.getLogger(Corpus.class.getName());
+
+  @Override
+  public Integer call() {
+    UnaryOperator<String> normalize = keepCase ? UnaryOperator.identity() : String::toLowerCase;
+    try {
+      int count = TextCorpus.build(source, target, normalize);
+      System.out.println("Wrote " + count + " texts to " + target);
+      return 0;
+    } catch (IOException | IllegalArgumentException e) {
+      LOGGER.severe("Could not build the corpus: " + e.getMessage());
+      return 1;
+    }
+  }
+}
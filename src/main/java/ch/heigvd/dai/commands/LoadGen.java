@@ -0,0 +1,389 @@
+package ch.heigvd.dai.commands;
+
+import ch.heigvd.dai.logic.client.ClientProtocol;
+import ch.heigvd.dai.logic.loadgen.Bot;
+import ch.heigvd.dai.logic.loadgen.LoadStats;
+import ch.heigvd.dai.logic.loadgen.RoomObserver;
+import ch.heigvd.dai.logic.server.LatencyHistogram;
+import ch.heigvd.dai.logic.shared.BinaryCodec;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import picocli.CommandLine;
+
+@CommandLine.Command(
+    name = "loadgen",
+    description = "Simulate many players against a server to measure its capacity")
+public class LoadGen implements Callable<Integer> {
+  @CommandLine.ParentCommand private Root parent;
+
+  @CommandLine.Option(
+      names = {"-M", "--multicast-address"},
+      description = "Multicast address to use for the server (default: ${DEFAULT-VALUE}).",
+      defaultValue = "230.0.0.0")
+  protected String serverMulticastAddress;
+
+  @CommandLine.Option(
+      names = {"-H", "--serverHost"},
+      description = "Server host (default: ${DEFAULT-VALUE}).",
+      defaultValue = "localhost")
+  protected String serverHost;
+
+  @CommandLine.Option(
+      names = {"-p", "--serverPort"},
+      description = "Port to use for the server (default: ${DEFAULT-VALUE}).",
+      defaultValue = "4445")
+  protected int serverPort;
+
+  @CommandLine.Option(
+      names = {"-pm", "--serverMulticastPort"},
+      description = "Port to use for the server multicast (default: ${DEFAULT-VALUE}).",
+      defaultValue = "4446")
+  protected int serverMulticastPort;
+
+  @CommandLine.Option(
+      names = {"-I", "--network-interface"},
+      description = "Network interface to use",
+      required = true)
+  protected String networkInterface;
+
+  @CommandLine.Option(
+      names = {"-n", "--bots"},
+      description = "Number of bots to simulate (default: ${DEFAULT-VALUE}).",
+      defaultValue = "100")
+  protected int numBots;
+
+  @CommandLine.Option(
+      names = {"-r", "--rooms"},
+      description = "Number of rooms to spread the bots over (default: ${DEFAULT-VALUE}).",
+      defaultValue = "1")
+  protected int numRooms;
+
+  @CommandLine.Option(
+      names = {"-g", "--games"},
+      description = "Number of games to play in each room (default: ${DEFAULT-VALUE}).",
+      defaultValue = "1")
+  protected int numGames;
+
+  @CommandLine.Option(
+      names = {"--wpm"},
+      description =
+          "Mean typing speed of the bots in words per minute (default: ${DEFAULT-VALUE}).",
+      defaultValue = "60")
+  protected double wpm;
+
+  @CommandLine.Option(
+      names = {"--wpm-stddev"},
+      description = "Standard deviation of the typing speed (default: ${DEFAULT-VALUE}).",
+      defaultValue = "15")
+  protected double wpmStddev;
+
+  @CommandLine.Option(
+      names = {"--error-rate"},
+      description = "Mean probability of a typing error per keystroke (default: ${DEFAULT-VALUE}).",
+      defaultValue = "0.05")
+  protected double errorRate;
+
+  @CommandLine.Option(
+      names = {"--error-rate-stddev"},
+      description = "Standard deviation of the error rate (default: ${DEFAULT-VALUE}).",
+      defaultValue = "0.02")
+  protected double errorRateStddev;
+
+  @CommandLine.Option(
+      names = {"--progress-interval"},
+      description =
+          "Minimum interval in milliseconds between two progress updates of a bot (default: ${DEFAULT-VALUE}).",
+      defaultValue = "200")
+  protected long progressInterval;
+
+  @CommandLine.Option(
+      names = {"--ramp-up"},
+      description =
+          "Time in milliseconds over which the joins of the bots are spread (default: ${DEFAULT-VALUE}).",
+      defaultValue = "1000")
+  protected long rampUp;
+
+  @CommandLine.Option(
+      names = {"--stats-port"},
+      description =
+          "Stats port of the server, queried for its throughput, 0 to skip (default: ${DEFAULT-VALUE}).",
+      defaultValue = "4440")
+  protected int statsPort;
+
+  @CommandLine.Option(
+      names = {"--protocol-version"},
+      description =
+          "Binary protocol version of the bots, from 3 to 5. Bots using version 5 don't acknowledge the control frames, which the server then sends again (default: ${DEFAULT-VALUE}).",
+      defaultValue = "4")
+  protected int protocolVersion;
+
+  @CommandLine.Option(
+      names = {"--send-queue"},
+      description =
+          "Number of messages a bot can have waiting to be sent (default: ${DEFAULT-VALUE}).",
+      defaultValue = "16")
+  protected int sendQueueCapacity;
+
+  @CommandLine.Option(
+      names = {"--platform-senders"},
+      description =
+          "Send the messages of each bot from a platform thread, like the client, instead of a virtual thread.")
+  protected boolean platformSenders;
+
+  @CommandLine.Option(
+      names = {"--seed"},
+      description = "Seed of the random generators (default: ${DEFAULT-VALUE}).",
+      defaultValue = "42")
+  protected long seed;
+
+  private static final Logger LOGGER = Logger.getLogger(LoadGen.class.getName());
+  private static final double MIN_WPM = 10;
+  private static final double MAX_ERROR_RATE = 0.5;
+  private static final long REPORT_INTERVAL_MS = 5000;
+
+  private final LoadStats stats = new LoadStats();
+
+  @Override
+  public Integer call() {
+    if (numBots < 1 || numRooms < 1 || numGames < 1) {
+      LOGGER.severe("The numbers of bots, rooms and games must be at least 1");
+      return 1;
+    }
+    if (protocolVersion < BinaryCodec.MIN_BINARY_VERSION
+        || protocolVersion > BinaryCodec.BINARY_VERSION) {
+      LOGGER.severe(
+          "The protocol version must be between "
+              + BinaryCodec.MIN_BINARY_VERSION
+              + " and "
+              + BinaryCodec.BINARY_VERSION);
+      return 1;
+    }
+    if (sendQueueCapacity < 1) {
+      LOGGER.severe("The send queue must hold at least 1 message");
+      return 1;
+    }
+    List<RoomObserver> observers = new ArrayList<>();
+    List<Bot> bots = new ArrayList<>();
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (int room = 0; room < numRooms; ++room) {
+        RoomObserver observer = new RoomObserver(newProtocol(room), stats);
+        observer.start();
+        observers.add(observer);
+      }
+      Map<String, Long> serverBefore = queryServer();
+      long start = System.nanoTime();
+      Thread reporter = Thread.ofVirtual().name("loadgen-report").start(this::reportLoop);
+
+      // Join all the bots first, so that no game starts before every bot is in its room
+      Random random = new Random(seed);
+      List<Future<Boolean>> joins = new ArrayList<>();
+      for (int i = 0; i < numBots; ++i) {
+        int room = i % numRooms;
+        Bot bot =
+            new Bot(
+                "bot" + i,
+                room,
+                protocolVersion,
+                newProtocol(room),
+                observers.get(room),
+                stats,
+                Math.max(MIN_WPM, wpm + wpmStddev * random.nextGaussian()),
+                Math.clamp(errorRate + errorRateStddev * random.nextGaussian(), 0, MAX_ERROR_RATE),
+                progressInterval,
+                random.nextLong());
+        bots.add(bot);
+        long delay = rampUp * i / numBots;
+        joins.add(
+            executor.submit(
+                () -> {
+                  Thread.sleep(delay);
+                  return bot.join();
+                }));
+      }
+      List<Future<?>> games = new ArrayList<>();
+      for (int i = 0; i < numBots; ++i) {
+        if (!joins.get(i).get()) continue;
+        Bot bot = bots.get(i);
+        games.add(executor.submit(() -> playGames(bot)));
+      }
+      for (Future<?> game : games) {
+        game.get();
+      }
+
+      long elapsed = System.nanoTime() - start;
+      reporter.interrupt();
+      for (Bot bot : bots) {
+        bot.quit();
+      }
+      printReport(elapsed, serverBefore, queryServer());
+    } catch (Exception e) {
+      LOGGER.severe("Error in load generator: " + e.getMessage());
+      return 1;
+    } finally {
+      for (RoomObserver observer : observers) {
+        observer.close();
+      }
+    }
+    return 0;
+  }
+
+  private ClientProtocol newProtocol(int room) throws IOException {
+    Thread.Builder sender =
+        platformSenders
+            ? Thread.ofPlatform().name("bot-sender").daemon()
+            : Thread.ofVirtual().name("bot-sender");
+    return new ClientProtocol(
+        serverHost,
+        serverPort,
+        serverMulticastAddress,
+        serverMulticastPort + room,
+        networkInterface,
+        sendQueueCapacity,
+        sender.factory());
+  }
+
+  /**
+   * Play all the games with a bot.
+   *
+   * @param bot the bot
+   * @return null, to be submitted as a callable
+   */
+  private Void playGames(Bot bot) throws IOException, InterruptedException {
+    for (int game = 0; game < numGames; ++game) {
+      if (!bot.play(game)) {
+        stats.gamesTimedOut.increment();
+        break;
+      }
+    }
+    return null;
+  }
+
+  /** Print the progress of the run periodically, until interrupted. */
+  private void reportLoop() {
+    try {
+      while (true) {
+        Thread.sleep(REPORT_INTERVAL_MS);
+        System.out.printf(
+            "joined %d/%d, games started %d, keystrokes %d, multicast frames %d (%d lost),"
+                + " progress latency p99 %s%n",
+            stats.joined.sum(),
+            numBots,
+            stats.gamesStarted.sum(),
+            stats.keystrokes.sum(),
+            stats.multicastFrames.sum(),
+            stats.multicastLost.sum(),
+            millis(stats.progressLatency.getPercentile(99)));
+      }
+    } catch (InterruptedException e) {
+      // Run over
+    }
+  }
+
+  /**
+   * Query the metrics of the server.
+   *
+   * @return the metrics by name, empty if the server doesn't answer
+   */
+  private Map<String, Long> queryServer() {
+    Map<String, Long> metrics = new HashMap<>();
+    if (statsPort <= 0) {
+      return metrics;
+    }
+    try (DatagramSocket socket = new DatagramSocket()) {
+      socket.setSoTimeout(Stats.TIMEOUT_MS);
+      String report = Stats.query(socket, InetAddress.getByName(serverHost), statsPort);
+      for (String line : report.split("\n")) {
+        int space = line.lastIndexOf(' ');
+        if (space > 0) {
+          metrics.put(line.substring(0, space), Long.parseLong(line.substring(space + 1)));
+        }
+      }
+    } catch (IOException | NumberFormatException e) {
+      LOGGER.warning("Could not query the metrics of the server: " + e.getMessage());
+    }
+    return metrics;
+  }
+
+  /**
+   * Print the summary of the run.
+   *
+   * @param elapsed the duration of the run, in nanoseconds
+   * @param before the metrics of the server before the run
+   * @param after the metrics of the server after the run
+   */
+  private void printReport(long elapsed, Map<String, Long> before, Map<String, Long> after) {
+    double seconds = elapsed / 1e9;
+    System.out.println();
+    System.out.printf("duration: %.1f s%n", seconds);
+    System.out.printf(
+        "bots: %d joined, %d failed to join%n", stats.joined.sum(), stats.joinFailures.sum());
+    System.out.printf(
+        "games: %d started, %d timed out, %d texts fetched%n",
+        stats.gamesStarted.sum(), stats.gamesTimedOut.sum(), stats.textsFetched.sum());
+    System.out.println("join latency: " + latencies(stats.joinLatency));
+    System.out.println("progress latency: " + latencies(stats.progressLatency));
+    System.out.printf(
+        "keystrokes: %d (%.1f/s)%n", stats.keystrokes.sum(), stats.keystrokes.sum() / seconds);
+    System.out.printf(
+        "multicast frames: %d received, %d lost, %d out of order%n",
+        stats.multicastFrames.sum(), stats.multicastLost.sum(), stats.multicastReordered.sum());
+    if (before.isEmpty() || after.isEmpty()) {
+      return;
+    }
+    System.out.printf(
+        "server: %.1f packets in/s, %.1f packets out/s, %.1f bytes in/s, %.1f bytes out/s%n",
+        delta(before, after, "packets_in") / seconds,
+        delta(before, after, "packets_out") / seconds,
+        delta(before, after, "bytes_in") / seconds,
+        delta(before, after, "bytes_out") / seconds);
+    System.out.printf(
+        "server drops: %d in, %d out%n",
+        delta(before, after, "dropped_in"), delta(before, after, "dropped_out"));
+  }
+
+  /**
+   * Compute how much a metric grew during the run, summing the metrics with labels.
+   *
+   * @param before the metrics before the run
+   * @param after the metrics after the run
+   * @param name the name of the metric, without labels
+   * @return the difference
+   */
+  private static long delta(Map<String, Long> before, Map<String, Long> after, String name) {
+    long delta = 0;
+    for (Map.Entry<String, Long> entry : after.entrySet()) {
+      String key = entry.getKey();
+      if (key.equals(name) || key.startsWith(name + "{")) {
+        delta += entry.getValue() - before.getOrDefault(key, 0L);
+      }
+    }
+    return delta;
+  }
+
+  private static String latencies(LatencyHistogram histogram) {
+    if (histogram.getCount() == 0) {
+      return "no samples";
+    }
+    return String.format(
+        "p50 %s, p99 %s, max %s (%d samples)",
+        millis(histogram.getPercentile(50)),
+        millis(histogram.getPercentile(99)),
+        millis(histogram.getMax()),
+        histogram.getCount());
+  }
+
+  private static String millis(long nanos) {
+    return String.format("%.2f ms", nanos / 1e6);
+  }
+}
@@ -7,7 +7,10 @@ import picocli.CommandLine;
     version = "1.0.0",
     subcommands = {
       Client.class,
+      Corpus.class,
       Server.class,
+      LoadGen.class,
+      Stats.class,
     },
     scope = CommandLine.ScopeType.INHERIT,
     mixinStandardHelpOptions = true)
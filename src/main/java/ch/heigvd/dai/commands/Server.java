@@ -1,16 +1,36 @@
 package ch.heigvd.dai.commands;
 
-import ch.heigvd.dai.logic.server.ClientInfo;
+import ch.heigvd.dai.logic.server.BroadcastScheduler;
+import ch.heigvd.dai.logic.server.ControlLog;
+import ch.heigvd.dai.logic.server.LivenessMonitor;
+import ch.heigvd.dai.logic.server.PlayerTable;
+import ch.heigvd.dai.logic.server.ProgressFrame;
+import ch.heigvd.dai.logic.server.Room;
+import ch.heigvd.dai.logic.server.RoomRegistry;
+import ch.heigvd.dai.logic.server.ServerMetrics;
 import ch.heigvd.dai.logic.server.ServerProtocol;
 import ch.heigvd.dai.logic.server.ServerState;
+import ch.heigvd.dai.logic.server.StatsEndpoint;
+import ch.heigvd.dai.logic.server.TextCorpus;
+import ch.heigvd.dai.logic.server.TextIndex;
 import ch.heigvd.dai.logic.server.TypingGame;
 import ch.heigvd.dai.logic.shared.BaseState;
+import ch.heigvd.dai.logic.shared.BinaryCodec;
+import ch.heigvd.dai.logic.shared.CommandNames;
 import ch.heigvd.dai.logic.shared.Message;
+import ch.heigvd.dai.logic.shared.Packet;
+import ch.heigvd.dai.logic.shared.Tokenizer;
 import java.io.IOException;
 import java.net.InetAddress;
-import java.util.Map;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
 import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
 import java.util.logging.Logger;
 import picocli.CommandLine;
 
@@ -45,10 +65,90 @@ public class Server implements Callable<Integer> {
       defaultValue = "4446")
   protected int multicastPort;
 
+  @CommandLine.Option(
+      names = {"-r", "--rooms"},
+      description =
+          "Number of rooms to host, room N multicasts on port multicastPort + N (default: ${DEFAULT-VALUE}).",
+      defaultValue = "1")
+  protected int numRooms;
+
+  @CommandLine.Option(
+      names = {"-w", "--workers"},
+      description =
+          "Number of worker lanes handling received messages, 0 to handle them on the receiving thread. The messages of a client always go to the same lane, so they are handled in order (default: the number of processors).")
+  protected int numWorkers = Runtime.getRuntime().availableProcessors();
+
+  @CommandLine.Option(
+      names = {"-t", "--tick-rate"},
+      description = "Maximum number of progress broadcasts per second (default: ${DEFAULT-VALUE}).",
+      defaultValue = "10")
+  protected double tickRate;
+
+  @CommandLine.Option(
+      names = {"-b", "--bandwidth-budget"},
+      description =
+          "Maximum number of bytes per second used by the progress broadcasts of a room, the tick rate is lowered to stay within it (default: ${DEFAULT-VALUE}).",
+      defaultValue = "32768")
+  protected int bandwidthBudget;
+
+  @CommandLine.Option(
+      names = {"--stats-port"},
+      description =
+          "Local port answering metrics queries from the stats command, 0 to disable (default: ${DEFAULT-VALUE}).",
+      defaultValue = "4440")
+  protected int statsPort;
+
+  @CommandLine.Option(
+      names = {"--corpus"},
+      description =
+          "Corpus file to pick the race texts from, built with the corpus command. Can be repeated (default: the built-in texts).")
+  protected List<Path> corpusPaths;
+
+  @CommandLine.Option(
+      names = {"--text-length"},
+      description = "Length of the race texts: ${COMPLETION-CANDIDATES} (default: any).")
+  protected TextIndex.Length textLength;
+
+  @CommandLine.Option(
+      names = {"--room-difficulty"},
+      split = ",",
+      description =
+          "Difficulty of the race texts of each room, from room 0: ${COMPLETION-CANDIDATES}. Rooms after the last one listed get texts of any difficulty.")
+  protected List<TextIndex.Difficulty> roomDifficulties;
+
+  @CommandLine.Option(
+      names = {"--text-seed"},
+      description = "Seed of the choice of the race texts, for a reproducible sequence of texts.")
+  protected Long textSeed;
+
+  @CommandLine.Option(
+      names = {"--journal"},
+      description =
+          "Directory of the journals of the rooms. The rooms are restored from it on start, and every change of their state is recorded in it (default: no journal).")
+  protected Path journalPath;
+
+  @CommandLine.Option(
+      names = {"--session-timeout"},
+      description =
+          "Seconds without hearing from a client sending heartbeats after which it is removed from its room, 0 to never remove clients (default: ${DEFAULT-VALUE}).",
+      defaultValue = "30")
+  protected int sessionTimeout;
+
   private static final Logger LOGGER = Logger.getLogger(Server.class.getName());
+  // Every progress update at FINE, in its own logger so that it can be enabled and sampled apart
+  private static final Logger PROGRESS_LOGGER =
+      Logger.getLogger(Server.class.getName() + ".progress");
+  private static final CommandNames<Client.Command> CLIENT_COMMANDS =
+      new CommandNames<>(Client.Command.values());
+  private static final ThreadLocal<Tokenizer> TOKENIZER = ThreadLocal.withInitial(Tokenizer::new);
 
   private ServerProtocol network;
-  private ServerState state;
+  private RoomRegistry rooms;
+  private BroadcastScheduler broadcasts;
+  private LivenessMonitor liveness;
+  private StatsEndpoint statsEndpoint;
+  private TypingGame typingGame;
+  private final ServerMetrics metrics = new ServerMetrics();
 
   public enum Command {
     OK,
@@ -59,7 +159,10 @@ public class Server implements Callable<Integer> {
     ALL_USERS_PROGRESS,
     END_GAME,
     DEL_USER,
-    ERROR;
+    ERROR,
+    TEXT_CHUNK;
+
+    private static final Command[] VALUES = values();
 
     public static Command fromString(String text) {
       try {
@@ -68,6 +171,11 @@ public class Server implements Callable<Integer> {
         return null;
       }
     }
+
+    public static Command fromOpcode(byte opcode) {
+      int ordinal = BinaryCodec.ordinal(opcode);
+      return ordinal < VALUES.length ? VALUES[ordinal] : null;
+    }
   }
 
   public enum CommandPlayerState {
@@ -75,6 +183,8 @@ public class Server implements Callable<Integer> {
     READY,
     IN_GAME;
 
+    private static final CommandPlayerState[] VALUES = values();
+
     public static CommandPlayerState fromString(String text) {
       try {
         return valueOf(text);
@@ -82,6 +192,10 @@ public class Server implements Callable<Integer> {
         return null;
       }
     }
+
+    public static CommandPlayerState fromOrdinal(int ordinal) {
+      return ordinal >= 0 && ordinal < VALUES.length ? VALUES[ordinal] : null;
+    }
   }
 
   @Override
@@ -93,71 +207,357 @@ public class Server implements Callable<Integer> {
       LOGGER.severe("Server encountered an error: " + e.getMessage());
       exitCode = 1;
     } finally {
+      if (statsEndpoint != null) {
+        statsEndpoint.close();
+      }
       if (network != null) {
         network.closeSockets();
       }
+      if (broadcasts != null) {
+        broadcasts.close();
+      }
+      if (liveness != null) {
+        liveness.close();
+      }
+      if (rooms != null) {
+        rooms.close();
+      }
     }
     return exitCode;
   }
 
+  /** Stop the server: {@link #call()} returns once everything is closed. */
+  void stop() {
+    if (network != null) {
+      network.closeSockets();
+    }
+  }
+
   /**
    * Start the server and listen for unicast messages.
    *
    * @throws IOException if an error occurs while starting the server
    */
   private void startServer() throws IOException {
-    state = new ServerState();
-    network = new ServerProtocol(port, multicastAddress, multicastPort);
-    LOGGER.info("Listening on http://" + host + ":" + port + "...");
+    if (multicastPort < 1 || multicastPort > RoomRegistry.MAX_PORT) {
+      throw new IOException("The multicast port must be between 1 and " + RoomRegistry.MAX_PORT);
+    }
+    // Room N multicasts on port multicastPort + N, which must be a valid port
+    int maxRooms = RoomRegistry.maxRooms(multicastPort);
+    if (numRooms < 1 || numRooms > maxRooms) {
+      throw new IOException(
+          "The server must host between 1 and "
+              + maxRooms
+              + " rooms with multicast port "
+              + multicastPort);
+    }
+    if (numWorkers < 0) {
+      throw new IOException("The number of workers cannot be negative");
+    }
+    if (tickRate <= 0 || bandwidthBudget <= 0) {
+      throw new IOException("The tick rate and the bandwidth budget must be positive");
+    }
+    if (sessionTimeout < 0) {
+      throw new IOException("The session timeout cannot be negative");
+    }
+    typingGame = new TypingGame(textSeed != null ? new Random(textSeed) : new Random());
+    addCorpora();
+    broadcasts = new BroadcastScheduler(tickRate, bandwidthBudget);
+    rooms = new RoomRegistry(numRooms, InetAddress.getByName(multicastAddress), multicastPort);
+    network = new ServerProtocol(port, numWorkers, metrics);
+    liveness =
+        new LivenessMonitor(
+            rooms.getPlayers(), TimeUnit.SECONDS.toMillis(sessionTimeout), this::expireSession);
+    if (journalPath != null) {
+      openJournals();
+    }
+    rooms.start();
+    registerGauges();
+    if (statsPort > 0) {
+      statsEndpoint = new StatsEndpoint(statsPort, network::reportMetrics);
+    }
+    liveness.start();
+    LOGGER.info("Listening on http://" + host + ":" + port + " with " + numRooms + " room(s)...");
 
-    network.listenForUnicastMessages(this::handleMessage);
+    network.listenForUnicastMessages(this::handlePacket);
   }
 
   /**
-   * Handle a unicast message from a client.
+   * Restore the rooms from their journals and journal them from now on. The progress broadcasts of
+   * the games that were running are started again, and the players sending heartbeats are watched
+   * again from now. The other players are removed unless they are heard from within the session
+   * timeout, so that the players whose client stopped with the server don't block the next games.
    *
-   * @param message the message to handle
+   * @throws IOException if a journal can't be read or written
    */
-  private void handleMessage(Message message) {
-    String[] parts = message.getParts();
-    Client.Command command = parseClientCommand(parts);
+  private void openJournals() throws IOException {
+    int numRestored = rooms.openJournals(journalPath);
+    LOGGER.info("Restored " + numRestored + " player(s) from the journals in " + journalPath);
+    for (int i = 0; i < rooms.getNumRooms(); ++i) {
+      Room room = rooms.getRoom(i);
+      for (int id : room.state.getMembers()) {
+        if (rooms.getPlayers().hasHeartbeats(id)) {
+          liveness.watch(id);
+        } else {
+          liveness.watchRestored(id);
+        }
+        // The control frames of the previous run are gone, clients resynchronize on the next one
+        rooms.getPlayers().setControlAcked(id, room.controlLog.getLastSequence());
+      }
+      if (room.state.isGameRunning()) {
+        room.progressFrame.forceKeyframe();
+        broadcasts.start(room, this::multicastProgress);
+      }
+    }
+  }
 
-    if (command == null) {
-      LOGGER.warning("Received unknown command: " + parts[0]);
-      handleUnknownCommand(message.address, message.port);
+  /**
+   * Add the corpora of the race texts to the game.
+   *
+   * @throws IOException if a corpus can't be opened
+   */
+  private void addCorpora() throws IOException {
+    if (corpusPaths == null || corpusPaths.isEmpty()) {
+      typingGame.addCorpus(TypingGame.defaultCorpus());
       return;
     }
+    for (Path path : corpusPaths) {
+      try {
+        TextCorpus corpus = TextCorpus.open(path);
+        typingGame.addCorpus(corpus);
+        LOGGER.info("Loaded " + corpus.size() + " texts from " + path);
+      } catch (IllegalArgumentException e) {
+        throw new IOException("Invalid corpus " + path + ": " + e.getMessage(), e);
+      }
+    }
+  }
 
-    if (!hasValidArgumentCount(command, parts)) {
-      handleIllegalNumberOfArguments(message.address, message.port);
+  /**
+   * Get the difficulty of the texts of a room.
+   *
+   * @param room the room
+   * @return the difficulty, or null for any difficulty
+   */
+  private TextIndex.Difficulty difficultyOf(Room room) {
+    if (roomDifficulties == null || room.id >= roomDifficulties.size()) {
+      return null;
+    }
+    return roomDifficulties.get(room.id);
+  }
+
+  /** Register the gauges of the server, read from the rooms each time the metrics are queried. */
+  private void registerGauges() {
+    metrics.registerGauge("rooms", rooms::getNumRooms);
+    metrics.registerGauge("players", () -> countRooms(room -> room.state.getNumPlayers()));
+    metrics.registerGauge(
+        "rooms_waiting", () -> countRooms(room -> room.state.isGameWaiting() ? 1 : 0));
+    metrics.registerGauge(
+        "rooms_running", () -> countRooms(room -> room.state.isGameRunning() ? 1 : 0));
+    metrics.registerGauge(
+        "rooms_finished", () -> countRooms(room -> room.state.isGameFinished() ? 1 : 0));
+    metrics.registerGauge("work_queue_size", network::getWorkQueueSize);
+    metrics.registerGauge("room_queue_size", () -> countRooms(Room::getQueueSize));
+    metrics.registerGauge("send_queue_size", network::getSendQueueSize);
+  }
+
+  /**
+   * Sum a value over all the rooms.
+   *
+   * @param value the value of a room
+   * @return the sum of the values
+   */
+  private long countRooms(ToIntFunction<Room> value) {
+    long sum = 0;
+    for (int i = 0; i < rooms.getNumRooms(); ++i) {
+      sum += value.applyAsInt(rooms.getRoom(i));
+    }
+    return sum;
+  }
+
+  /**
+   * Handle a packet from a client, either a text or a binary frame.
+   *
+   * @param packet the packet to handle
+   */
+  private void handlePacket(Packet packet) {
+    long start = System.nanoTime();
+    if (BinaryCodec.isBinary(packet.buffer)) {
+      handleBinaryMessage(packet.buffer, packet.getAddress(), packet.getPort());
+    } else {
+      handleMessage(TOKENIZER.get().reset(packet.buffer), packet.getAddress(), packet.getPort());
+    }
+    metrics.recordHandleTime(System.nanoTime() - start);
+  }
+
+  /**
+   * Handle a text message from a client. The message is validated on the receiving thread and then
+   * handed over to the thread of the room of the player. Apart from USER_JOIN, messages are parsed
+   * without allocating: the username is looked up directly from the bytes of the message.
+   *
+   * @param tokenizer the tokenizer over the message
+   * @param address the address of the player
+   * @param port the port of the player
+   */
+  private void handleMessage(Tokenizer tokenizer, InetAddress address, int port) {
+    Client.Command command = tokenizer.next() ? CLIENT_COMMANDS.match(tokenizer) : null;
+
+    // Texts are only fetched by binary clients, text clients get them in START_GAME. Control frames
+    // are only acknowledged by binary clients.
+    if (command == null
+        || command == Client.Command.TEXT_REQUEST
+        || command == Client.Command.CONTROL_ACK
+        || command == Client.Command.CONTROL_NACK) {
+      LOGGER.warning("Received unknown command: " + tokenizer.tokenString());
+      handleUnknownCommand(address, port);
+      return;
+    }
+    metrics.countCommand(command);
+
+    int numArguments = tokenizer.countRemaining();
+    if (!hasValidArgumentCount(command, numArguments)) {
+      handleIllegalNumberOfArguments(address, port);
+      return;
+    }
+
+    if (command == Client.Command.USER_JOIN) {
+      handleUserJoin(tokenizer, numArguments, address, port);
       return;
     }
 
-    switch (command) {
-      case USER_JOIN -> handleUserJoin(parts[1], message.address, message.port);
-      case USER_READY -> handleUserReady(parts[1], message.address, message.port);
-      case USER_PROGRESS ->
-          handleUserProgress(parts[1], message.address, message.port, Integer.parseInt(parts[2]));
-      case USER_QUIT -> handleUserQuit(parts[1], message.address, message.port);
-      default -> {
-        LOGGER.warning("Unhandled command: " + command);
-        handleUnknownCommand(message.address, message.port);
+    tokenizer.next();
+    String username = rooms.findUsername(tokenizer);
+    int id = username != null ? rooms.getId(username) : -1;
+    if (id < 0) {
+      network.sendUnicast(new Message(Command.ERROR + " " + "User doesn't exist.", address, port));
+      return;
+    }
+
+    int progress = 0;
+    if (command == Client.Command.USER_PROGRESS) {
+      tokenizer.next();
+      progress = tokenizer.tokenInt();
+      if (progress < 0) {
+        metrics.countParseError();
+        network.sendUnicast(new Message(Command.ERROR + " Invalid score.", address, port));
+        return;
       }
     }
+    dispatch(command, id, progress, address, port);
   }
 
   /**
-   * Parse a client command from an array of parts.
+   * Handle a binary frame from a client. Binary frames identify the player by its ID instead of its
+   * username. IDs are recycled and easy to guess, so a frame is dropped unless it comes from the
+   * address the player joined from.
    *
-   * @param parts the parts of the command
-   * @return the parsed command or null if the command is unknown
+   * @param buffer the buffer holding the frame
+   * @param address the address of the player
+   * @param port the port of the player
    */
-  private Client.Command parseClientCommand(String[] parts) {
-    if (parts.length == 0) return null;
+  private void handleBinaryMessage(ByteBuffer buffer, InetAddress address, int port) {
     try {
-      return Client.Command.valueOf(parts[0]);
-    } catch (IllegalArgumentException e) {
-      return null;
+      Client.Command command = Client.Command.fromOpcode(buffer.get());
+      if (command == null || command == Client.Command.USER_JOIN) {
+        handleUnknownCommand(address, port);
+        return;
+      }
+      metrics.countCommand(command);
+      if (command == Client.Command.TEXT_REQUEST) {
+        handleTextRequest(buffer, address, port);
+        return;
+      }
+      int id = BinaryCodec.getVarint(buffer);
+      if (!rooms.getPlayers().isFrom(id, address, port)) {
+        metrics.countDropped();
+        return;
+      }
+      if (command == Client.Command.CONTROL_ACK || command == Client.Command.CONTROL_NACK) {
+        handleControlReply(command, id, buffer.getInt(), address, port);
+        return;
+      }
+      int progress = command == Client.Command.USER_PROGRESS ? buffer.get() : 0;
+      dispatch(command, id, progress, address, port);
+    } catch (BufferUnderflowException | IllegalArgumentException e) {
+      handleIllegalNumberOfArguments(address, port);
+    }
+  }
+
+  /**
+   * Send a chunk of a paragraph to a binary client. Paragraphs are immutable, so the request is
+   * answered right away without going through a room. The chunk is copied from the corpus as is.
+   *
+   * <p>A chunk is ten times larger than its request, so only the paragraph of the room of the
+   * player is sent, and only to the address the player joined from: a request with the address of
+   * someone else gets no answer.
+   *
+   * @param buffer the buffer holding the request, positioned after the opcode
+   * @param address the address of the client
+   * @param port the port of the client
+   */
+  private void handleTextRequest(ByteBuffer buffer, InetAddress address, int port) {
+    int playerId = BinaryCodec.getVarint(buffer);
+    int id = BinaryCodec.getVarint(buffer);
+    int chunk = BinaryCodec.getVarint(buffer);
+    Room room = rooms.getRoomOf(playerId);
+    if (room == null || !rooms.getPlayers().isFrom(playerId, address, port)) {
+      metrics.countDropped();
+      return;
+    }
+    liveness.touch(playerId);
+    if (room.getParagraphId() != id) {
+      network.sendUnicast(new Message(Command.ERROR + " Unknown text.", address, port));
+      return;
+    }
+    ByteBuffer text = typingGame.getParagraphBytes(id);
+    if (chunk < 0 || chunk >= BinaryCodec.numTextChunks(text.remaining())) {
+      network.sendUnicast(new Message(Command.ERROR + " Invalid chunk.", address, port));
+      return;
+    }
+    int offset = chunk * BinaryCodec.TEXT_CHUNK_SIZE;
+    text.position(offset).limit(Math.min(offset + BinaryCodec.TEXT_CHUNK_SIZE, text.limit()));
+    Packet packet = network.newPacket(address, port);
+    packet.buffer.put(BinaryCodec.opcode(Command.TEXT_CHUNK));
+    BinaryCodec.putVarint(packet.buffer, id);
+    BinaryCodec.putVarint(packet.buffer, chunk);
+    packet.buffer.put(text);
+    network.send(packet);
+  }
+
+  /**
+   * Hand a command over to the thread of the room of the player.
+   *
+   * @param command the command to handle
+   * @param id the ID of the player
+   * @param progress the progress of the player, only used by USER_PROGRESS
+   * @param address the address of the player
+   * @param port the port of the player
+   */
+  private void dispatch(
+      Client.Command command, int id, int progress, InetAddress address, int port) {
+    Room room = rooms.getRoomOf(id);
+    if (room == null) {
+      network.sendUnicast(new Message(Command.ERROR + " " + "User doesn't exist.", address, port));
+      return;
+    }
+    liveness.touch(id);
+    if (command == Client.Command.HEARTBEAT && rooms.getPlayers().hasHeartbeats(id)) {
+      return;
+    }
+
+    Runnable task =
+        switch (command) {
+          case USER_READY -> () -> handleUserReady(room, id, address, port);
+          case HEARTBEAT -> () -> handleHeartbeat(room, id);
+          case USER_PROGRESS -> () -> handleUserProgress(room, id, address, port, progress);
+          case USER_QUIT -> () -> handleUserQuit(room, id, address, port);
+          default -> null;
+        };
+    if (task == null) {
+      LOGGER.warning("Unhandled command: " + command);
+      handleUnknownCommand(address, port);
+    } else if (!room.execute(task)) {
+      // The room is overloaded, the client sends its state again later
+      metrics.countDropped();
     }
   }
 
@@ -165,30 +565,51 @@ public class Server implements Callable<Integer> {
    * Check if the number of arguments for a client command is valid.
    *
    * @param command the command to check
-   * @param parts the parts of the command
+   * @param numArguments the number of arguments of the command
    * @return true if the number of arguments is valid, false otherwise
    */
-  private boolean hasValidArgumentCount(Client.Command command, String[] parts) {
+  private boolean hasValidArgumentCount(Client.Command command, int numArguments) {
     return switch (command) {
-      case USER_JOIN, USER_READY, USER_QUIT -> parts.length == 2;
-      case USER_PROGRESS -> parts.length == 3;
+      case USER_JOIN -> numArguments >= 1 && numArguments <= 3;
+      case USER_READY, USER_QUIT, HEARTBEAT -> numArguments == 1;
+      case USER_PROGRESS, TEXT_REQUEST, CONTROL_ACK, CONTROL_NACK -> numArguments == 2;
     };
   }
 
   /**
    * Handle a user join to the server.
    *
-   * @param username the username of the player
+   * @param tokenizer the tokenizer over the arguments of the command: the username, the optional
+   *     room id and the optional protocol version
+   * @param numArguments the number of arguments of the command
    * @param address the address of the player
    * @param port the port of the player
    */
-  private void handleUserJoin(String username, InetAddress address, int port) {
-    // Validate username
-    if (state.usernameExists(username)) {
+  private void handleUserJoin(
+      Tokenizer tokenizer, int numArguments, InetAddress address, int port) {
+    tokenizer.next();
+    String username = tokenizer.tokenString();
+    int roomId = numArguments >= 2 && tokenizer.next() ? tokenizer.tokenInt() : 0;
+    int requestedVersion =
+        numArguments == 3 && tokenizer.next() ? tokenizer.tokenInt() : BinaryCodec.TEXT_VERSION;
+    Room room = rooms.getRoom(roomId);
+    if (room == null) {
       network.sendUnicast(
-          new Message(Command.USER_JOIN_ERR + " Username already taken", address, port));
+          new Message(Command.USER_JOIN_ERR + " Room doesn't exist", address, port));
       return;
     }
+    // Clients that don't ask for a version speak the text protocol, like older binary clients
+    int version =
+        requestedVersion >= BinaryCodec.MIN_BINARY_VERSION
+            ? Math.min(requestedVersion, BinaryCodec.BINARY_VERSION)
+            : Math.min(requestedVersion, BinaryCodec.TEXT_VERSION);
+    if (version < BinaryCodec.TEXT_VERSION) {
+      network.sendUnicast(
+          new Message(Command.USER_JOIN_ERR + " Unsupported protocol version", address, port));
+      return;
+    }
+
+    // Validate username
     if (username.length() > 15) {
       network.sendUnicast(
           new Message(
@@ -205,51 +626,128 @@ public class Server implements Callable<Integer> {
               port));
       return;
     }
+    int id = rooms.reserveUsername(username);
+    if (id < 0) {
+      network.sendUnicast(
+          new Message(Command.USER_JOIN_ERR + " Username already taken", address, port));
+      return;
+    }
 
     // Always allow joining, regardless of game state
-    handleSuccessfulJoin(username, address, port);
+    if (!room.execute(() -> handleSuccessfulJoin(room, username, id, version, address, port))) {
+      // The room is overloaded, the client tries joining again later
+      rooms.releaseUsername(username, id);
+      metrics.countDropped();
+    }
   }
 
   /**
    * Handle a successful join to the server.
    *
+   * @param room the room joined by the player
    * @param username the username of the player
+   * @param id the ID of the player
+   * @param version the protocol version negotiated with the player
    * @param address the address of the player
    * @param port the port of the player
    */
-  private void handleSuccessfulJoin(String username, InetAddress address, int port) {
-    state.registerClient(username, new ClientInfo(address, port));
-
-    // Build list of current players with their ready state or in-game state
-    StringBuilder currentUsers = new StringBuilder();
-    for (Map.Entry<String, ClientInfo> entry : state.getConnectedClients().entrySet()) {
-      String existingUser = entry.getKey();
-      if (!existingUser.equals(username)) {
-        CommandPlayerState playerState =
-            state.isGameRunning()
-                ? CommandPlayerState.IN_GAME
-                : (state.isUserReady(existingUser)
-                    ? CommandPlayerState.READY
-                    : CommandPlayerState.NOT_READY);
-        currentUsers.append(" ").append(existingUser).append(" ").append(playerState);
+  private void handleSuccessfulJoin(
+      Room room, String username, int id, int version, InetAddress address, int port) {
+    ServerState state = room.state;
+    boolean binary = version >= BinaryCodec.MIN_BINARY_VERSION;
+    rooms.getPlayers().setAddress(id, new InetSocketAddress(address, port));
+    state.registerClient(id, binary);
+    if (version >= BinaryCodec.HEARTBEAT_VERSION) {
+      state.setHeartbeats(id);
+      liveness.watch(id);
+    }
+    if (version >= BinaryCodec.RELIABLE_VERSION) {
+      state.setReliable(id);
+      rooms.getPlayers().setControlAcked(id, room.controlLog.getLastSequence());
+    }
+
+    if (binary) {
+      sendBinaryJoinResponse(room, id, version, address, port);
+    } else {
+      // Build list of current players with their ready state or in-game state. Text clients can't
+      // put fragments back together, so only the players that fit in a datagram are listed.
+      StringBuilder currentUsers = new StringBuilder(Command.OK.name());
+      for (int other : state.getMembers()) {
+        if (other != id) {
+          String entry = " " + rooms.getUsername(other) + " " + getPlayerState(state, other);
+          if (currentUsers.length() + entry.length() > ServerProtocol.BUFFER_SIZE) {
+            break;
+          }
+          currentUsers.append(entry);
+        }
       }
+
+      // Send OK with current users list and their states
+      network.sendUnicast(new Message(currentUsers.toString(), address, port));
     }
 
-    // Send OK with current users list and their states
-    network.sendUnicast(new Message(Command.OK + currentUsers.toString(), address, port));
     // Notify others of new user
-    network.multicast(Command.NEW_USER + " " + username);
+    multicast(room, Command.NEW_USER, id, username);
+  }
+
+  /**
+   * Send the binary OK response to a player that joined, with the negotiated version, its ID and
+   * the list of current players with their ID and state. Players acknowledging the control frames
+   * also get the sequence number of the last control frame of the room.
+   *
+   * @param room the room joined by the player
+   * @param id the ID of the player
+   * @param version the protocol version negotiated with the player
+   * @param address the address of the player
+   * @param port the port of the player
+   */
+  private void sendBinaryJoinResponse(
+      Room room, int id, int version, InetAddress address, int port) {
+    ServerState state = room.state;
+    Packet packet = network.newLargePacket(address, port);
+    ByteBuffer buffer = packet.buffer;
+    buffer.put(BinaryCodec.opcode(Command.OK));
+    buffer.put((byte) version);
+    BinaryCodec.putVarint(buffer, id);
+    int[] members = state.getMembers();
+    BinaryCodec.putVarint(buffer, members.length - 1);
+    for (int other : members) {
+      if (other != id) {
+        BinaryCodec.putVarint(buffer, other);
+        BinaryCodec.putString(buffer, rooms.getUsername(other));
+        buffer.put((byte) getPlayerState(state, other).ordinal());
+      }
+    }
+    if (version >= BinaryCodec.RELIABLE_VERSION) {
+      buffer.putInt(room.controlLog.getLastSequence());
+    }
+    network.send(packet);
+  }
+
+  /**
+   * Get the state of a player as reported to the other players.
+   *
+   * @param state the state of the room
+   * @param id the ID of the player
+   * @return the state of the player
+   */
+  private CommandPlayerState getPlayerState(ServerState state, int id) {
+    return state.isGameRunning()
+        ? CommandPlayerState.IN_GAME
+        : (state.isUserReady(id) ? CommandPlayerState.READY : CommandPlayerState.NOT_READY);
   }
 
   /**
    * Handle a user ready to the server.
    *
-   * @param username the username of the player
+   * @param room the room of the player
+   * @param id the ID of the player
    * @param address the address of the player
    * @param port the port of the player
    */
-  private void handleUserReady(String username, InetAddress address, int port) {
-    if (!state.usernameExists(username)) {
+  private void handleUserReady(Room room, int id, InetAddress address, int port) {
+    ServerState state = room.state;
+    if (!state.isMember(id)) {
       network.sendUnicast(new Message(Command.ERROR + " " + "User doesn't exist.", address, port));
       return;
     }
@@ -258,107 +756,438 @@ public class Server implements Callable<Integer> {
       state.setGameState(BaseState.GameState.WAITING);
     }
 
-    state.setUserReady(username);
-    network.multicast(Command.USER_READY + " " + username);
+    state.setUserReady(id);
+    multicast(room, Command.USER_READY, id, rooms.getUsername(id));
 
-    if (canStartGame()) {
-      startGame();
+    if (canStartGame(room)) {
+      scheduleGame(room);
     }
   }
 
   /**
    * Check if the game can start.
    *
+   * @param room the room of the game
    * @return true if the game can start, false otherwise
    */
-  private boolean canStartGame() {
+  private boolean canStartGame(Room room) {
+    ServerState state = room.state;
     return state.isGameWaiting()
+        && !room.isGameScheduled()
         && state.getNumPlayers() >= TypingGame.MIN_PLAYERS_FOR_GAME
         && state.areAllUsersReady();
   }
 
-  /** Start the game. Starts the game and a new thread to multicast progress updates. */
-  private void startGame() {
-    for (ClientInfo client : state.getConnectedClients().values()) {
-      client.player.setInGame(true);
+  /**
+   * Schedule the start of the game of a room after the countdown. The room keeps handling messages
+   * during the countdown. Binary clients are told right away when the game starts and which
+   * paragraph it uses, so they can fetch it in advance.
+   *
+   * @param room the room to start the game in
+   */
+  private void scheduleGame(Room room) {
+    ServerState state = room.state;
+    for (int id : state.getMembers()) {
+      state.setInGame(id, true);
     }
-    LOGGER.info("Starting game in " + TypingGame.GAME_START_DELAY + " seconds...");
-    try {
-      TimeUnit.SECONDS.sleep(TypingGame.GAME_START_DELAY);
-      network.multicast(Command.START_GAME + " " + TypingGame.getParagraph());
-      state.setGameState(BaseState.GameState.RUNNING);
-      new Thread(this::multicastProgress).start();
-    } catch (InterruptedException e) {
-      throw new RuntimeException(e);
+    LOGGER.info(
+        "Starting game in room " + room.id + " in " + TypingGame.GAME_START_DELAY + " seconds...");
+    long delayMs = TimeUnit.SECONDS.toMillis(TypingGame.GAME_START_DELAY);
+    int countdown = room.startCountdown();
+    int paragraphId = typingGame.pickParagraph(textLength, difficultyOf(room));
+    room.setParagraph(paragraphId, typingGame.getParagraph(paragraphId));
+    if (state.hasBinaryClients()) {
+      // Only the reference to the paragraph, clients fetch it during the countdown if needed
+      Packet packet = network.newPacket(room.multicastGroup);
+      packet.buffer.put(BinaryCodec.opcode(Command.START_GAME));
+      BinaryCodec.putVarint(packet.buffer, (int) delayMs);
+      BinaryCodec.putVarint(packet.buffer, room.getParagraphId());
+      packet.buffer.putLong(room.getParagraphHash());
+      BinaryCodec.putVarint(packet.buffer, room.getParagraphLength());
+      multicastControl(room, packet);
     }
+    room.schedule(() -> startGame(room, countdown), delayMs, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Start the game of a room once its countdown is over. Starts the game and the progress
+   * broadcasts of the room, unless the countdown was cancelled.
+   *
+   * @param room the room to start the game in
+   * @param countdown the number of the countdown
+   */
+  private void startGame(Room room, int countdown) {
+    ServerState state = room.state;
+    if (!room.endCountdown(countdown) || !state.isGameWaiting()) {
+      return;
+    }
+    if (state.hasTextClients()) {
+      network.multicast(Command.START_GAME + " " + room.getParagraph(), room.multicastGroup);
+    }
+    state.setGameState(BaseState.GameState.RUNNING);
+    room.progressFrame.forceKeyframe();
+    broadcasts.start(room, this::multicastProgress);
   }
 
   /**
    * Handle a user progress update from a client.
    *
-   * @param username the username of the player
+   * @param room the room of the player
+   * @param id the ID of the player
    * @param address the address of the player
    * @param port the port of the player
    * @param progress the progress of the player
    */
-  private void handleUserProgress(String username, InetAddress address, int port, int progress) {
-    LOGGER.info("USER_PROGRESS: " + username + " " + progress);
-    if (!state.usernameExists(username)) {
+  private void handleUserProgress(Room room, int id, InetAddress address, int port, int progress) {
+    PROGRESS_LOGGER.fine(() -> "USER_PROGRESS: " + rooms.getUsername(id) + " " + progress);
+    ServerState state = room.state;
+    if (!state.isMember(id)) {
       network.sendUnicast(new Message(Command.ERROR + " " + "User doesn't exist.", address, port));
-    } else if (!state.getConnectedClients().get(username).player.isInGame()) {
+    } else if (!state.isInGame(id)) {
       network.sendUnicast(new Message(Command.ERROR + " " + "User is not in game.", address, port));
     } else if (progress < 0 || progress > 100) {
       network.sendUnicast(new Message(Command.ERROR + " " + "Invalid score.", address, port));
     } else {
       if (state.isGameRunning()) {
-        state.setPlayerProgress(username, progress);
+        state.setPlayerProgress(id, progress);
         if (progress == 100) {
           state.setGameState(BaseState.GameState.FINISHED);
-          network.multicast(Command.END_GAME + " " + username);
+          multicast(room, Command.END_GAME, id, rooms.getUsername(id));
           state.resetPlayers();
+          state.checkpointJournal();
         }
       }
     }
   }
 
-  /** Multicast progress updates to all clients. */
-  private void multicastProgress() {
-    while (state.isGameRunning()) {
-      StringBuilder sb = new StringBuilder();
-      for (Map.Entry<String, ClientInfo> entry : state.getConnectedClients().entrySet()) {
-        if (entry.getValue().player.isInGame()) {
-          sb.append(" ");
-          sb.append(entry.getKey());
-          sb.append(" ");
-          sb.append(entry.getValue().player.getProgress());
-        }
-      }
-      network.multicast(Command.ALL_USERS_PROGRESS + sb.toString());
-      try {
-        TimeUnit.SECONDS.sleep(2);
-      } catch (InterruptedException e) {
-        throw new RuntimeException(e); // We want to crash the server, something is going wrong
-      }
+  /**
+   * Multicast progress updates to all clients of a room. Called on every broadcast tick of the
+   * room. Only the players whose progress changed since the last tick are sent, with a full
+   * keyframe from time to time.
+   *
+   * @param room the room to multicast the progress of
+   * @return the number of bytes sent, or -1 once the game is over
+   */
+  private int multicastProgress(Room room) {
+    ServerState.Snapshot snapshot = room.state.getSnapshot();
+    ProgressFrame frame = room.progressFrame;
+    if (snapshot.gameState() != BaseState.GameState.RUNNING) {
+      return -1;
+    }
+    if (!frame.build(room.state, System.currentTimeMillis())) {
+      return 0;
+    }
+    int bytesSent = 0;
+    if (snapshot.hasTextClients()) {
+      bytesSent += multicastTextProgress(room, frame);
+    }
+    if (snapshot.hasBinaryClients()) {
+      bytesSent += multicastBinaryProgress(room, frame);
+    } else {
+      frame.markSent(frame.size());
     }
+    return bytesSent;
+  }
+
+  /**
+   * Multicast a progress frame as text. Text clients can't put fragments back together, so the
+   * entries are split over as many messages as needed, each fitting in a datagram. Text clients
+   * apply each pair as is, so a partial list is compatible with them.
+   *
+   * @param room the room to multicast the progress of
+   * @param frame the frame to multicast
+   * @return the size of the messages in bytes
+   */
+  private int multicastTextProgress(Room room, ProgressFrame frame) {
+    int bytesSent = 0;
+    int numWritten = 0;
+    do {
+      StringBuilder sb = new StringBuilder(Command.ALL_USERS_PROGRESS.name());
+      int count = frame.appendText(sb, numWritten, ServerProtocol.BUFFER_SIZE);
+      network.multicast(sb.toString(), room.multicastGroup);
+      bytesSent += sb.length();
+      if (count == 0) break;
+      numWritten += count;
+    } while (numWritten < frame.size());
+    return bytesSent;
+  }
+
+  /**
+   * Multicast a binary progress frame. The entries are split over as many frames as needed, each
+   * fitting in a pooled datagram, so that the broadcasts never allocate large buffers.
+   *
+   * @param room the room to multicast the progress of
+   * @param frame the frame to multicast
+   * @return the size of the frames in bytes
+   */
+  private int multicastBinaryProgress(Room room, ProgressFrame frame) {
+    int bytesSent = 0;
+    int numWritten = 0;
+    do {
+      Packet packet = network.newPacket(room.multicastGroup);
+      ByteBuffer buffer = packet.buffer;
+      buffer.put(BinaryCodec.opcode(Command.ALL_USERS_PROGRESS));
+      int count = frame.putBinary(buffer, numWritten);
+      bytesSent += buffer.position();
+      network.send(packet);
+      if (count == 0) break;
+      numWritten += count;
+    } while (numWritten < frame.size());
+    frame.markSent(numWritten);
+    return bytesSent;
   }
 
   /**
    * Handle a user quit from a client.
    *
-   * @param username the username of the player
+   * @param room the room of the player
+   * @param id the ID of the player
    * @param address the address of the player
    * @param port the port of the player
    */
-  private void handleUserQuit(String username, InetAddress address, int port) {
-    if (!state.usernameExists(username)) {
+  private void handleUserQuit(Room room, int id, InetAddress address, int port) {
+    ServerState state = room.state;
+    if (!state.isMember(id)) {
       network.sendUnicast(new Message(Command.ERROR + " " + "User doesn't exist.", address, port));
     } else {
-      network.multicast(Command.DEL_USER + " " + username);
-      state.removeUser(username);
-      if (!state.isPlayerInGame()) {
-        state.setGameState(BaseState.GameState.FINISHED);
+      removePlayer(room, id);
+    }
+  }
+
+  /**
+   * Remove a player from its room and tell the other players. A game whose players were only
+   * waiting for this one starts, and a game left without enough players during its countdown is
+   * cancelled.
+   *
+   * @param room the room of the player
+   * @param id the ID of the player
+   */
+  private void removePlayer(Room room, int id) {
+    ServerState state = room.state;
+    String username = rooms.getUsername(id);
+    boolean wasRunning = state.isGameRunning();
+    multicast(room, Command.DEL_USER, id, username);
+    state.removeUser(id);
+    rooms.releaseUsername(username, id);
+    if (room.isGameScheduled() && state.getNumPlayers() < TypingGame.MIN_PLAYERS_FOR_GAME) {
+      cancelGame(room);
+    }
+    if (!state.isPlayerInGame()) {
+      state.setGameState(BaseState.GameState.FINISHED);
+      if (state.getNumPlayers() > 0 && state.areAllUsersReady()) {
+        state.setGameState(BaseState.GameState.WAITING);
+      }
+    }
+    if (wasRunning && !state.isGameRunning()) {
+      state.checkpointJournal();
+    }
+    if (canStartGame(room)) {
+      scheduleGame(room);
+    }
+  }
+
+  /**
+   * Cancel the countdown of a game. Binary clients already received START_GAME, so they are sent an
+   * END_GAME without a winner to stop their countdown. The players stay ready for the next game.
+   *
+   * @param room the room of the game
+   */
+  private void cancelGame(Room room) {
+    ServerState state = room.state;
+    LOGGER.info("Game in room " + room.id + " cancelled, not enough players left");
+    room.cancelCountdown();
+    for (int id : state.getMembers()) {
+      state.setInGame(id, false);
+    }
+    if (state.hasBinaryClients()) {
+      Packet packet = network.newPacket(room.multicastGroup);
+      packet.buffer.put(BinaryCodec.opcode(Command.END_GAME));
+      BinaryCodec.putVarint(packet.buffer, BinaryCodec.NO_WINNER);
+      multicastControl(room, packet);
+    }
+  }
+
+  /**
+   * Handle the first heartbeat of a text client, which is then removed once it stops sending
+   * messages like the binary clients.
+   *
+   * @param room the room of the player
+   * @param id the ID of the player
+   */
+  private void handleHeartbeat(Room room, int id) {
+    ServerState state = room.state;
+    if (state.isMember(id) && !state.getPlayers().hasHeartbeats(id)) {
+      state.setHeartbeats(id);
+      liveness.watch(id);
+    }
+  }
+
+  /**
+   * Hand the removal of a player whose session expired over to the thread of its room. Called by
+   * the liveness monitor.
+   *
+   * @param id the ID of the player
+   * @return false if the room is overloaded and the removal is to be tried again
+   */
+  private boolean expireSession(int id) {
+    Room room = rooms.getRoomOf(id);
+    return room == null || room.execute(() -> handleSessionExpired(room, id));
+  }
+
+  /**
+   * Remove a player whose session expired: its client crashed or lost the network without sending
+   * USER_QUIT. The player is kept if it was heard from in the meantime.
+   *
+   * @param room the room of the player
+   * @param id the ID of the player
+   */
+  private void handleSessionExpired(Room room, int id) {
+    if (!room.state.isMember(id)) {
+      return;
+    }
+    if (!liveness.isExpired(id)) {
+      // A restored player without heartbeats is no longer watched once heard from
+      if (rooms.getPlayers().hasHeartbeats(id)) {
+        liveness.recheck(id);
+      }
+      return;
+    }
+    LOGGER.info("Session of " + rooms.getUsername(id) + " expired in room " + room.id);
+    metrics.countSessionExpired();
+    removePlayer(room, id);
+  }
+
+  /**
+   * Multicast a command about a player to the clients of a room, as text for the text clients and
+   * as a binary frame for the binary clients. NEW_USER frames also carry the username so that
+   * binary clients learn the ID of the player. END_GAME and DEL_USER are control frames.
+   *
+   * @param room the room to multicast to
+   * @param command the command to multicast
+   * @param id the ID of the player
+   * @param username the username of the player
+   */
+  private void multicast(Room room, Command command, int id, String username) {
+    if (room.state.hasTextClients()) {
+      network.multicast(command + " " + username, room.multicastGroup);
+    }
+    if (room.state.hasBinaryClients()) {
+      Packet packet = network.newPacket(room.multicastGroup);
+      packet.buffer.put(BinaryCodec.opcode(command));
+      BinaryCodec.putVarint(packet.buffer, id);
+      if (command == Command.NEW_USER) {
+        BinaryCodec.putString(packet.buffer, username);
+      }
+      if (command == Command.END_GAME || command == Command.DEL_USER) {
+        multicastControl(room, packet);
+      } else {
+        network.send(packet);
+      }
+    }
+  }
+
+  /**
+   * Multicast a binary control frame, which moves the clients to another state: START_GAME,
+   * END_GAME or DEL_USER. The frame gets the next control sequence number of the room, and is
+   * multicast again until the players acknowledging control frames did.
+   *
+   * @param room the room to multicast to
+   * @param packet the packet holding the frame, positioned at its end
+   */
+  private void multicastControl(Room room, Packet packet) {
+    room.controlLog.append(packet.buffer, System.currentTimeMillis());
+    network.send(packet);
+    if (room.controlLog.startRetransmits()) {
+      room.schedule(() -> retransmitControl(room), ControlLog.RETRANSMIT_MS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Multicast again the control frames that some players of a room didn't acknowledge, from the
+   * oldest one missed by a player. Only the frames that were missed are sent, once for all the
+   * players that missed them.
+   *
+   * @param room the room to multicast to
+   */
+  private void retransmitControl(Room room) {
+    ControlLog log = room.controlLog;
+    PlayerTable players = room.state.getPlayers();
+    int last = log.getLastSequence();
+    int next = last + 1; // Oldest frame not acknowledged by every player
+    for (int id : room.state.getMembers()) {
+      int acked = players.getControlAcked(id);
+      if (players.isReliable(id) && acked + 1 - next < 0) {
+        next = acked + 1;
       }
     }
+    if (next - last > 0) {
+      log.stopRetransmits();
+      return;
+    }
+    if (next - log.getOldestSequence() < 0) {
+      next = log.getOldestSequence();
+    }
+    long now = System.currentTimeMillis();
+    for (int sequence = next; sequence - last <= 0; ++sequence) {
+      resendControl(room, sequence, now);
+    }
+    long delay = log.nextRetransmitDelay();
+    if (delay >= 0) {
+      room.schedule(() -> retransmitControl(room), delay, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Multicast a control frame again, unless it is no longer kept or was just sent. A START_GAME
+   * carries the delay left before the game starts, so that the clients that get it late don't start
+   * late.
+   *
+   * @param room the room to multicast to
+   * @param sequence the sequence number of the frame
+   * @param now the current time in milliseconds
+   */
+  private void resendControl(Room room, int sequence, long now) {
+    byte[] frame = room.controlLog.repair(sequence, now);
+    if (frame == null) {
+      return;
+    }
+    Packet packet = network.newPacket(room.multicastGroup);
+    if (frame[0] == BinaryCodec.opcode(Command.START_GAME)) {
+      ByteBuffer original = ByteBuffer.wrap(frame);
+      packet.buffer.put(original.get());
+      long startTime = room.controlLog.getFirstSentTime(sequence) + BinaryCodec.getVarint(original);
+      BinaryCodec.putVarint(packet.buffer, (int) Math.max(0, startTime - now));
+      packet.buffer.put(original);
+    } else {
+      packet.buffer.put(frame);
+    }
+    network.send(packet);
+    metrics.countControlRetransmit();
+  }
+
+  /**
+   * Handle the acknowledgement of the control frames of a room, or the request for a missing one.
+   * Acknowledgements are recorded right away, requests are handed over to the thread of the room.
+   *
+   * @param command CONTROL_ACK or CONTROL_NACK
+   * @param id the ID of the player
+   * @param sequence the sequence number of the last frame handled, or of the missing frame
+   * @param address the address of the player
+   * @param port the port of the player
+   */
+  private void handleControlReply(
+      Client.Command command, int id, int sequence, InetAddress address, int port) {
+    Room room = rooms.getRoomOf(id);
+    if (room == null) {
+      network.sendUnicast(new Message(Command.ERROR + " " + "User doesn't exist.", address, port));
+      return;
+    }
+    liveness.touch(id);
+    if (command == Client.Command.CONTROL_ACK) {
+      rooms.getPlayers().ackControl(id, sequence);
+    } else if (!room.execute(() -> resendControl(room, sequence, System.currentTimeMillis()))) {
+      metrics.countDropped();
+    }
   }
 
   /**
@@ -368,6 +1197,7 @@ public class Server implements Callable<Integer> {
    * @param port the port of the player
    */
   private void handleIllegalNumberOfArguments(InetAddress address, int port) {
+    metrics.countParseError();
     network.sendUnicast(
         new Message(Command.ERROR + " Illegal number of arguments.", address, port));
   }
@@ -379,6 +1209,7 @@ public class Server implements Callable<Integer> {
    * @param port the port of the player
    */
   private void handleUnknownCommand(InetAddress address, int port) {
+    metrics.countParseError();
     network.sendUnicast(new Message(Command.ERROR + " Unknown command.", address, port));
   }
 }
@@ -0,0 +1,83 @@
+package ch.heigvd.dai.commands;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Callable;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import picocli.CommandLine;
+
+@CommandLine.Command(name = "stats", description = "Print the live metrics of a running server")
+public class Stats implements Callable<Integer> {
+  @CommandLine.ParentCommand private Root parent;
+
+  @CommandLine.Option(
+      names = {"-H", "--host"},
+      description = "Host of the server (default: ${DEFAULT-VALUE}).",
+      defaultValue = "localhost")
+  protected String host;
+
+  @CommandLine.Option(
+      names = {"-p", "--port"},
+      description = "Stats port of the server (default: ${DEFAULT-VALUE}).",
+      defaultValue = "4440")
+  protected int port;
+
+  @CommandLine.Option(
+      names = {"-i", "--interval"},
+      description =
+          "Interval in seconds between two reports, 0 to print a single report (default: ${DEFAULT-VALUE}).",
+      defaultValue = "0")
+  protected int interval;
+
+  private static final Logger LOGGER = Logger.getLogger(Stats.class.getName());
+  static final int TIMEOUT_MS = 2000;
+  private static final int MAX_REPORT_SIZE = 65507;
+  private static final byte[] REQUEST = "STATS".getBytes(StandardCharsets.UTF_8);
+
+  @Override
+  public Integer call() {
+    try (DatagramSocket socket = new DatagramSocket()) {
+      socket.setSoTimeout(TIMEOUT_MS);
+      InetAddress address = InetAddress.getByName(host);
+      while (true) {
+        System.out.print(query(socket, address, port));
+        if (interval <= 0) {
+          return 0;
+        }
+        System.out.println();
+        Thread.sleep(interval * 1000L);
+      }
+    } catch (SocketTimeoutException e) {
+      LOGGER.severe("No answer from " + host + ":" + port);
+      return 1;
+    } catch (IOException e) {
+      LOGGER.log(Level.SEVERE, "Error querying the server: " + e.getMessage(), e);
+      return 1;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return 0;
+    }
+  }
+
+  /**
+   * Ask a server for its metrics.
+   *
+   * @param socket the socket to query through, with a timeout
+   * @param address the address of the server
+   * @param port the stats port of the server
+   * @return the report of the server, one metric per line
+   * @throws IOException if the query fails or times out
+   */
+  static String query(DatagramSocket socket, InetAddress address, int port) throws IOException {
+    socket.send(new DatagramPacket(REQUEST, REQUEST.length, address, port));
+    byte[] buffer = new byte[MAX_REPORT_SIZE];
+    DatagramPacket response = new DatagramPacket(buffer, buffer.length);
+    socket.receive(response);
+    return new String(response.getData(), 0, response.getLength(), StandardCharsets.UTF_8);
+  }
+}
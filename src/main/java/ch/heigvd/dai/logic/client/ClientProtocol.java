@@ -1,23 +1,66 @@
 package ch.heigvd.dai.logic.client;
 
 import ch.heigvd.dai.commands.Client;
-import ch.heigvd.dai.logic.shared.Message;
+import ch.heigvd.dai.commands.Server;
+import ch.heigvd.dai.logic.shared.BinaryCodec;
+import ch.heigvd.dai.logic.shared.DatagramSender;
+import ch.heigvd.dai.logic.shared.FragmentAssembler;
+import ch.heigvd.dai.logic.shared.Packet;
 import java.io.IOException;
 import java.net.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.logging.Logger;
 
-/** Client protocol for sending and receiving messages to the server. */
+/**
+ * Client protocol for sending and receiving messages to the server. All the unicast messages go
+ * through a single long-lived channel, which is also the address the server replies to.
+ *
+ * <p>Once joined, the game commands are sent with the protocol version negotiated with the server:
+ * text commands carrying the username, or binary frames carrying the player ID. Since version 4 of
+ * the binary protocol, a HEARTBEAT is sent when no other command was sent for a while, so that the
+ * server knows the client is still there. Since version 5, the control frames received are
+ * acknowledged, and the missing ones are asked for again.
+ *
+ * <p>Frames too large for a datagram are received as fragments, which are put back together before
+ * being given to the caller.
+ *
+ * <p>The texts of the races are fetched from the server in chunks, a few at a time, over the same
+ * channel.
+ */
 public class ClientProtocol {
 
   private static final Logger LOGGER = Logger.getLogger(ClientProtocol.class.getName());
 
   private static final int BUFFER_SIZE = 1024;
   private static final int TIMEOUT_MS = 5000;
+  private static final int DRAIN_TIMEOUT_MS = 1;
+  private static final int SEND_QUEUE_CAPACITY = 64;
+  private static final int FRAGMENT_TIMEOUT_MS = 2000;
+  private static final int TEXT_FETCH_WINDOW = 8; // Chunks requested at once
+  private static final int TEXT_FETCH_TIMEOUT_MS = 500;
+  private static final int TEXT_FETCH_ATTEMPTS = 4;
+  // Shared by all the clients of the process, such as the bots of the load generator
+  private static final ScheduledExecutorService HEARTBEATS =
+      Executors.newSingleThreadScheduledExecutor(
+          Thread.ofPlatform().name("client-heartbeats").daemon().factory());
 
-  private final InetAddress serverAddress;
-  private final int serverPort;
+  private final InetSocketAddress serverAddress;
+  private final DatagramChannel unicastChannel;
+  private final DatagramSender sender;
+  private volatile String selfUsername;
+  private volatile int selfId = -1;
+  private volatile int protocolVersion = BinaryCodec.TEXT_VERSION;
+  private volatile long lastSentTime = System.nanoTime();
+  private ScheduledFuture<?> heartbeats;
   private final InetAddress multicastAddress;
   private final int multicastPort;
   private MulticastSocket multicastSocket;
@@ -40,27 +83,181 @@ public class ClientProtocol {
       int multicastPort,
       String networkInterface)
       throws IOException {
-    this.serverAddress = InetAddress.getByName(serverHost);
-    this.serverPort = serverPort;
+    this(
+        serverHost,
+        serverPort,
+        multicastAddress,
+        multicastPort,
+        networkInterface,
+        SEND_QUEUE_CAPACITY,
+        Thread.ofPlatform().name("client-sender").daemon().factory());
+  }
+
+  /**
+   * Create a new client protocol with its own sending queue, e.g. a smaller one flushed by a
+   * virtual thread for the thousands of bots of the load generator.
+   *
+   * @param serverHost the server host to connect to
+   * @param serverPort the server port to connect to
+   * @param multicastAddress the multicast address to use
+   * @param multicastPort the multicast port to use
+   * @param networkInterface the network interface to use
+   * @param sendQueueCapacity the maximum number of messages waiting to be sent
+   * @param senderFactory the factory of the thread sending the messages
+   * @throws IOException if an error occurs while creating the sockets
+   */
+  public ClientProtocol(
+      String serverHost,
+      int serverPort,
+      String multicastAddress,
+      int multicastPort,
+      String networkInterface,
+      int sendQueueCapacity,
+      ThreadFactory senderFactory)
+      throws IOException {
+    this.serverAddress = new InetSocketAddress(InetAddress.getByName(serverHost), serverPort);
     this.multicastAddress = InetAddress.getByName(multicastAddress);
     this.multicastPort = multicastPort;
     this.networkInterface = NetworkInterface.getByName(networkInterface);
+    this.unicastChannel = DatagramChannel.open();
+    this.unicastChannel.bind(null);
+    this.sender = new DatagramSender(unicastChannel, sendQueueCapacity, BUFFER_SIZE, senderFactory);
   }
 
   /**
-   * Send a unicast message to the server.
+   * Send a unicast message to the server. The message is queued and sent by the sending thread.
    *
    * @param command the command to send
    * @param message the message to send
    * @throws IOException if an error occurs while sending the message
    */
   public void sendUnicast(Client.Command command, String message) throws IOException {
-    try (DatagramSocket socket = new DatagramSocket()) {
-      String msg = command.toString() + " " + message;
-      byte[] buffer = msg.getBytes(StandardCharsets.UTF_8);
+    try {
+      sender.send(command + " " + message, serverAddress);
+    } catch (IOException e) {
+      LOGGER.severe("Error sending message" + e.getMessage());
+      throw e;
+    }
+  }
 
-      DatagramPacket packet = new DatagramPacket(buffer, buffer.length, serverAddress, serverPort);
-      socket.send(packet);
+  /**
+   * Set the session negotiated when joining the server.
+   *
+   * @param username the username of the player
+   * @param version the protocol version to use
+   * @param id the ID of the player, only used by the binary protocol
+   */
+  public synchronized void setSession(String username, int version, int id) {
+    this.selfUsername = username;
+    this.protocolVersion = version;
+    this.selfId = id;
+    if (version >= BinaryCodec.HEARTBEAT_VERSION && heartbeats == null) {
+      heartbeats =
+          HEARTBEATS.scheduleAtFixedRate(
+              this::sendHeartbeatIfIdle,
+              BinaryCodec.HEARTBEAT_INTERVAL_MS,
+              BinaryCodec.HEARTBEAT_INTERVAL_MS,
+              TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /** Send a heartbeat, unless another command was sent since the last heartbeat interval. */
+  private void sendHeartbeatIfIdle() {
+    long idle = System.nanoTime() - lastSentTime;
+    if (idle < TimeUnit.MILLISECONDS.toNanos(BinaryCodec.HEARTBEAT_INTERVAL_MS)) {
+      return;
+    }
+    try {
+      sendCommand(Client.Command.HEARTBEAT, -1);
+    } catch (IOException e) {
+      LOGGER.warning("Failed to send a heartbeat: " + e.getMessage());
+    }
+  }
+
+  public boolean isBinary() {
+    return protocolVersion >= BinaryCodec.MIN_BINARY_VERSION;
+  }
+
+  /**
+   * Tell the server that the player is ready.
+   *
+   * @throws IOException if an error occurs while sending the message
+   */
+  public void sendReady() throws IOException {
+    sendCommand(Client.Command.USER_READY, -1);
+  }
+
+  /**
+   * Send the progress of the player to the server.
+   *
+   * @param progress the progress of the player
+   * @throws IOException if an error occurs while sending the message
+   */
+  public void sendProgress(int progress) throws IOException {
+    sendCommand(Client.Command.USER_PROGRESS, progress);
+  }
+
+  /**
+   * Tell the server that the player quits.
+   *
+   * @throws IOException if an error occurs while sending the message
+   */
+  public void sendQuit() throws IOException {
+    sendCommand(Client.Command.USER_QUIT, -1);
+  }
+
+  /**
+   * Acknowledge the control frames handled so far.
+   *
+   * @param sequence the sequence number of the last control frame handled in order
+   * @throws IOException if an error occurs while sending the message
+   */
+  public void sendControlAck(int sequence) throws IOException {
+    sendControlReply(Client.Command.CONTROL_ACK, sequence);
+  }
+
+  /**
+   * Ask the server to send a missing control frame again.
+   *
+   * @param sequence the sequence number of the missing frame
+   * @throws IOException if an error occurs while sending the message
+   */
+  public void sendControlNack(int sequence) throws IOException {
+    sendControlReply(Client.Command.CONTROL_NACK, sequence);
+  }
+
+  private void sendControlReply(Client.Command command, int sequence) throws IOException {
+    lastSentTime = System.nanoTime();
+    Packet packet = sender.allocate(serverAddress);
+    packet.buffer.put(BinaryCodec.opcode(command));
+    BinaryCodec.putVarint(packet.buffer, selfId);
+    packet.buffer.putInt(sequence);
+    sender.submit(packet);
+  }
+
+  /**
+   * Send a game command with the negotiated protocol.
+   *
+   * @param command the command to send
+   * @param progress the progress to send, only used by USER_PROGRESS
+   * @throws IOException if an error occurs while sending the message
+   */
+  private void sendCommand(Client.Command command, int progress) throws IOException {
+    lastSentTime = System.nanoTime();
+    if (!isBinary()) {
+      sendUnicast(
+          command,
+          command == Client.Command.USER_PROGRESS ? selfUsername + " " + progress : selfUsername);
+      return;
+    }
+    Packet packet = sender.allocate(serverAddress);
+    packet.buffer.put(BinaryCodec.opcode(command));
+    BinaryCodec.putVarint(packet.buffer, selfId);
+    if (command == Client.Command.USER_PROGRESS) {
+      packet.buffer.put((byte) progress);
+    }
+    try {
+      sender.submit(packet);
     } catch (IOException e) {
       LOGGER.severe("Error sending message" + e.getMessage());
       throw e;
@@ -68,32 +265,44 @@ public class ClientProtocol {
   }
 
   /**
-   * Send a unicast message to the server and wait for a response.
+   * Send a unicast message to the server and wait for a response. Replies left over from previous
+   * requests, such as a late answer to a request that timed out, are dropped before sending, so
+   * that they are not taken for the answer to this request.
    *
    * @param command the command to send
    * @param message the message to send
-   * @return the response message
+   * @return the response, either a text or a binary frame
    * @throws SocketTimeoutException if the response is not received within the timeout
    * @throws IOException if an error occurs while sending the message
    */
-  public Message sendWithResponseUnicast(Client.Command command, String message)
+  public ByteBuffer sendWithResponseUnicast(Client.Command command, String message)
       throws IOException {
-    try (DatagramSocket socket = new DatagramSocket()) {
+    try {
+      DatagramSocket socket = unicastChannel.socket();
+      drainStaleReplies(socket);
       String msg = command.toString() + " " + message;
       byte[] buffer = msg.getBytes(StandardCharsets.UTF_8);
 
-      DatagramPacket packet = new DatagramPacket(buffer, buffer.length, serverAddress, serverPort);
+      DatagramPacket packet = new DatagramPacket(buffer, buffer.length, serverAddress);
       socket.send(packet);
 
-      // Receive
+      // Receive, until all the fragments of a large response arrived
       socket.setSoTimeout(TIMEOUT_MS);
-      buffer = new byte[BUFFER_SIZE];
-      packet = new DatagramPacket(buffer, buffer.length);
-      socket.receive(packet);
-      String res =
-          new String(
-              packet.getData(), packet.getOffset(), packet.getLength(), StandardCharsets.UTF_8);
-      return new Message(res, packet.getAddress(), packet.getPort());
+      FragmentAssembler assembler = new FragmentAssembler(TIMEOUT_MS);
+      while (true) {
+        buffer = new byte[BUFFER_SIZE];
+        packet = new DatagramPacket(buffer, buffer.length);
+        socket.receive(packet);
+        ByteBuffer response =
+            ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength());
+        if (!FragmentAssembler.isFragment(response)) {
+          return response;
+        }
+        response = assembler.accept(response, System.currentTimeMillis());
+        if (response != null) {
+          return response;
+        }
+      }
     } catch (SocketTimeoutException e) {
       LOGGER.severe("Timeout waiting for server response");
       throw e;
@@ -104,28 +313,171 @@ public class ClientProtocol {
   }
 
   /**
-   * Listen to multicast messages. This function will block until the socket is closed.
+   * Drop the datagrams waiting on the unicast channel.
+   *
+   * @param socket the socket of the unicast channel
+   * @throws IOException if an error occurs while receiving
+   */
+  private static void drainStaleReplies(DatagramSocket socket) throws IOException {
+    socket.setSoTimeout(DRAIN_TIMEOUT_MS);
+    DatagramPacket packet = new DatagramPacket(new byte[BUFFER_SIZE], BUFFER_SIZE);
+    try {
+      while (true) {
+        socket.receive(packet);
+        LOGGER.fine("Dropped a stale reply of " + packet.getLength() + " bytes");
+        packet.setLength(BUFFER_SIZE);
+      }
+    } catch (SocketTimeoutException e) {
+      // Nothing left
+    }
+  }
+
+  /**
+   * Fetch the text of a race from the server. The missing chunks are requested a window at a time,
+   * and requested again when no chunk arrives in time. Must not be called while waiting for another
+   * response.
+   *
+   * @param id the ID of the text on the server
+   * @param hash the hash of the text
+   * @param length the length of the text in bytes
+   * @return the text
+   * @throws SocketTimeoutException if the server stops answering
+   * @throws IOException if an error occurs while fetching or if the text doesn't match its hash
+   */
+  public String fetchText(int id, long hash, int length) throws IOException {
+    byte[] text = new byte[length];
+    boolean[] received = new boolean[BinaryCodec.numTextChunks(length)];
+    int numMissing = received.length;
+    DatagramSocket socket = unicastChannel.socket();
+    byte[] buffer = new byte[BUFFER_SIZE];
+    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+    int numTimeouts = 0;
+    while (numMissing > 0) {
+      int numRequested = 0;
+      for (int chunk = 0; chunk < received.length && numRequested < TEXT_FETCH_WINDOW; ++chunk) {
+        if (!received[chunk]) {
+          sendTextRequest(id, chunk);
+          ++numRequested;
+        }
+      }
+      socket.setSoTimeout(TEXT_FETCH_TIMEOUT_MS);
+      try {
+        while (numRequested > 0) {
+          packet.setLength(buffer.length);
+          socket.receive(packet);
+          int chunk = readTextChunk(ByteBuffer.wrap(buffer, 0, packet.getLength()), id, text);
+          if (chunk >= 0 && !received[chunk]) {
+            received[chunk] = true;
+            --numMissing;
+            --numRequested;
+          }
+        }
+        numTimeouts = 0;
+      } catch (SocketTimeoutException e) {
+        if (++numTimeouts == TEXT_FETCH_ATTEMPTS) {
+          LOGGER.severe("Timeout fetching text " + id);
+          throw e;
+        }
+      }
+    }
+    if (BinaryCodec.textHash(text) != hash) {
+      throw new IOException("Text " + id + " doesn't match its hash");
+    }
+    return new String(text, StandardCharsets.UTF_8);
+  }
+
+  private void sendTextRequest(int id, int chunk) throws IOException {
+    Packet packet = sender.allocate(serverAddress);
+    packet.buffer.put(BinaryCodec.opcode(Client.Command.TEXT_REQUEST));
+    BinaryCodec.putVarint(packet.buffer, selfId);
+    BinaryCodec.putVarint(packet.buffer, id);
+    BinaryCodec.putVarint(packet.buffer, chunk);
+    sender.submit(packet);
+  }
+
+  /**
+   * Copy a chunk of a text into the text. Other frames, such as late answers to other requests, are
+   * ignored.
    *
-   * @param messageHandler the handler to call for each message
+   * @param frame the frame received
+   * @param id the ID of the text
+   * @param text the text to copy the chunk into
+   * @return the index of the chunk, or -1 if the frame isn't a valid chunk of the text
+   */
+  private static int readTextChunk(ByteBuffer frame, int id, byte[] text) {
+    try {
+      if (!BinaryCodec.isBinary(frame)
+          || Server.Command.fromOpcode(frame.get()) != Server.Command.TEXT_CHUNK
+          || BinaryCodec.getVarint(frame) != id) {
+        return -1;
+      }
+      int chunk = BinaryCodec.getVarint(frame);
+      int offset = chunk * BinaryCodec.TEXT_CHUNK_SIZE;
+      if (chunk >= BinaryCodec.numTextChunks(text.length)
+          || frame.remaining() != Math.min(BinaryCodec.TEXT_CHUNK_SIZE, text.length - offset)) {
+        return -1;
+      }
+      frame.get(text, offset, frame.remaining());
+      return chunk;
+    } catch (BufferUnderflowException | IllegalArgumentException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Listen to multicast messages. This function will block until the socket is closed. The buffer
+   * given to the handler is reused for the next message and must not be kept.
+   *
+   * @param messageHandler the handler to call for each message, text or binary frame
+   * @throws IOException if an error occurs while listening
+   */
+  public void listenToMulticast(Consumer<ByteBuffer> messageHandler) throws IOException {
+    listenToMulticast(messageHandler, 0, null);
+  }
+
+  /**
+   * Listen to multicast messages, and call another handler when no message arrived for a while.
+   * This function will block until the socket is closed. The buffer given to the handler is reused
+   * for the next message and must not be kept.
+   *
+   * @param messageHandler the handler to call for each message, text or binary frame
+   * @param idleMs the time without messages after which the idle handler is called, 0 for never
+   * @param idleHandler the handler to call when no message arrived for {@code idleMs}, on the same
+   *     thread as the message handler
    * @throws IOException if an error occurs while listening
    */
-  public void listenToMulticast(Consumer<String> messageHandler) throws IOException {
+  public void listenToMulticast(
+      Consumer<ByteBuffer> messageHandler, int idleMs, Runnable idleHandler) throws IOException {
     this.multicastSocket = new MulticastSocket(multicastPort);
     try {
+      multicastSocket.setSoTimeout(idleMs);
       multicastSocket.joinGroup(
           new InetSocketAddress(multicastAddress, multicastPort), networkInterface);
 
       LOGGER.info("Listening to multicast messages on " + multicastAddress + ":" + multicastPort);
 
+      byte[] buffer = new byte[BUFFER_SIZE];
+      ByteBuffer message = ByteBuffer.wrap(buffer);
+      DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+      FragmentAssembler assembler = new FragmentAssembler(FRAGMENT_TIMEOUT_MS);
       while (multicastSocket.isBound() && !multicastSocket.isClosed()) {
-        byte[] buffer = new byte[BUFFER_SIZE];
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-        multicastSocket.receive(packet);
-
-        String message =
-            new String(
-                packet.getData(), packet.getOffset(), packet.getLength(), StandardCharsets.UTF_8);
-        messageHandler.accept(message);
+        packet.setLength(buffer.length);
+        try {
+          multicastSocket.receive(packet);
+        } catch (SocketTimeoutException e) {
+          idleHandler.run();
+          continue;
+        }
+
+        message.clear().limit(packet.getLength());
+        if (!FragmentAssembler.isFragment(message)) {
+          messageHandler.accept(message);
+          continue;
+        }
+        ByteBuffer frame = assembler.accept(message, System.currentTimeMillis());
+        if (frame != null) {
+          messageHandler.accept(frame);
+        }
       }
     } catch (IOException e) {
       LOGGER.severe("Error during multicast listening: " + e.getMessage());
@@ -137,6 +489,21 @@ public class ClientProtocol {
     }
   }
 
+  /**
+   * Close the unicast channel. The messages already queued are sent before closing.
+   *
+   * @throws IOException if an error occurs while closing the channel
+   */
+  public void closeUnicast() throws IOException {
+    synchronized (this) {
+      if (heartbeats != null) {
+        heartbeats.cancel(false);
+      }
+    }
+    sender.close();
+    unicastChannel.close();
+  }
+
   /**
    * Close the multicast socket.
    *
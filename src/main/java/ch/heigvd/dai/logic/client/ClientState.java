@@ -3,14 +3,24 @@ package ch.heigvd.dai.logic.client;
 import ch.heigvd.dai.logic.client.ui.event.UIEvent;
 import ch.heigvd.dai.logic.client.ui.event.UIEventListener;
 import ch.heigvd.dai.logic.shared.BaseState;
+import ch.heigvd.dai.logic.shared.InternTable;
 import ch.heigvd.dai.logic.shared.Player;
+import ch.heigvd.dai.logic.shared.Tokenizer;
+import java.util.Arrays;
 import java.util.concurrent.ConcurrentHashMap;
 
 /** Client state for the client logic. */
 public class ClientState extends BaseState {
+  // Progress frames received this much out of order are rather from a restarted server
+  private static final int MAX_PROGRESS_REORDER = 64;
+
   private final ConcurrentHashMap<String, Player> players;
+  private final InternTable usernames = new InternTable();
   private final String selfUsername;
   private UIEventListener uiEventListener;
+  private String[] usernamesById = new String[16];
+  private int lastProgressSequence = -1;
+  private volatile long gameStartTime = -1;
 
   public ClientState(String selfUsername) {
     this.selfUsername = selfUsername;
@@ -36,12 +46,76 @@ public class ClientState extends BaseState {
   }
 
   public void addPlayer(String username) {
-    players.put(username, new Player());
+    players.put(usernames.intern(username), new Player());
+  }
+
+  /**
+   * Find a known player from the current token of a tokenizer.
+   *
+   * @param tokenizer the tokenizer positioned on the username
+   * @return the username of the player or null if the player is unknown
+   */
+  public String findPlayer(Tokenizer tokenizer) {
+    return tokenizer.tokenInterned(usernames);
+  }
+
+  /**
+   * Remember the ID of a player, as given by the binary protocol.
+   *
+   * @param id the ID of the player
+   * @param username the username of the player
+   */
+  public synchronized void setPlayerId(int id, String username) {
+    if (id >= usernamesById.length) {
+      usernamesById = Arrays.copyOf(usernamesById, Math.max(id + 1, usernamesById.length * 2));
+    }
+    usernamesById[id] = username;
+  }
+
+  /**
+   * Get the username of a player from its ID.
+   *
+   * @param id the ID of the player
+   * @return the username or null if the ID is unknown
+   */
+  public synchronized String getUsername(int id) {
+    return id >= 0 && id < usernamesById.length ? usernamesById[id] : null;
+  }
+
+  /**
+   * Forget the ID of a player.
+   *
+   * @param id the ID of the player
+   */
+  public synchronized void removePlayerId(int id) {
+    if (id >= 0 && id < usernamesById.length) {
+      usernamesById[id] = null;
+    }
+  }
+
+  /**
+   * Check if a progress frame must be applied and remember its sequence number. Frames older than
+   * the last applied one are dropped, keyframes included, so that a late keyframe never rewinds the
+   * progress. Only a keyframe far behind, which comes from a restarted server rather than from the
+   * network, starts the sequence over.
+   *
+   * @param sequence the sequence number of the frame
+   * @param keyframe whether the frame is a keyframe
+   * @return true if the frame is to be applied
+   */
+  public synchronized boolean acceptProgressSequence(int sequence, boolean keyframe) {
+    boolean restarted = keyframe && lastProgressSequence - sequence > MAX_PROGRESS_REORDER;
+    if (sequence <= lastProgressSequence && !restarted) {
+      return false;
+    }
+    lastProgressSequence = sequence;
+    return true;
   }
 
   public void removePlayer(String username) {
     assert players.containsKey(username);
     players.remove(username);
+    usernames.remove(username);
   }
 
   public synchronized void resetPlayers() {
@@ -74,6 +148,19 @@ public class ClientState extends BaseState {
     fireUIEvent(new UIEvent(UIEvent.EventType.GAME_STATE_CHANGED, gameState));
   }
 
+  /**
+   * Get the time at which the next game starts, as announced by the server.
+   *
+   * @return the start time in milliseconds since the epoch, or -1 if no game is scheduled
+   */
+  public long getGameStartTime() {
+    return gameStartTime;
+  }
+
+  public void setGameStartTime(long gameStartTime) {
+    this.gameStartTime = gameStartTime;
+  }
+
   public void setUIEventListener(UIEventListener listener) {
     uiEventListener = listener;
   }
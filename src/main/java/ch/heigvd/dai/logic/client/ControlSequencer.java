@@ -0,0 +1,140 @@
+package ch.heigvd.dai.logic.client;
+
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * Puts the control frames of the server (START_GAME, END_GAME and DEL_USER) back in order. Each
+ * control frame of a room ends with a sequence number, so a missing frame shows up as a gap: the
+ * frames after it wait until it is sent again, and frames already handled are dropped. A client
+ * thus never ends a game it already left, or starts one before the previous one ended.
+ *
+ * <p>If a missing frame never comes, the frames waiting for it are handled anyway after a timeout,
+ * checked with {@link #expire} even when no other control frame arrives. A sequence number far from
+ * the expected one means that the server restarted, and the sequence starts over from there.
+ *
+ * <p>Only used by the thread receiving the multicast frames.
+ */
+public class ControlSequencer {
+  /** Number of frames that can wait for a missing one, as many as the server keeps. */
+  private static final int WINDOW = 64;
+
+  private static final int MASK = WINDOW - 1;
+
+  private final ByteBuffer[] waiting = new ByteBuffer[WINDOW];
+  private final long gapTimeoutMs;
+  private int next; // Sequence number of the next frame to handle
+  private int numWaiting = 0;
+  private long gapSince;
+
+  /**
+   * Create a new sequencer.
+   *
+   * @param lastSequence the sequence number of the last control frame sent before joining
+   * @param gapTimeoutMs the time after which the frames waiting for a missing one are handled
+   */
+  public ControlSequencer(int lastSequence, long gapTimeoutMs) {
+    this.next = lastSequence + 1;
+    this.gapTimeoutMs = gapTimeoutMs;
+  }
+
+  /**
+   * Accept a control frame, and handle the frames that are now in order.
+   *
+   * @param sequence the sequence number of the frame
+   * @param frame the frame, copied if it has to wait
+   * @param now the current time in milliseconds
+   * @param handler called with each frame to handle, in order
+   */
+  public void accept(int sequence, ByteBuffer frame, long now, Consumer<ByteBuffer> handler) {
+    int offset = sequence - next;
+    if (offset <= -WINDOW || offset >= WINDOW) {
+      // The server restarted with other sequence numbers
+      clear();
+      next = sequence;
+      offset = 0;
+    }
+    if (offset == 0) {
+      ++next;
+      handler.accept(frame);
+      handleWaiting(handler, now);
+    } else if (offset > 0 && waiting[sequence & MASK] == null) {
+      waiting[sequence & MASK] = ByteBuffer.allocate(frame.remaining()).put(frame).flip();
+      if (numWaiting++ == 0) {
+        gapSince = now;
+      }
+    }
+    expire(now, handler);
+  }
+
+  /**
+   * Handle the frames waiting for missing ones for longer than the timeout, giving up on the
+   * missing frames.
+   *
+   * @param now the current time in milliseconds
+   * @param handler called with each frame to handle, in order
+   */
+  public void expire(long now, Consumer<ByteBuffer> handler) {
+    if (numWaiting > 0 && now - gapSince >= gapTimeoutMs) {
+      // Give up on the missing frames before the first waiting one
+      while (waiting[next & MASK] == null) {
+        ++next;
+      }
+      handleWaiting(handler, now);
+    }
+  }
+
+  /**
+   * Handle the waiting frames that follow the last frame handled.
+   *
+   * @param handler called with each frame to handle, in order
+   * @param now the current time in milliseconds
+   */
+  private void handleWaiting(Consumer<ByteBuffer> handler, long now) {
+    if (numWaiting == 0) {
+      return;
+    }
+    ByteBuffer frame;
+    while ((frame = waiting[next & MASK]) != null) {
+      waiting[next & MASK] = null;
+      --numWaiting;
+      ++next;
+      handler.accept(frame);
+    }
+    // Another gap, counted from now
+    gapSince = now;
+  }
+
+  private void clear() {
+    for (int i = 0; i < WINDOW; ++i) {
+      waiting[i] = null;
+    }
+    numWaiting = 0;
+  }
+
+  /**
+   * Get the sequence number of the last frame handled, which is acknowledged to the server.
+   *
+   * @return the sequence number
+   */
+  public int getLastHandled() {
+    return next - 1;
+  }
+
+  /**
+   * List the missing frames that waiting frames come after.
+   *
+   * @param action called with the sequence number of each missing frame
+   */
+  public void forEachMissing(IntConsumer action) {
+    int numFound = 0;
+    for (int sequence = next; numFound < numWaiting; ++sequence) {
+      if (waiting[sequence & MASK] == null) {
+        action.accept(sequence);
+      } else {
+        ++numFound;
+      }
+    }
+  }
+}
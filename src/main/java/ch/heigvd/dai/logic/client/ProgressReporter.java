@@ -0,0 +1,102 @@
+package ch.heigvd.dai.logic.client;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Coalesces the progress updates of the player before sending them to the server. A value equal to
+ * the last one sent is dropped, and at most one update is sent per interval: the values reported in
+ * between are merged into the latest one, sent at the end of the interval. Completing the race is
+ * always sent immediately.
+ */
+public class ProgressReporter {
+  private static final Logger LOGGER = Logger.getLogger(ProgressReporter.class.getName());
+  private static final int COMPLETED = 100;
+
+  private final ClientProtocol network;
+  private final long intervalNanos;
+  private final ScheduledExecutorService timer =
+      Executors.newSingleThreadScheduledExecutor(
+          Thread.ofVirtual().name("progress-reporter").factory());
+  private int lastSent = -1;
+  private long lastSentTime;
+  private int pending = -1;
+  private ScheduledFuture<?> pendingFlush;
+
+  /**
+   * Create a new progress reporter.
+   *
+   * @param network the protocol to send the updates through
+   * @param intervalMs the minimum interval between two updates, in milliseconds
+   */
+  public ProgressReporter(ClientProtocol network, long intervalMs) {
+    this.network = network;
+    this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMs);
+  }
+
+  /**
+   * Report the progress of the player.
+   *
+   * @param progress the progress of the player
+   * @throws IOException if an error occurs while sending the update
+   */
+  public synchronized void report(int progress) throws IOException {
+    if (progress == lastSent) {
+      // The server is already up to date
+      cancelPending();
+      return;
+    }
+    long now = System.nanoTime();
+    if (progress == COMPLETED || lastSent < 0 || now - lastSentTime >= intervalNanos) {
+      send(progress, now);
+      return;
+    }
+    pending = progress;
+    if (pendingFlush == null) {
+      pendingFlush =
+          timer.schedule(
+              this::flushPending, lastSentTime + intervalNanos - now, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  /** Forget the progress sent, for a new game. */
+  public synchronized void reset() {
+    cancelPending();
+    lastSent = -1;
+  }
+
+  /** Stop the reporter. Pending updates are dropped. */
+  public void close() {
+    timer.shutdownNow();
+  }
+
+  /** Send the update merged during the last interval. */
+  private synchronized void flushPending() {
+    pendingFlush = null;
+    if (pending < 0) return;
+    try {
+      send(pending, System.nanoTime());
+    } catch (IOException e) {
+      LOGGER.severe("Error sending progress: " + e.getMessage());
+    }
+  }
+
+  private void send(int progress, long now) throws IOException {
+    cancelPending();
+    lastSent = progress;
+    lastSentTime = now;
+    network.sendProgress(progress);
+  }
+
+  private void cancelPending() {
+    pending = -1;
+    if (pendingFlush != null) {
+      pendingFlush.cancel(false);
+      pendingFlush = null;
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package ch.heigvd.dai.logic.client;
+
+import ch.heigvd.dai.logic.shared.BinaryCodec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HexFormat;
+import java.util.logging.Logger;
+
+/**
+ * Cache of the texts of the races on disk, addressed by their hash. A text is fetched from the
+ * server the first time it is raced on, and read from the cache afterwards, whatever server it
+ * comes from. Each text is stored in its own file named after its hash, which is checked on read.
+ */
+public class TextCache {
+  private static final Logger LOGGER = Logger.getLogger(TextCache.class.getName());
+
+  private final Path directory;
+
+  /**
+   * Create a new cache. The directory is created when the first text is stored.
+   *
+   * @param directory the directory of the cache
+   */
+  public TextCache(Path directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * Get a text from the cache.
+   *
+   * @param hash the hash of the text
+   * @return the text, or null if it isn't in the cache
+   */
+  public String get(long hash) {
+    Path path = pathOf(hash);
+    try {
+      byte[] text = Files.readAllBytes(path);
+      if (BinaryCodec.textHash(text) == hash) {
+        return new String(text, StandardCharsets.UTF_8);
+      }
+      LOGGER.warning("Removing corrupted cached text " + path);
+      Files.deleteIfExists(path);
+    } catch (NoSuchFileException e) {
+      // Not cached yet
+    } catch (IOException e) {
+      LOGGER.warning("Could not read cached text " + path + ": " + e.getMessage());
+    }
+    return null;
+  }
+
+  /**
+   * Store a text in the cache. The text is written to a temporary file first, so that a text is
+   * never read half written.
+   *
+   * @param hash the hash of the text
+   * @param text the text
+   */
+  public void put(long hash, String text) {
+    Path path = pathOf(hash);
+    Path temp = null;
+    try {
+      Files.createDirectories(directory);
+      temp = Files.createTempFile(directory, "text", ".tmp");
+      Files.writeString(temp, text, StandardCharsets.UTF_8);
+      Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      LOGGER.warning("Could not cache text " + path + ": " + e.getMessage());
+      try {
+        if (temp != null) Files.deleteIfExists(temp);
+      } catch (IOException ignored) {
+        // Only a leftover temporary file
+      }
+    }
+  }
+
+  private Path pathOf(long hash) {
+    return directory.resolve(HexFormat.of().toHexDigits(hash) + ".txt");
+  }
+}
@@ -0,0 +1,101 @@
+package ch.heigvd.dai.logic.client;
+
+import java.util.BitSet;
+
+/**
+ * What the player typed of the race text. The number of correct characters and the positions of the
+ * typing errors are updated with each keystroke, so that typing and computing the progress take
+ * constant time whatever the length of the text.
+ */
+public class TypingModel {
+  private static final int COMPLETED = 100;
+
+  private final String text;
+  private final char[] typed;
+  private final BitSet errors;
+  private int cursor = 0;
+  private int numCorrect = 0;
+
+  /**
+   * Create a new typing model.
+   *
+   * @param text the text to type
+   */
+  public TypingModel(String text) {
+    this.text = text;
+    this.typed = new char[text.length()];
+    this.errors = new BitSet(text.length());
+  }
+
+  /**
+   * Type a character at the cursor.
+   *
+   * @param c the character typed
+   * @return true if the character was typed, false if the whole text is already typed
+   */
+  public boolean type(char c) {
+    if (cursor >= typed.length) return false;
+    typed[cursor] = c;
+    if (c == text.charAt(cursor)) {
+      numCorrect++;
+    } else {
+      errors.set(cursor);
+    }
+    cursor++;
+    return true;
+  }
+
+  /**
+   * Erase the character before the cursor.
+   *
+   * @return true if a character was erased, false if nothing is typed
+   */
+  public boolean backspace() {
+    if (cursor == 0) return false;
+    cursor--;
+    if (errors.get(cursor)) {
+      errors.clear(cursor);
+    } else {
+      numCorrect--;
+    }
+    return true;
+  }
+
+  /**
+   * Get the progress of the player. The progress only reaches 100 once the whole text is typed
+   * without errors.
+   *
+   * @return the progress, between 0 and 100
+   */
+  public int getProgress() {
+    if (text.isEmpty()) return COMPLETED;
+    if (numCorrect == text.length()) return COMPLETED;
+    return (int) Math.min(Math.round((double) numCorrect / text.length() * 100), COMPLETED - 1);
+  }
+
+  /**
+   * Check if the character at a position was mistyped.
+   *
+   * @param index the position in the text
+   * @return true if the character is typed and differs from the text
+   */
+  public boolean isError(int index) {
+    return errors.get(index);
+  }
+
+  public String getText() {
+    return text;
+  }
+
+  public int getCursor() {
+    return cursor;
+  }
+
+  public int getNumCorrect() {
+    return numCorrect;
+  }
+
+  public int getNumErrors() {
+    return cursor - numCorrect;
+  }
+}
@@ -2,6 +2,7 @@ package ch.heigvd.dai.logic.client.ui;
 
 import ch.heigvd.dai.logic.client.ClientProtocol;
 import ch.heigvd.dai.logic.client.ClientState;
+import ch.heigvd.dai.logic.client.ProgressReporter;
 import ch.heigvd.dai.logic.client.ui.display.DisplayState;
 import ch.heigvd.dai.logic.client.ui.display.GameOverDisplayState;
 import ch.heigvd.dai.logic.client.ui.display.LobbyDisplayState;
@@ -11,39 +12,76 @@ import ch.heigvd.dai.logic.client.ui.event.UIEventListener;
 import ch.heigvd.dai.logic.shared.BaseState;
 import com.googlecode.lanterna.graphics.TextGraphics;
 import com.googlecode.lanterna.input.KeyStroke;
+import com.googlecode.lanterna.input.KeyType;
 import com.googlecode.lanterna.screen.Screen;
 import com.googlecode.lanterna.screen.TerminalScreen;
 import com.googlecode.lanterna.terminal.DefaultTerminalFactory;
 import com.googlecode.lanterna.terminal.Terminal;
 import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
-/** The client UI. */
+/**
+ * The client UI. The UI thread sleeps until something happens: a key stroke read by the input
+ * thread, or an event posted by the client logic. Both are queued and handled in order on the UI
+ * thread, and a frame is only drawn when something changed, at most {@link #MAX_FPS} times per
+ * second.
+ */
 public class TerminalUI extends Thread implements UIEventListener {
   private static final Logger LOGGER = Logger.getLogger(TerminalUI.class.getName());
-  private static final int REFRESH_INTERVAL_MS = 50;
-  private boolean running = true;
+  private static final int MAX_FPS = 30;
+  private static final long MIN_FRAME_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1) / MAX_FPS;
+  private static final Object RENDER_REQUEST = new Object();
+  private volatile boolean running = true;
+  private final LinkedBlockingQueue<Object> events = new LinkedBlockingQueue<>();
+  private final AtomicBoolean renderRequested = new AtomicBoolean(false);
   private final ClientState state;
   private final ClientProtocol network;
+  private final ProgressReporter progressReporter;
   private DisplayState currentDisplay;
 
   private Terminal terminal;
   private Screen screen;
 
-  public TerminalUI(ClientState state, ClientProtocol network) {
+  public TerminalUI(ClientState state, ClientProtocol network, ProgressReporter progressReporter) {
     this.state = state;
     this.network = network;
+    this.progressReporter = progressReporter;
     this.currentDisplay = new LobbyDisplayState(this);
     state.setUIEventListener(this);
   }
 
   /**
-   * Update the UI state based on the given UI event.
+   * Queue a UI event, to be handled on the UI thread.
    *
-   * @param event the UI event to handle
+   * @param event the UI event
    */
   @Override
   public void onUIEvent(UIEvent event) {
+    if (event.getType() == UIEvent.EventType.STATE_UPDATED) {
+      requestRender();
+    } else {
+      events.offer(event);
+    }
+  }
+
+  /**
+   * Ask for a new frame. Requests made before the frame is drawn are merged into a single frame.
+   */
+  public void requestRender() {
+    if (renderRequested.compareAndSet(false, true)) {
+      events.offer(RENDER_REQUEST);
+    }
+  }
+
+  /**
+   * Update the UI state based on the given UI event.
+   *
+   * @param event the UI event to handle
+   */
+  private void handleUIEvent(UIEvent event) {
     switch (event.getType()) {
       case GAME_STATE_CHANGED:
         BaseState.GameState newState = (BaseState.GameState) event.getData();
@@ -95,31 +133,76 @@ public class TerminalUI extends Thread implements UIEventListener {
   }
 
   private void gameLoop() throws IOException, InterruptedException {
-    long lastRenderTime = 0;
+    Thread.ofVirtual().name("terminal-input").start(this::readInput);
+
+    long lastRenderTime = System.nanoTime() - MIN_FRAME_INTERVAL_NANOS;
+    DisplayState renderedDisplay = null;
+    boolean dirty = true;
 
     while (running) {
-      KeyStroke keyStroke = screen.pollInput();
-      if (keyStroke != null) {
-        currentDisplay.handleInput(keyStroke);
+      // Sleep until an event arrives, or until the next frame is due
+      long now = System.nanoTime();
+      long timeout;
+      if (dirty) {
+        timeout = lastRenderTime + MIN_FRAME_INTERVAL_NANOS - now;
+      } else {
+        long refreshDelay = currentDisplay.getRefreshDelay();
+        timeout = refreshDelay < 0 ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(refreshDelay);
+        dirty = refreshDelay >= 0;
+      }
+      Object event = events.poll(Math.max(0, timeout), TimeUnit.NANOSECONDS);
+      for (; event != null && running; event = events.poll()) {
+        if (event instanceof KeyStroke keyStroke) {
+          currentDisplay.handleInput(keyStroke);
+        } else if (event instanceof UIEvent uiEvent) {
+          handleUIEvent(uiEvent);
+        } else {
+          renderRequested.set(false);
+        }
+        dirty = true;
       }
+      if (!running) break;
 
       // Render the current display state
-      long currentTime = System.currentTimeMillis();
-      if (currentTime - lastRenderTime >= REFRESH_INTERVAL_MS) {
+      now = System.nanoTime();
+      if (dirty && now - lastRenderTime >= MIN_FRAME_INTERVAL_NANOS) {
+        DisplayState display = currentDisplay;
+        boolean resized = screen.doResizeIfNecessary() != null;
         TextGraphics tg = screen.newTextGraphics();
-        tg.fill(' ');
-        currentDisplay.render(tg);
-        screen.refresh();
-        Thread.yield(); // Allow other threads to take cpu time
-        lastRenderTime = currentTime;
+        // Incremental displays only draw what changed, on top of their previous frame
+        if (!display.isIncremental() || display != renderedDisplay || resized) {
+          tg.fill(' ');
+          display.invalidate();
+        }
+        display.render(tg);
+        screen.refresh(resized ? Screen.RefreshType.COMPLETE : Screen.RefreshType.DELTA);
+        renderedDisplay = display;
+        lastRenderTime = now;
+        dirty = false;
       }
+    }
+  }
 
-      Thread.sleep(10);
+  /** Read the key strokes of the user and queue them, until the UI ends. */
+  private void readInput() {
+    try {
+      while (running) {
+        KeyStroke keyStroke = screen.readInput();
+        if (keyStroke == null || keyStroke.getKeyType() == KeyType.EOF) {
+          break;
+        }
+        events.offer(keyStroke);
+      }
+    } catch (IOException | RuntimeException e) {
+      if (running) {
+        LOGGER.severe("Error reading input: " + e.getMessage());
+      }
     }
   }
 
   public void end() {
     running = false;
+    events.offer(RENDER_REQUEST); // Wake the UI thread up
   }
 
   private void cleanup() {
@@ -146,4 +229,8 @@ public class TerminalUI extends Thread implements UIEventListener {
   public ClientProtocol getNetwork() {
     return network;
   }
+
+  public ProgressReporter getProgressReporter() {
+    return progressReporter;
+  }
 }
@@ -22,6 +22,29 @@ public abstract class DisplayState {
    */
   public abstract void render(TextGraphics tg) throws IOException;
 
+  /**
+   * Check if the display state only draws what changed since its last frame. The screen is then
+   * only cleared when {@link #invalidate()} is called, otherwise it is cleared before each frame.
+   *
+   * @return true if the display state renders incrementally
+   */
+  public boolean isIncremental() {
+    return false;
+  }
+
+  /**
+   * Get the delay until the display state must be drawn again when nothing happens, for displays
+   * that change over time.
+   *
+   * @return the delay in milliseconds, or -1 if the display only changes on events
+   */
+  public long getRefreshDelay() {
+    return -1;
+  }
+
+  /** Forget what was drawn, the screen was cleared and the next frame must draw everything. */
+  public void invalidate() {}
+
   /**
    * Handle input from the user.
    *
@@ -1,6 +1,5 @@
 package ch.heigvd.dai.logic.client.ui.display;
 
-import ch.heigvd.dai.commands.Client;
 import ch.heigvd.dai.logic.client.ui.TerminalUI;
 import ch.heigvd.dai.logic.server.TypingGame;
 import ch.heigvd.dai.logic.shared.Player;
@@ -91,7 +90,11 @@ public class LobbyDisplayState extends DisplayState {
     if (!self.isReady() && !ui.getClientState().isPlayerInGame()) {
       tg.putString(0, ++offset, "Press ENTER when ready");
     } else if (allPlayersReady && numConnected >= TypingGame.MIN_PLAYERS_FOR_GAME) {
-      if (gameStartTime == -1) {
+      long scheduledStartTime = ui.getClientState().getGameStartTime();
+      if (scheduledStartTime != -1) {
+        // Start time given by the server
+        gameStartTime = scheduledStartTime;
+      } else if (gameStartTime == -1) {
         gameStartTime = System.currentTimeMillis() + TypingGame.GAME_START_DELAY * 1000;
       }
       long remainingTime = Math.max(0, (gameStartTime - System.currentTimeMillis()) / 1000);
@@ -101,6 +104,14 @@ public class LobbyDisplayState extends DisplayState {
     }
   }
 
+  @Override
+  public long getRefreshDelay() {
+    long remaining = gameStartTime - System.currentTimeMillis();
+    if (gameStartTime == -1 || remaining <= 0) return -1;
+    // Redraw when the countdown changes
+    return remaining % 1000 + 1;
+  }
+
   @Override
   public void handleInput(KeyStroke keyStroke) throws IOException {
     super.handleInput(keyStroke);
@@ -111,7 +122,7 @@ public class LobbyDisplayState extends DisplayState {
         && !ui.getClientState().isPlayerInGame()) {
       String selfUsername = ui.getClientState().getSelfUsername();
       ui.getClientState().setPlayerReady(selfUsername);
-      ui.getNetwork().sendUnicast(Client.Command.USER_READY, selfUsername);
+      ui.getNetwork().sendReady();
     }
   }
 }
@@ -1,171 +1,189 @@
 package ch.heigvd.dai.logic.client.ui.display;
 
-import ch.heigvd.dai.commands.Client;
+import ch.heigvd.dai.logic.client.TypingModel;
 import ch.heigvd.dai.logic.client.ui.TerminalUI;
 import ch.heigvd.dai.logic.shared.Player;
 import com.googlecode.lanterna.TextColor;
 import com.googlecode.lanterna.graphics.TextGraphics;
 import com.googlecode.lanterna.input.KeyStroke;
 import com.googlecode.lanterna.input.KeyType;
-import com.googlecode.lanterna.terminal.Terminal;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
+/**
+ * The race screen. Only what changed since the last frame is drawn: the progress bars whose
+ * progress changed and the characters around the cursor. The layout of the text is kept until the
+ * width of the terminal changes.
+ */
 public class RaceDisplayState extends DisplayState {
   private String text;
-  private int cursorIndex = 0;
-  private final StringBuilder userText = new StringBuilder();
+  private TypingModel typing;
+  private TextLayout layout;
+  private String selfLabel;
+
+  // What was drawn by the last frame
+  private boolean fullRedraw = true;
+  private final List<String> renderedUsernames = new ArrayList<>();
+  private final List<Integer> renderedProgress = new ArrayList<>();
+  private int renderedCursor = 0;
 
   public RaceDisplayState(TerminalUI ui) {
     super(ui);
   }
 
   public void render(TextGraphics tg) throws IOException {
-    int offset = renderPlayersProgress(tg);
+    if (text == null) return;
+    int width = tg.getSize().getColumns();
+    if (layout == null || !layout.matches(text, width)) {
+      layout = new TextLayout(text, width);
+      fullRedraw = true;
+    }
+    int offset = renderPlayersProgress(tg, width);
     renderTypingText(tg, offset);
+    fullRedraw = false;
+  }
+
+  @Override
+  public boolean isIncremental() {
+    return true;
   }
 
-  private int renderPlayersProgress(TextGraphics tg) throws IOException {
-    int offset = 0;
+  @Override
+  public void invalidate() {
+    fullRedraw = true;
+  }
 
+  private int renderPlayersProgress(TextGraphics tg, int width) {
     String selfUsername = ui.getClientState().getSelfUsername();
-    Player self = ui.getClientState().getPlayers().get(selfUsername);
+    Map<String, Player> players = ui.getClientState().getPlayers();
+
+    int numRows = 1;
+    for (Map.Entry<String, Player> entry : players.entrySet()) {
+      if (entry.getValue().isInGame() && !entry.getKey().equals(selfUsername)) {
+        numRows++;
+      }
+    }
+    if (numRows != renderedUsernames.size()) {
+      if (!fullRedraw) {
+        // A player left, the text moves
+        tg.fill(' ');
+        fullRedraw = true;
+      }
+      renderedUsernames.clear();
+      renderedProgress.clear();
+    }
 
-    renderPlayerProgress(tg, selfUsername + " (you)", self.getProgress(), offset);
-    offset++;
+    int row = 0;
+    if (selfLabel == null) {
+      selfLabel = selfUsername + " (you)";
+    }
+    renderPlayerProgress(tg, selfLabel, players.get(selfUsername).getProgress(), row++, width);
 
-    for (Map.Entry<String, Player> entry : ui.getClientState().getPlayers().entrySet()) {
+    for (Map.Entry<String, Player> entry : players.entrySet()) {
       if (!entry.getValue().isInGame()) continue;
       String username = entry.getKey();
       if (username.equals(selfUsername)) {
         continue;
       }
-      renderPlayerProgress(tg, username, entry.getValue().getProgress(), offset);
-      offset++;
+      renderPlayerProgress(tg, username, entry.getValue().getProgress(), row++, width);
     }
-    return offset + 1; // Add extra line spacing
+    return row + 1; // Add extra line spacing
   }
 
-  private void renderPlayerProgress(TextGraphics tg, String username, int progress, int offset)
-      throws IOException {
-    int maxWidth = ui.getTerminal().getTerminalSize().getColumns();
-    int fullLen = maxWidth - username.length() - 1;
-    int progLen = (int) Math.min(Math.round((double) progress * fullLen / 100), 100);
+  private void renderPlayerProgress(
+      TextGraphics tg, String username, int progress, int row, int width) {
+    if (!fullRedraw
+        && row < renderedUsernames.size()
+        && renderedUsernames.get(row).equals(username)
+        && renderedProgress.get(row) == progress) {
+      return;
+    }
+    if (row < renderedUsernames.size()) {
+      renderedUsernames.set(row, username);
+      renderedProgress.set(row, progress);
+    } else {
+      renderedUsernames.add(username);
+      renderedProgress.add(progress);
+    }
+
+    int fullLen = Math.max(0, width - username.length() - 1);
+    int progLen = (int) Math.min(Math.round((double) progress * fullLen / 100), fullLen);
 
-    String sb = "#".repeat(progLen) + ".".repeat(fullLen - progLen) + " " + username;
+    tg.setBackgroundColor(TextColor.ANSI.DEFAULT);
+    tg.setForegroundColor(TextColor.ANSI.DEFAULT);
+    if (progLen > 0) {
+      tg.drawLine(0, row, progLen - 1, row, '#');
+    }
+    if (fullLen > progLen) {
+      tg.drawLine(progLen, row, fullLen - 1, row, '.');
+    }
+    tg.setCharacter(fullLen, row, ' ');
+    tg.putString(fullLen + 1, row, username);
+  }
 
-    tg.putString(0, offset, sb);
+  private void renderTypingText(TextGraphics tg, int offset) {
+    int cursorIndex = typing.getCursor();
+    int from = 0;
+    int to = text.length() - 1;
+    if (!fullRedraw) {
+      // Only the characters between the previous and the current cursor changed
+      from = Math.min(renderedCursor, cursorIndex);
+      to = Math.min(Math.max(renderedCursor, cursorIndex), text.length() - 1);
+    }
+    for (int i = from; i <= to; ++i) {
+      renderCharacter(tg, i, cursorIndex, offset);
+    }
+    renderedCursor = cursorIndex;
   }
 
-  private void renderTypingText(TextGraphics tg, int offset) throws IOException {
-    String[] lines = splitText(ui.getTerminal());
-    int currCharIndex = 0;
-
-    for (int i = 0; i < lines.length; ++i) {
-      for (int j = 0; j < lines[i].length(); ++j) {
-        if (currCharIndex < cursorIndex) {
-          tg.setBackgroundColor(TextColor.ANSI.DEFAULT);
-          if (userText.charAt(currCharIndex) != lines[i].charAt(j)) {
-            if (lines[i].charAt(j) == ' ') {
-              tg.setBackgroundColor(TextColor.ANSI.RED_BRIGHT);
-            } else {
-              tg.setForegroundColor(TextColor.ANSI.RED_BRIGHT);
-            }
-          } else {
-            tg.setForegroundColor(TextColor.ANSI.WHITE_BRIGHT);
-          }
-        } else if (currCharIndex == cursorIndex) {
-          tg.setBackgroundColor(TextColor.ANSI.WHITE_BRIGHT);
-          tg.setForegroundColor(TextColor.ANSI.BLACK);
+  private void renderCharacter(TextGraphics tg, int index, int cursorIndex, int offset) {
+    char c = text.charAt(index);
+    if (index < cursorIndex) {
+      tg.setBackgroundColor(TextColor.ANSI.DEFAULT);
+      if (typing.isError(index)) {
+        if (c == ' ') {
+          tg.setBackgroundColor(TextColor.ANSI.RED_BRIGHT);
+          tg.setForegroundColor(TextColor.ANSI.DEFAULT);
         } else {
-          tg.setBackgroundColor(TextColor.ANSI.DEFAULT);
-          tg.setForegroundColor(TextColor.ANSI.BLACK_BRIGHT);
+          tg.setForegroundColor(TextColor.ANSI.RED_BRIGHT);
         }
-        tg.putString(j, i + offset, String.valueOf(lines[i].charAt(j)));
-        currCharIndex++;
+      } else {
+        tg.setForegroundColor(TextColor.ANSI.WHITE_BRIGHT);
       }
+    } else if (index == cursorIndex) {
+      tg.setBackgroundColor(TextColor.ANSI.WHITE_BRIGHT);
+      tg.setForegroundColor(TextColor.ANSI.BLACK);
+    } else {
+      tg.setBackgroundColor(TextColor.ANSI.DEFAULT);
+      tg.setForegroundColor(TextColor.ANSI.BLACK_BRIGHT);
     }
+    tg.setCharacter(layout.getColumn(index), layout.getLine(index) + offset, c);
   }
 
   @Override
   public void handleInput(KeyStroke keyStroke) throws IOException {
     super.handleInput(keyStroke);
+    if (typing == null) return;
 
     // If the user presses backspace, delete the character before the cursor
-    if (keyStroke.getKeyType() == KeyType.Backspace && cursorIndex > 0) {
-      cursorIndex--;
-      userText.deleteCharAt(cursorIndex);
+    if (keyStroke.getKeyType() == KeyType.Backspace) {
+      typing.backspace();
       return;
     }
 
-    // If the user presses a character, insert it at the cursor and update the progress
+    // If the user presses a character, type it at the cursor and update the progress
     Character character = keyStroke.getCharacter();
-    if (character != null && cursorIndex < text.length()) {
-      userText.insert(cursorIndex, character);
-      cursorIndex++;
-
-      updateProgress();
-    }
-  }
-
-  private void updateProgress() throws IOException {
-    // Count correct characters
-    int correctChars = 0;
-    for (int i = 0; i < cursorIndex; i++) {
-      if (userText.charAt(i) == text.charAt(i)) {
-        correctChars++;
-      }
-    }
-
-    int progress = (int) Math.min(Math.round((double) correctChars / text.length() * 100), 99);
-    // Make sure to only be at 100% when all the letters are completed correctly
-    if (cursorIndex == text.length() && correctChars == text.length()) {
-      progress = 100;
+    if (character != null && typing.type(character)) {
+      ui.getProgressReporter().report(typing.getProgress());
     }
-
-    ui.getNetwork()
-        .sendUnicast(
-            Client.Command.USER_PROGRESS, ui.getClientState().getSelfUsername() + " " + progress);
-  }
-
-  /**
-   * Split the text into lines of a maximum width.
-   *
-   * @param terminal the terminal to use for splitting
-   * @return the lines of the text
-   * @throws IOException if an error occurs while splitting
-   */
-  private String[] splitText(Terminal terminal) throws IOException {
-    int maxWidth = terminal.getTerminalSize().getColumns();
-    String[] words = text.split(" ");
-    List<String> lines = new ArrayList<>();
-    StringBuilder currentLine = new StringBuilder();
-
-    for (String word : words) {
-      if (currentLine.length() + word.length() + 1 > maxWidth) {
-        currentLine.append(" ");
-        lines.add(currentLine.toString());
-        currentLine = new StringBuilder(word);
-      } else {
-        if (!currentLine.isEmpty()) {
-          currentLine.append(" ");
-        }
-        currentLine.append(word);
-      }
-    }
-
-    if (!currentLine.isEmpty()) {
-      lines.add(currentLine.toString());
-    }
-
-    return lines.toArray(new String[0]);
   }
 
   public void setText(String text) {
     this.text = text;
-    this.cursorIndex = 0;
-    this.userText.setLength(0);
+    this.typing = new TypingModel(text);
+    ui.getProgressReporter().reset();
+    invalidate();
   }
 }
@@ -0,0 +1,75 @@
+package ch.heigvd.dai.logic.client.ui.display;
+
+/**
+ * Word-wrapped layout of a text for a given width. The line and the column of each character are
+ * computed once, so a character can be drawn without splitting the text again. Words are wrapped on
+ * spaces, the space after a word staying at the end of its line, and words longer than the width
+ * are cut.
+ */
+class TextLayout {
+  private final String text;
+  private final int width;
+  private final int[] lines;
+  private final int[] columns;
+  private final int numLines;
+
+  /**
+   * Lay a text out.
+   *
+   * @param text the text to lay out
+   * @param width the number of columns available
+   */
+  TextLayout(String text, int width) {
+    this.text = text;
+    this.width = Math.max(1, width);
+    this.lines = new int[text.length()];
+    this.columns = new int[text.length()];
+
+    int line = 0;
+    int column = 0;
+    int i = 0;
+    while (i < text.length()) {
+      int wordEnd = text.indexOf(' ', i);
+      wordEnd = wordEnd < 0 ? text.length() : wordEnd + 1;
+      int wordLength = wordEnd - i;
+      // Wrap the word unless it starts the line, the space after it may hang past the width
+      int visibleLength = text.charAt(wordEnd - 1) == ' ' ? wordLength - 1 : wordLength;
+      if (column > 0 && column + visibleLength > this.width) {
+        line++;
+        column = 0;
+      }
+      for (; i < wordEnd; ++i) {
+        if (column >= this.width && text.charAt(i) != ' ') {
+          line++;
+          column = 0;
+        }
+        lines[i] = line;
+        columns[i] = column++;
+      }
+    }
+    this.numLines = text.isEmpty() ? 0 : line + 1;
+  }
+
+  /**
+   * Check if this layout is the layout of a text for a width.
+   *
+   * @param text the text
+   * @param width the width
+   * @return true if the layout can be reused
+   */
+  boolean matches(String text, int width) {
+    return this.text.equals(text) && this.width == Math.max(1, width);
+  }
+
+  int getLine(int index) {
+    return lines[index];
+  }
+
+  int getColumn(int index) {
+    return columns[index];
+  }
+
+  int getNumLines() {
+    return numLines;
+  }
+}
@@ -21,6 +21,7 @@ public class UIEvent {
   public enum EventType {
     RACE_TEXT_RECEIVED,
     GAME_STATE_CHANGED,
-    END_GAME
+    END_GAME,
+    STATE_UPDATED
   }
 }
@@ -0,0 +1,200 @@
+package ch.heigvd.dai.logic.loadgen;
+
+import ch.heigvd.dai.commands.Client;
+import ch.heigvd.dai.commands.Server;
+import ch.heigvd.dai.logic.client.ClientProtocol;
+import ch.heigvd.dai.logic.client.ProgressReporter;
+import ch.heigvd.dai.logic.client.TypingModel;
+import ch.heigvd.dai.logic.shared.BinaryCodec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+/**
+ * Headless player driven by the load generator. A bot joins a room with the binary protocol,
+ * readies up and types the text of each game at its own speed, making typing errors that it
+ * corrects with backspace. Its progress goes through a {@link ProgressReporter}, like the progress
+ * of a real player. Broadcasts are received by the {@link RoomObserver} of its room.
+ */
+public class Bot {
+  private static final Logger LOGGER = Logger.getLogger(Bot.class.getName());
+  private static final int COMPLETED = 100;
+  private static final int CHARS_PER_WORD = 5;
+  private static final long START_TIMEOUT_MS = 60_000;
+  private static final long END_TIMEOUT_MS = 60_000;
+
+  private final String username;
+  private final int room;
+  private final int protocolVersion;
+  private final ClientProtocol network;
+  private final RoomObserver observer;
+  private final LoadStats stats;
+  private final ProgressReporter progressReporter;
+  private final Random random;
+  private final long keystrokeNanos;
+  private final double errorRate;
+  // Time at which each progress value was reported, until it is received back
+  private final AtomicLongArray reportTimes = new AtomicLongArray(COMPLETED + 1);
+
+  /**
+   * Create a new bot.
+   *
+   * @param username the username of the bot
+   * @param room the room to join
+   * @param protocolVersion the binary protocol version to ask the server for
+   * @param network the protocol of the bot
+   * @param observer the observer of the room
+   * @param stats the measurements to update
+   * @param wpm the typing speed of the bot, in words per minute
+   * @param errorRate the probability of a typing error on each keystroke
+   * @param progressIntervalMs the minimum interval between two progress updates, in milliseconds
+   * @param seed the seed of the random generator of the bot
+   */
+  public Bot(
+      String username,
+      int room,
+      int protocolVersion,
+      ClientProtocol network,
+      RoomObserver observer,
+      LoadStats stats,
+      double wpm,
+      double errorRate,
+      long progressIntervalMs,
+      long seed) {
+    this.username = username;
+    this.room = room;
+    this.protocolVersion = protocolVersion;
+    this.network = network;
+    this.observer = observer;
+    this.stats = stats;
+    this.progressReporter = new ProgressReporter(network, progressIntervalMs);
+    this.random = new Random(seed);
+    this.keystrokeNanos = (long) (TimeUnit.MINUTES.toNanos(1) / (wpm * CHARS_PER_WORD));
+    this.errorRate = errorRate;
+  }
+
+  /**
+   * Join the room of the bot.
+   *
+   * @return true if the bot joined, false otherwise
+   */
+  public boolean join() {
+    long start = System.nanoTime();
+    ByteBuffer res;
+    try {
+      res =
+          network.sendWithResponseUnicast(
+              Client.Command.USER_JOIN, username + " " + room + " " + protocolVersion);
+    } catch (IOException e) {
+      stats.joinFailures.increment();
+      return false;
+    }
+    stats.joinLatency.record(System.nanoTime() - start);
+    if (!BinaryCodec.isBinary(res) || Server.Command.fromOpcode(res.get()) != Server.Command.OK) {
+      LOGGER.warning(username + " could not join room " + room);
+      stats.joinFailures.increment();
+      return false;
+    }
+    int version = res.get();
+    int id = BinaryCodec.getVarint(res);
+    network.setSession(username, version, id);
+    observer.register(id, this);
+    stats.joined.increment();
+    return true;
+  }
+
+  /**
+   * Fetch a text from the server with the session of the bot. The bot only reads from its socket
+   * when joining, so the text can be fetched while it plays.
+   *
+   * @param id the ID of the text on the server
+   * @param hash the hash of the text
+   * @param length the length of the text in bytes
+   * @return the text
+   * @throws IOException if the text couldn't be fetched
+   */
+  public String fetchText(int id, long hash, int length) throws IOException {
+    return network.fetchText(id, hash, length);
+  }
+
+  /**
+   * Play a game: ready up, wait for the countdown and type until the text is completed or another
+   * player wins.
+   *
+   * @param game the number of the game, from 0
+   * @return true if the game was played until its end, false if it timed out
+   * @throws IOException if an error occurs while sending a message
+   * @throws InterruptedException if interrupted while playing
+   */
+  public boolean play(int game) throws IOException, InterruptedException {
+    network.sendReady();
+    String text = observer.awaitStart(game, START_TIMEOUT_MS);
+    if (text == null) {
+      return false;
+    }
+    long countdown = observer.getStartTime() - System.currentTimeMillis();
+    if (countdown > 0) {
+      Thread.sleep(countdown);
+    }
+
+    progressReporter.reset();
+    for (int i = 0; i < reportTimes.length(); ++i) {
+      reportTimes.set(i, 0);
+    }
+    TypingModel model = new TypingModel(text);
+    int lastProgress = 0;
+    while (!observer.isGameOver(game) && model.getCursor() < text.length()) {
+      if (random.nextDouble() < errorRate) {
+        keystroke();
+        model.type(text.charAt(model.getCursor()) == 'x' ? 'y' : 'x');
+        keystroke();
+        model.backspace();
+      }
+      keystroke();
+      model.type(text.charAt(model.getCursor()));
+      int progress = model.getProgress();
+      if (progress != lastProgress) {
+        lastProgress = progress;
+        reportTimes.set(progress, System.nanoTime());
+        progressReporter.report(progress);
+      }
+    }
+    return observer.awaitEnd(game, END_TIMEOUT_MS);
+  }
+
+  /** Wait for the next keystroke, with some jitter around the typing speed of the bot. */
+  private void keystroke() throws InterruptedException {
+    stats.keystrokes.increment();
+    long delay = (long) (keystrokeNanos * (0.5 + random.nextDouble()));
+    Thread.sleep(delay / 1_000_000, (int) (delay % 1_000_000));
+  }
+
+  /**
+   * Called by the observer when the progress of the bot is broadcast. Only the first broadcast of a
+   * value reported by the bot is measured.
+   *
+   * @param progress the progress broadcast
+   * @param now the time at which the broadcast was received, in nanoseconds
+   */
+  void onProgressReceived(int progress, long now) {
+    if (progress < 0 || progress > COMPLETED) return;
+    long reported = reportTimes.getAndSet(progress, 0);
+    if (reported != 0) {
+      stats.progressLatency.record(now - reported);
+    }
+  }
+
+  /** Leave the server. */
+  public void quit() {
+    progressReporter.close();
+    try {
+      network.sendQuit();
+      network.closeUnicast();
+    } catch (IOException e) {
+      LOGGER.warning(username + " failed to quit: " + e.getMessage());
+    }
+  }
+}
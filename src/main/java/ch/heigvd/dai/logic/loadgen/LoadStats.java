@@ -0,0 +1,19 @@
+package ch.heigvd.dai.logic.loadgen;
+
+import ch.heigvd.dai.logic.server.LatencyHistogram;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Measurements of a load generation run, shared by all the bots and room observers. */
+public class LoadStats {
+  public final LongAdder joined = new LongAdder();
+  public final LongAdder joinFailures = new LongAdder();
+  public final LongAdder keystrokes = new LongAdder();
+  public final LongAdder gamesStarted = new LongAdder();
+  public final LongAdder gamesTimedOut = new LongAdder();
+  public final LongAdder textsFetched = new LongAdder();
+  public final LongAdder multicastFrames = new LongAdder();
+  public final LongAdder multicastLost = new LongAdder();
+  public final LongAdder multicastReordered = new LongAdder();
+  public final LatencyHistogram joinLatency = new LatencyHistogram();
+  public final LatencyHistogram progressLatency = new LatencyHistogram();
+}
@@ -0,0 +1,298 @@
+package ch.heigvd.dai.logic.loadgen;
+
+import ch.heigvd.dai.commands.Server;
+import ch.heigvd.dai.logic.client.ClientProtocol;
+import ch.heigvd.dai.logic.shared.BinaryCodec;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * Listens to the multicast group of a room on behalf of all the bots of the room, so that the load
+ * generator receives each broadcast once instead of once per bot. The progress frames are matched
+ * with the progress sent by the bots to measure the progress latency, and their sequence numbers
+ * reveal the lost frames. Bots wait on the observer for the start and the end of the games, with a
+ * lock rather than a monitor so that thousands of waiting virtual threads don't pin their carrier
+ * threads.
+ */
+public class RoomObserver {
+  private static final Logger LOGGER = Logger.getLogger(RoomObserver.class.getName());
+
+  private final ClientProtocol network;
+  private final LoadStats stats;
+  private final ConcurrentHashMap<Integer, Bot> bots = new ConcurrentHashMap<>();
+  // Texts already raced on, by hash, as the disk cache of a real client
+  private final HashMap<Long, String> texts = new HashMap<>();
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition changed = lock.newCondition();
+  private Thread listener;
+  private int lastSequence = -1;
+  private int lastControlSequence;
+  private boolean controlReceived = false;
+  private int numStarted = 0;
+  private int numEnded = 0;
+  private String text;
+  private long startTime;
+
+  /**
+   * Create a new observer.
+   *
+   * @param network the protocol of the observer, bound to the multicast port of the room
+   * @param stats the measurements to update
+   */
+  public RoomObserver(ClientProtocol network, LoadStats stats) {
+    this.network = network;
+    this.stats = stats;
+  }
+
+  /** Start listening to the room. */
+  public void start() {
+    listener =
+        Thread.ofVirtual()
+            .name("room-observer")
+            .start(
+                () -> {
+                  try {
+                    network.listenToMulticast(this::handleFrame);
+                  } catch (IOException e) {
+                    // Expected when the observer is closed
+                  }
+                });
+  }
+
+  /**
+   * Register a bot that joined the room, so that its progress is recognized.
+   *
+   * @param id the ID of the bot
+   * @param bot the bot
+   */
+  public void register(int id, Bot bot) {
+    bots.put(id, bot);
+  }
+
+  /**
+   * Wait until a game started, i.e. until its countdown began.
+   *
+   * @param game the number of the game, from 0
+   * @param timeoutMs the maximum time to wait, in milliseconds
+   * @return the text of the game, or null if the game didn't start in time
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public String awaitStart(int game, long timeoutMs) throws InterruptedException {
+    lock.lock();
+    try {
+      long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+      while (numStarted <= game) {
+        if (remaining <= 0) return null;
+        remaining = changed.awaitNanos(remaining);
+      }
+      return text;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Get the time at which the last game started, once its countdown is over.
+   *
+   * @return the time in milliseconds
+   */
+  public long getStartTime() {
+    lock.lock();
+    try {
+      return startTime;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Wait until a game ended.
+   *
+   * @param game the number of the game, from 0
+   * @param timeoutMs the maximum time to wait, in milliseconds
+   * @return true if the game ended, false if it didn't end in time
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public boolean awaitEnd(int game, long timeoutMs) throws InterruptedException {
+    lock.lock();
+    try {
+      long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+      while (numEnded <= game) {
+        if (remaining <= 0) return false;
+        remaining = changed.awaitNanos(remaining);
+      }
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Check if a game ended.
+   *
+   * @param game the number of the game, from 0
+   * @return true if the game ended
+   */
+  public boolean isGameOver(int game) {
+    lock.lock();
+    try {
+      return numEnded > game;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Stop listening to the room. */
+  public void close() {
+    network.closeMulticast();
+    try {
+      network.closeUnicast();
+      listener.join();
+    } catch (IOException e) {
+      LOGGER.warning("Error closing room observer: " + e.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Handle a frame broadcast to the room. Bots use the binary protocol, so text frames are ignored.
+   *
+   * @param frame the frame to handle
+   */
+  private void handleFrame(ByteBuffer frame) {
+    if (!BinaryCodec.isBinary(frame)) {
+      return;
+    }
+    stats.multicastFrames.increment();
+    try {
+      Server.Command command = Server.Command.fromOpcode(frame.get());
+      if (command == null) return;
+      if ((command == Server.Command.START_GAME || command == Server.Command.END_GAME)
+          && !isNewControlFrame(frame)) {
+        return;
+      }
+      switch (command) {
+        case START_GAME -> {
+          long startTime = System.currentTimeMillis() + BinaryCodec.getVarint(frame);
+          int textId = BinaryCodec.getVarint(frame);
+          long hash = frame.getLong();
+          int length = BinaryCodec.getVarint(frame);
+          handleStartGame(getText(textId, hash, length), startTime);
+        }
+        case ALL_USERS_PROGRESS -> handleProgress(frame);
+        case END_GAME -> handleEndGame();
+        default -> {}
+      }
+    } catch (BufferUnderflowException | IllegalArgumentException e) {
+      LOGGER.warning("Received malformed binary message");
+    }
+  }
+
+  /**
+   * Check that a control frame wasn't received already. The server sends the control frames again
+   * to the bots using version 5, which don't acknowledge them.
+   *
+   * @param frame the frame, ending with its sequence number
+   * @return true if the frame is new, false if it is sent again
+   */
+  private boolean isNewControlFrame(ByteBuffer frame) {
+    int sequence = frame.getInt(frame.limit() - Integer.BYTES);
+    if (controlReceived && sequence - lastControlSequence <= 0) {
+      return false;
+    }
+    controlReceived = true;
+    lastControlSequence = sequence;
+    return true;
+  }
+
+  /**
+   * Get the text of a game, fetched from the server the first time. The text is fetched on the
+   * listening thread, as nothing else is broadcast during the countdown, through the session of a
+   * bot of the room since the server only sends texts to the players.
+   *
+   * @param id the ID of the text on the server
+   * @param hash the hash of the text
+   * @param length the length of the text in bytes
+   * @return the text, or null if it couldn't be fetched
+   */
+  private String getText(int id, long hash, int length) {
+    String text = texts.get(hash);
+    if (text != null) {
+      return text;
+    }
+    Bot bot = bots.values().stream().findAny().orElse(null);
+    if (bot == null) {
+      LOGGER.warning("No bot to fetch text " + id + " with");
+      return null;
+    }
+    try {
+      text = bot.fetchText(id, hash, length);
+      stats.textsFetched.increment();
+      texts.put(hash, text);
+      return text;
+    } catch (IOException e) {
+      LOGGER.warning("Could not fetch text " + id + ": " + e.getMessage());
+      return null;
+    }
+  }
+
+  private void handleStartGame(String text, long startTime) {
+    if (text == null) {
+      return;
+    }
+    lock.lock();
+    try {
+      this.text = text;
+      this.startTime = startTime;
+      numStarted++;
+      stats.gamesStarted.increment();
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void handleEndGame() {
+    lock.lock();
+    try {
+      numEnded++;
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Handle a progress frame: count the frames missing since the last one and report the progress
+   * received to the bots that sent it.
+   *
+   * @param frame the frame, positioned after the opcode
+   */
+  private void handleProgress(ByteBuffer frame) {
+    long now = System.nanoTime();
+    int sequence = BinaryCodec.getVarint(frame);
+    frame.get(); // Keyframe flag
+    if (lastSequence >= 0 && sequence > lastSequence + 1) {
+      stats.multicastLost.add(sequence - lastSequence - 1);
+    } else if (sequence <= lastSequence) {
+      stats.multicastReordered.increment();
+    }
+    lastSequence = Math.max(lastSequence, sequence);
+    int count = frame.getShort() & 0xFFFF;
+    for (int i = 0; i < count; ++i) {
+      Bot bot = bots.get(BinaryCodec.getVarint(frame));
+      int progress = frame.get();
+      if (bot != null) {
+        bot.onProgressReceived(progress, now);
+      }
+    }
+  }
+}
@@ -0,0 +1,96 @@
+package ch.heigvd.dai.logic.server;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+import java.util.logging.Logger;
+
+/**
+ * Central scheduler of the progress broadcasts of all the rooms. Each room running a game is ticked
+ * at the configured rate. Updates received between two ticks are coalesced into a single frame, and
+ * the delay until the next tick grows when the last frame would exceed the bandwidth budget of the
+ * room, so large lobbies are throttled instead of flooding the network.
+ */
+public class BroadcastScheduler {
+  private static final Logger LOGGER = Logger.getLogger(BroadcastScheduler.class.getName());
+
+  private final ScheduledExecutorService executor;
+  private final long tickIntervalNanos;
+  private final int bandwidthBudget;
+
+  /**
+   * Create a new broadcast scheduler.
+   *
+   * @param tickRate the maximum number of broadcasts per second of a room
+   * @param bandwidthBudget the maximum number of bytes per second broadcast by a room
+   */
+  public BroadcastScheduler(double tickRate, int bandwidthBudget) {
+    this.tickIntervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / tickRate);
+    this.bandwidthBudget = bandwidthBudget;
+    int numThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 4);
+    this.executor =
+        Executors.newScheduledThreadPool(
+            numThreads, Thread.ofPlatform().name("broadcast-", 0).daemon().factory());
+  }
+
+  /**
+   * Start ticking a room. Any previous broadcast of the room is stopped. The broadcast is called on
+   * every tick, one tick at a time, until it returns a negative value.
+   *
+   * @param room the room to tick
+   * @param broadcast the broadcast to run, returning the number of bytes it sent or a negative
+   *     value to stop
+   */
+  public void start(Room room, ToIntFunction<Room> broadcast) {
+    Tick tick = new Tick(room, broadcast);
+    Tick previous = room.swapBroadcastTick(tick);
+    if (previous != null) {
+      previous.cancelled = true;
+    }
+    executor.execute(tick);
+  }
+
+  /**
+   * Compute the delay until the next tick of a room.
+   *
+   * @param bytesSent the number of bytes sent by the last tick
+   * @return the delay in nanoseconds
+   */
+  private long nextDelay(int bytesSent) {
+    long budgetDelay = TimeUnit.SECONDS.toNanos(1) * bytesSent / bandwidthBudget;
+    return Math.max(tickIntervalNanos, budgetDelay);
+  }
+
+  /** Stop all the broadcasts. */
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  /** Self-rescheduling tick of a room, so that the ticks of a room never overlap. */
+  class Tick implements Runnable {
+    private final Room room;
+    private final ToIntFunction<Room> broadcast;
+    private volatile boolean cancelled = false;
+
+    private Tick(Room room, ToIntFunction<Room> broadcast) {
+      this.room = room;
+      this.broadcast = broadcast;
+    }
+
+    @Override
+    public void run() {
+      if (cancelled) return;
+      int bytesSent;
+      try {
+        bytesSent = broadcast.applyAsInt(room);
+      } catch (RuntimeException e) {
+        LOGGER.severe("Error broadcasting room " + room.id + ": " + e);
+        bytesSent = 0;
+      }
+      if (bytesSent >= 0 && !cancelled && !executor.isShutdown()) {
+        executor.schedule(this, nextDelay(bytesSent), TimeUnit.NANOSECONDS);
+      }
+    }
+  }
+}
@@ -0,0 +1,92 @@
+package ch.heigvd.dai.logic.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free queue of the commands of a room, written by any number of threads and read by
+ * the thread of the room only. Each slot has a sequence number telling whether it is free for the
+ * writer of a given position or holds a command for the reader, so writers only compete on the
+ * position they claim and the reader never writes a shared counter.
+ */
+class CommandRing {
+  private final AtomicReferenceArray<Runnable> commands;
+  private final AtomicLongArray sequences;
+  private final int mask;
+  private final AtomicLong tail = new AtomicLong(); // Next position to write
+  private volatile long head = 0; // Next position to read, only written by the reader
+
+  /**
+   * Create a new ring.
+   *
+   * @param capacity the number of commands the ring can hold, a power of two
+   */
+  CommandRing(int capacity) {
+    if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+      throw new IllegalArgumentException("The capacity must be a power of two");
+    }
+    commands = new AtomicReferenceArray<>(capacity);
+    sequences = new AtomicLongArray(capacity);
+    mask = capacity - 1;
+    for (int i = 0; i < capacity; ++i) {
+      sequences.set(i, i);
+    }
+  }
+
+  /**
+   * Add a command to the ring. Safe to call from several threads.
+   *
+   * @param command the command to add
+   * @return false if the ring is full, in which case the command is not added
+   */
+  boolean offer(Runnable command) {
+    long position;
+    int slot;
+    while (true) {
+      position = tail.get();
+      slot = (int) position & mask;
+      long available = sequences.get(slot) - position;
+      if (available == 0) {
+        if (tail.compareAndSet(position, position + 1)) break;
+      } else if (available < 0) {
+        // The slot still holds the command written one lap ago
+        return false;
+      }
+      // Otherwise another writer claimed the position first, try the next one
+    }
+    commands.lazySet(slot, command);
+    // Publishes the command to the reader
+    sequences.set(slot, position + 1);
+    return true;
+  }
+
+  /**
+   * Take the next command of the ring. Only called by the reader.
+   *
+   * @return the command, or null if the ring is empty
+   */
+  Runnable poll() {
+    long position = head;
+    int slot = (int) position & mask;
+    if (sequences.get(slot) != position + 1) {
+      return null;
+    }
+    Runnable command = commands.get(slot);
+    commands.lazySet(slot, null);
+    // Frees the slot for the writer of the next lap
+    sequences.set(slot, position + mask + 1);
+    head = position + 1;
+    return command;
+  }
+
+  /**
+   * Get the number of commands waiting in the ring. Only an estimate while commands are added or
+   * taken.
+   *
+   * @return the number of commands
+   */
+  int size() {
+    return (int) Math.max(0, tail.get() - head);
+  }
+}
@@ -0,0 +1,150 @@
+package ch.heigvd.dai.logic.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Log of the last binary control frames multicast to a room: START_GAME, END_GAME and DEL_USER. A
+ * client that misses one of them would stay in the wrong state until the next game, so unlike the
+ * progress frames they are sent again until the clients acknowledge them.
+ *
+ * <p>Each control frame ends with the next sequence number of the room, as 4 bytes. Clients
+ * acknowledge the last sequence number they handled in order, and ask for a missing frame as soon
+ * as a later one arrives. The frames still unacknowledged are multicast again after {@link
+ * #RETRANSMIT_MS}, then twice as late each time, up to {@link #MAX_RETRANSMITS} times.
+ *
+ * <p>The sequence numbers of a room start at a given value, random in practice, so that the clients
+ * of a restarted server see a jump instead of frames they believe they already handled.
+ *
+ * <p>Only used on the thread of the room.
+ */
+public class ControlLog {
+  /** Number of frames kept for retransmission, the most recent ones. */
+  public static final int CAPACITY = 64;
+
+  /** Delay before the first retransmission of the frames not acknowledged. */
+  public static final long RETRANSMIT_MS = 200;
+
+  /** Number of retransmissions before giving up on the clients that don't acknowledge. */
+  public static final int MAX_RETRANSMITS = 5;
+
+  private static final int MASK = CAPACITY - 1;
+
+  private final byte[][] frames = new byte[CAPACITY][];
+  private final long[] sentTimes = new long[CAPACITY];
+  private final long[] firstSentTimes = new long[CAPACITY];
+  private int lastSequence;
+  private int numFrames = 0;
+  private int numRetransmits = 0;
+  private boolean retransmitting = false;
+
+  /**
+   * Create a new log.
+   *
+   * @param firstSequence the sequence number of the first frame
+   */
+  public ControlLog(int firstSequence) {
+    this.lastSequence = firstSequence - 1;
+  }
+
+  /**
+   * Append the next sequence number to a frame and keep a copy of the frame.
+   *
+   * @param frame the frame, positioned at its end
+   * @param now the current time in milliseconds
+   * @return the sequence number of the frame
+   */
+  public int append(ByteBuffer frame, long now) {
+    int sequence = ++lastSequence;
+    frame.putInt(sequence);
+    byte[] bytes = new byte[frame.position()];
+    frame.duplicate().flip().get(bytes);
+    frames[sequence & MASK] = bytes;
+    sentTimes[sequence & MASK] = now;
+    firstSentTimes[sequence & MASK] = now;
+    numFrames = Math.min(numFrames + 1, CAPACITY);
+    // The new frame gets all its retransmissions
+    numRetransmits = 0;
+    return sequence;
+  }
+
+  /**
+   * Get the sequence number of the last frame, which clients that join start from.
+   *
+   * @return the sequence number
+   */
+  public int getLastSequence() {
+    return lastSequence;
+  }
+
+  /**
+   * Get the sequence number of the oldest frame still kept.
+   *
+   * @return the sequence number, one past the last if the log is empty
+   */
+  public int getOldestSequence() {
+    return lastSequence - numFrames + 1;
+  }
+
+  /**
+   * Get the time a frame still kept was first sent, to update the delays it carries when it is sent
+   * again.
+   *
+   * @param sequence the sequence number of the frame
+   * @return the time in milliseconds
+   */
+  public long getFirstSentTime(int sequence) {
+    return firstSentTimes[sequence & MASK];
+  }
+
+  /**
+   * Take a frame to send again. A frame is not sent again if it was just sent, for instance when
+   * several clients ask for the same frame at once.
+   *
+   * @param sequence the sequence number of the frame
+   * @param now the current time in milliseconds
+   * @return the frame, or null if it is no longer kept or was sent less than half of {@link
+   *     #RETRANSMIT_MS} ago
+   */
+  public byte[] repair(int sequence, long now) {
+    if (sequence - getOldestSequence() < 0 || sequence - lastSequence > 0) {
+      return null;
+    }
+    int slot = sequence & MASK;
+    if (now - sentTimes[slot] < RETRANSMIT_MS / 2) {
+      return null;
+    }
+    sentTimes[slot] = now;
+    return frames[slot];
+  }
+
+  /**
+   * Start the retransmissions after a frame was sent.
+   *
+   * @return true if the retransmissions are to be scheduled, false if they already are
+   */
+  public boolean startRetransmits() {
+    if (retransmitting) {
+      return false;
+    }
+    retransmitting = true;
+    return true;
+  }
+
+  /**
+   * Get the delay before the next retransmission, twice the previous one.
+   *
+   * @return the delay in milliseconds, or -1 once the retransmissions are over
+   */
+  public long nextRetransmitDelay() {
+    if (++numRetransmits >= MAX_RETRANSMITS) {
+      stopRetransmits();
+      return -1;
+    }
+    return RETRANSMIT_MS << numRetransmits;
+  }
+
+  /** Stop the retransmissions, once every client acknowledged the frames. */
+  public void stopRetransmits() {
+    retransmitting = false;
+  }
+}
@@ -0,0 +1,76 @@
+package ch.heigvd.dai.logic.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations with power of two buckets. Recording a duration is lock-free and doesn't
+ * allocate, so it can be done on the hot path. Percentiles are approximated by the upper bound of
+ * their bucket.
+ */
+public class LatencyHistogram {
+  private static final int NUM_BUCKETS = 40;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+  /**
+   * Record a duration.
+   *
+   * @param nanos the duration in nanoseconds
+   */
+  public void record(long nanos) {
+    if (nanos < 0) return;
+    int bucket = Math.min(NUM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos));
+    buckets.incrementAndGet(bucket);
+    count.increment();
+    sum.add(nanos);
+    max.accumulate(nanos);
+  }
+
+  public long getCount() {
+    return count.sum();
+  }
+
+  /**
+   * Get the mean of the recorded durations.
+   *
+   * @return the mean in nanoseconds, 0 if nothing was recorded
+   */
+  public long getMean() {
+    long n = count.sum();
+    return n == 0 ? 0 : sum.sum() / n;
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  /**
+   * Get an approximate percentile of the recorded durations.
+   *
+   * @param percentile the percentile, between 0 and 100
+   * @return the upper bound of the bucket of the percentile in nanoseconds, 0 if nothing was
+   *     recorded
+   */
+  public long getPercentile(double percentile) {
+    long n = 0;
+    long[] counts = new long[NUM_BUCKETS];
+    for (int i = 0; i < NUM_BUCKETS; ++i) {
+      counts[i] = buckets.get(i);
+      n += counts[i];
+    }
+    long rank = (long) Math.ceil(n * percentile / 100);
+    long seen = 0;
+    for (int i = 0; i < NUM_BUCKETS; ++i) {
+      seen += counts[i];
+      if (seen >= rank && seen > 0) {
+        return Math.min((1L << i) - 1, getMax());
+      }
+    }
+    return 0;
+  }
+}
@@ -0,0 +1,152 @@
+package ch.heigvd.dai.logic.server;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntPredicate;
+import java.util.logging.Logger;
+
+/**
+ * Liveness of the players that send heartbeats, so that the players whose client crashed or lost
+ * the network are removed from their room. Any message of a player refreshes the time it was last
+ * heard from, a single store in the {@link PlayerTable}.
+ *
+ * <p>Each watched player has one entry in a {@link TimingWheel}, due when its session would expire.
+ * When the entry comes out of the wheel, the player is either expired or, if it was heard from
+ * since, scheduled again from the last time it was heard from. Thousands of sessions thus cost a
+ * slot per tick, and nothing on the path of a message.
+ *
+ * <p>The players restored from the journals that don't send heartbeats are watched once: their
+ * session expires if they are not heard from at all within the timeout after the restart, as their
+ * client most likely stopped with the server. Once heard from, they are no longer watched.
+ */
+public class LivenessMonitor {
+  private static final Logger LOGGER = Logger.getLogger(LivenessMonitor.class.getName());
+  private static final long TICK_MS = 250;
+  private static final int NUM_SLOTS = 256;
+  private static final int NEVER_SEEN = -1; // Last seen tick of a restored player not heard from
+
+  private final PlayerTable players;
+  private final int timeoutTicks;
+  private final IntPredicate onExpired;
+  private final TimingWheel wheel = new TimingWheel(NUM_SLOTS, PlayerTable.MAX_PLAYERS);
+  private final ScheduledExecutorService executor;
+  private volatile int now = 0; // Current tick, only written by the thread of the monitor
+
+  /**
+   * Create a new liveness monitor.
+   *
+   * @param players the table of the players
+   * @param timeoutMs the time without hearing from a player after which its session expires, 0 to
+   *     never expire sessions
+   * @param onExpired called on the thread of the monitor with the ID of a player whose session
+   *     expired, returns false if the player couldn't be removed yet and is to be expired again on
+   *     the next tick
+   */
+  public LivenessMonitor(PlayerTable players, long timeoutMs, IntPredicate onExpired) {
+    this.players = players;
+    this.timeoutTicks = (int) Math.max(1, (timeoutMs + TICK_MS - 1) / TICK_MS);
+    this.onExpired = onExpired;
+    this.executor =
+        timeoutMs > 0
+            ? Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("liveness").daemon().factory())
+            : null;
+  }
+
+  /** Start expiring the sessions. */
+  public void start() {
+    if (executor != null) {
+      executor.scheduleAtFixedRate(this::tick, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Record that a player was heard from.
+   *
+   * @param id the ID of the player
+   */
+  public void touch(int id) {
+    players.touch(id, now);
+  }
+
+  /**
+   * Start watching a player that sends heartbeats, counting from now.
+   *
+   * @param id the ID of the player
+   */
+  public void watch(int id) {
+    touch(id);
+    recheck(id);
+  }
+
+  /**
+   * Watch a player restored from a journal that doesn't send heartbeats, until it is heard from.
+   * Only used before the monitor is started, so that any message of the player is seen.
+   *
+   * @param id the ID of the player
+   */
+  public void watchRestored(int id) {
+    players.touch(id, NEVER_SEEN);
+    recheck(id);
+  }
+
+  /**
+   * Watch a player again after its session was found not to be expired, counting from the last time
+   * it was heard from.
+   *
+   * @param id the ID of the player
+   */
+  public void recheck(int id) {
+    if (executor != null) {
+      wheel.schedule(id, players.getLastSeen(id) + timeoutTicks);
+    }
+  }
+
+  /**
+   * Check if the session of a player expired.
+   *
+   * @param id the ID of the player
+   * @return true if the player was not heard from for longer than the timeout
+   */
+  public boolean isExpired(int id) {
+    return executor != null && now - players.getLastSeen(id) >= timeoutTicks;
+  }
+
+  /** Advance the wheel by a tick and expire the sessions due. */
+  private void tick() {
+    int tick = now + 1;
+    now = tick;
+    int numExpired = wheel.advance(tick);
+    int[] expired = wheel.getExpired();
+    for (int i = 0; i < numExpired; ++i) {
+      int id = expired[i];
+      // The player left, or its ID was given to a player without heartbeats
+      if (players.getUsername(id) == null) continue;
+      if (!players.hasHeartbeats(id)) {
+        // Only expired if it is a restored player that was never heard from
+        if (players.getLastSeen(id) != NEVER_SEEN) continue;
+      } else {
+        int expiry = players.getLastSeen(id) + timeoutTicks;
+        if (expiry - tick > 0) {
+          wheel.schedule(id, expiry);
+          continue;
+        }
+      }
+      try {
+        if (!onExpired.test(id)) {
+          wheel.schedule(id, tick + 1);
+        }
+      } catch (RuntimeException e) {
+        LOGGER.severe("Error expiring the session of player " + id + ": " + e);
+      }
+    }
+  }
+
+  /** Stop expiring the sessions. */
+  public void close() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,338 @@
+package ch.heigvd.dai.logic.server;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Table of the players connected to the server, indexed by their ID. The data of the players is
+ * stored in parallel arrays rather than in an object per player: handling a message is a few array
+ * accesses, and a player takes about 28 bytes on top of its username and address.
+ *
+ * <p>The room, the flags and the progress of a player are packed in a single int, so they are read
+ * and updated atomically:
+ *
+ * <pre>
+ * [room: 16 bits][unused: 2 bits][reliable][heartbeats][connected][binary][in game][ready][progress: 8 bits]
+ * </pre>
+ *
+ * <p>The time a player was last heard from, in ticks of the {@link LivenessMonitor}, is kept apart
+ * so that refreshing it is a single store. So is the last control frame of its room it
+ * acknowledged, see {@link ControlLog}. The address a player joined from is the only one that its
+ * texts are sent to.
+ *
+ * <p>IDs are given out when a username is reserved, lowest first so that they stay small, and are
+ * recycled once the player leaves. A player is connected once it is registered in its room.
+ */
+public class PlayerTable {
+  public static final int MAX_PLAYERS = 1 << 16;
+
+  private static final int PROGRESS_MASK = 0xFF;
+  private static final int READY = 1 << 8;
+  private static final int IN_GAME = 1 << 9;
+  private static final int BINARY = 1 << 10;
+  private static final int CONNECTED = 1 << 11;
+  private static final int HEARTBEATS = 1 << 12;
+  private static final int RELIABLE = 1 << 13;
+  private static final int ROOM_SHIFT = 16;
+
+  private final AtomicIntegerArray states = new AtomicIntegerArray(MAX_PLAYERS);
+  private final AtomicReferenceArray<String> usernames = new AtomicReferenceArray<>(MAX_PLAYERS);
+  private final AtomicIntegerArray lastSeen = new AtomicIntegerArray(MAX_PLAYERS);
+  private final AtomicIntegerArray controlAcked = new AtomicIntegerArray(MAX_PLAYERS);
+  private final AtomicReferenceArray<InetSocketAddress> addresses =
+      new AtomicReferenceArray<>(MAX_PLAYERS);
+  // Only used by the broadcasts of the room of each player
+  private final byte[] lastSentProgress = new byte[MAX_PLAYERS];
+  private final int[] freeIds = new int[MAX_PLAYERS];
+  private int numFreeIds;
+
+  /** Create a new empty table. */
+  public PlayerTable() {
+    // Lowest IDs on top of the stack
+    for (int i = 0; i < MAX_PLAYERS; ++i) {
+      freeIds[i] = MAX_PLAYERS - 1 - i;
+    }
+    numFreeIds = MAX_PLAYERS;
+  }
+
+  /**
+   * Give an ID to a player.
+   *
+   * @param username the username of the player
+   * @return the ID of the player, or -1 if the table is full
+   */
+  public int allocate(String username) {
+    int id;
+    synchronized (this) {
+      if (numFreeIds == 0) {
+        return -1;
+      }
+      id = freeIds[--numFreeIds];
+    }
+    states.set(id, 0);
+    usernames.set(id, username);
+    return id;
+  }
+
+  /**
+   * Give a given ID to a player, when restoring the players of a previous run. The free IDs are to
+   * be rebuilt once all the players are restored.
+   *
+   * @param id the ID of the player
+   * @param username the username of the player
+   * @return false if the ID is already taken
+   */
+  boolean claim(int id, String username) {
+    if (!isValid(id) || !usernames.compareAndSet(id, null, username)) {
+      return false;
+    }
+    states.set(id, 0);
+    return true;
+  }
+
+  /** Rebuild the free IDs from the IDs given out, after players were restored. */
+  synchronized void rebuildFreeIds() {
+    numFreeIds = 0;
+    for (int id = MAX_PLAYERS - 1; id >= 0; --id) {
+      if (usernames.get(id) == null) {
+        freeIds[numFreeIds++] = id;
+      }
+    }
+  }
+
+  /**
+   * Register a player in its room, once it joined.
+   *
+   * @param id the ID of the player
+   * @param room the ID of the room
+   * @param binary true if the player uses the binary protocol
+   */
+  public void register(int id, int room, boolean binary) {
+    lastSentProgress[id] = -1;
+    lastSeen.set(id, 0);
+    states.set(id, (room << ROOM_SHIFT) | CONNECTED | (binary ? BINARY : 0));
+  }
+
+  /**
+   * Release the ID of a player that left.
+   *
+   * @param id the ID of the player
+   */
+  public void release(int id) {
+    states.set(id, 0);
+    usernames.set(id, null);
+    addresses.set(id, null);
+    synchronized (this) {
+      freeIds[numFreeIds++] = id;
+    }
+  }
+
+  /**
+   * Get the address a player joined from.
+   *
+   * @param id the ID of the player
+   * @return the address, or null if the player didn't join in this run of the server
+   */
+  public InetSocketAddress getAddress(int id) {
+    return addresses.get(id);
+  }
+
+  public void setAddress(int id, InetSocketAddress address) {
+    addresses.set(id, address);
+  }
+
+  /**
+   * Check if a message comes from the address a player joined from.
+   *
+   * @param id the ID of the player
+   * @param address the address of the message
+   * @param port the port of the message
+   * @return true if the addresses match, false if no player has this ID
+   */
+  public boolean isFrom(int id, InetAddress address, int port) {
+    if (!isValid(id)) return false;
+    InetSocketAddress joined = addresses.get(id);
+    return joined != null && joined.getPort() == port && joined.getAddress().equals(address);
+  }
+
+  /**
+   * Get the username of a player.
+   *
+   * @param id the ID of the player
+   * @return the username or null if no player has this ID
+   */
+  public String getUsername(int id) {
+    return isValid(id) ? usernames.get(id) : null;
+  }
+
+  /**
+   * Get the room of a player.
+   *
+   * @param id the ID of the player
+   * @return the ID of the room, or -1 if no connected player has this ID
+   */
+  public int getRoom(int id) {
+    if (!isValid(id)) return -1;
+    int state = states.get(id);
+    return (state & CONNECTED) != 0 ? state >>> ROOM_SHIFT : -1;
+  }
+
+  public boolean isBinary(int id) {
+    return has(id, BINARY);
+  }
+
+  public boolean isReady(int id) {
+    return has(id, READY);
+  }
+
+  public void setReady(int id, boolean ready) {
+    update(id, READY, ready ? READY : 0);
+  }
+
+  public boolean isInGame(int id) {
+    return has(id, IN_GAME);
+  }
+
+  public void setInGame(int id, boolean inGame) {
+    update(id, IN_GAME, inGame ? IN_GAME : 0);
+  }
+
+  /**
+   * Check if a player sends heartbeats, in which case it is removed once it stops sending messages.
+   *
+   * @param id the ID of the player
+   * @return true if the player sends heartbeats
+   */
+  public boolean hasHeartbeats(int id) {
+    return has(id, HEARTBEATS);
+  }
+
+  public void setHeartbeats(int id) {
+    update(id, HEARTBEATS, HEARTBEATS);
+  }
+
+  /**
+   * Get the time a player was last heard from.
+   *
+   * @param id the ID of the player
+   * @return the time, in ticks of the {@link LivenessMonitor}
+   */
+  public int getLastSeen(int id) {
+    return lastSeen.get(id);
+  }
+
+  /**
+   * Record that a player was heard from.
+   *
+   * @param id the ID of the player
+   * @param tick the current time, in ticks of the {@link LivenessMonitor}
+   */
+  public void touch(int id, int tick) {
+    if (isValid(id)) lastSeen.lazySet(id, tick);
+  }
+
+  /**
+   * Check if a player acknowledges the control frames of its room, in which case they are sent
+   * again until it does.
+   *
+   * @param id the ID of the player
+   * @return true if the player acknowledges the control frames
+   */
+  public boolean isReliable(int id) {
+    return has(id, RELIABLE);
+  }
+
+  public void setReliable(int id) {
+    update(id, RELIABLE, RELIABLE);
+  }
+
+  /**
+   * Get the sequence number of the last control frame a player handled in order.
+   *
+   * @param id the ID of the player
+   * @return the sequence number
+   */
+  public int getControlAcked(int id) {
+    return controlAcked.get(id);
+  }
+
+  /**
+   * Set the sequence number of the last control frame a player handled, when it joins a room.
+   *
+   * @param id the ID of the player
+   * @param sequence the sequence number
+   */
+  public void setControlAcked(int id, int sequence) {
+    controlAcked.set(id, sequence);
+  }
+
+  /**
+   * Record that a player acknowledged the control frames of its room up to a sequence number.
+   * Acknowledgements older than the last one, received out of order, are ignored. Only called on
+   * the worker lane of the player.
+   *
+   * @param id the ID of the player
+   * @param sequence the sequence number acknowledged
+   */
+  public void ackControl(int id, int sequence) {
+    if (isValid(id) && sequence - controlAcked.get(id) > 0) {
+      controlAcked.lazySet(id, sequence);
+    }
+  }
+
+  public int getProgress(int id) {
+    return states.get(id) & PROGRESS_MASK;
+  }
+
+  public void setProgress(int id, int progress) {
+    update(id, PROGRESS_MASK, progress & PROGRESS_MASK);
+  }
+
+  /**
+   * Reset the game data of a player: not ready, not in game and no progress.
+   *
+   * @param id the ID of the player
+   */
+  public void reset(int id) {
+    update(id, READY | IN_GAME | PROGRESS_MASK, 0);
+  }
+
+  /**
+   * Get the progress last broadcast for a player. Only used by the {@link ProgressFrame} of its
+   * room.
+   *
+   * @param id the ID of the player
+   * @return the progress, or -1 if it was never broadcast
+   */
+  int getLastSentProgress(int id) {
+    return lastSentProgress[id];
+  }
+
+  void setLastSentProgress(int id, int progress) {
+    lastSentProgress[id] = (byte) progress;
+  }
+
+  private static boolean isValid(int id) {
+    return id >= 0 && id < MAX_PLAYERS;
+  }
+
+  private boolean has(int id, int flag) {
+    return (states.get(id) & flag) != 0;
+  }
+
+  /**
+   * Replace some bits of the state of a player.
+   *
+   * @param id the ID of the player
+   * @param mask the bits to replace
+   * @param value the new value of the bits
+   */
+  private void update(int id, int mask, int value) {
+    int previous;
+    do {
+      previous = states.get(id);
+    } while (!states.compareAndSet(id, previous, (previous & ~mask) | value));
+  }
+}
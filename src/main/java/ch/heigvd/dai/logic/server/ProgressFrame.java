@@ -0,0 +1,156 @@
+package ch.heigvd.dai.logic.server;
+
+import ch.heigvd.dai.logic.shared.BinaryCodec;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Delta-encoded progress frame of a room. Each frame only lists the players whose progress changed
+ * since the previous frame, except for periodic keyframes that list every player in game. Frames
+ * are numbered so that clients can drop frames received out of order. In binary, a frame too large
+ * for a datagram is sent as several frames, each with its own number. The frame is reused for every
+ * broadcast and must only be used by the thread broadcasting the progress of the room, except for
+ * {@link #forceKeyframe()} which any thread may call.
+ *
+ * <p>The entries are only marked as sent once they were written, with {@link #markSent(int)}, so
+ * the entries left out of a full binary frame are listed again in the next one.
+ */
+public class ProgressFrame {
+  public static final long KEYFRAME_INTERVAL_MS = 4000;
+
+  private int sequence = 0;
+  private boolean keyframe;
+  private final AtomicBoolean keyframeForced = new AtomicBoolean(true);
+  private long lastKeyframeTime = 0;
+  private int size = 0;
+  private PlayerTable players;
+  private String[] usernames = new String[16];
+  private int[] ids = new int[16];
+  private int[] progress = new int[16];
+
+  /** Make the next frame a keyframe, e.g. when a new game starts. */
+  public void forceKeyframe() {
+    keyframeForced.set(true);
+  }
+
+  /**
+   * Build the next frame from the state of a room.
+   *
+   * @param state the state of the room
+   * @param now the current time in milliseconds
+   * @return true if the frame has to be sent, false if nothing changed since the last frame
+   */
+  public boolean build(ServerState state, long now) {
+    // Cleared right away, so that a keyframe forced while building is not lost
+    keyframe = keyframeForced.getAndSet(false) || now - lastKeyframeTime >= KEYFRAME_INTERVAL_MS;
+    size = 0;
+    players = state.getPlayers();
+    for (int id : state.getMembers()) {
+      if (!players.isInGame(id)) continue;
+      int current = players.getProgress(id);
+      if (keyframe || current != players.getLastSentProgress(id)) {
+        add(players.getUsername(id), id, current);
+      }
+    }
+    if (keyframe) {
+      lastKeyframeTime = now;
+    } else if (size == 0) {
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Append the entries of the frame as text, from a given entry on, each entry being the username
+   * and the progress of a player preceded by a space. Entries that would make the text longer than
+   * the maximum length are left out, to be appended to another message.
+   *
+   * @param sb the builder to append to
+   * @param from the index of the first entry to append
+   * @param maxLength the maximum length of the text, usernames being ASCII
+   * @return the number of entries appended
+   */
+  public int appendText(StringBuilder sb, int from, int maxLength) {
+    int count = 0;
+    for (int i = from; i < size; ++i) {
+      // A space, the username, a space and at most 3 digits
+      if (sb.length() + usernames[i].length() + 5 > maxLength) break;
+      sb.append(' ').append(usernames[i]).append(' ').append(progress[i]);
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Write the entries of the frame in binary, from a given entry on: the next sequence number,
+   * whether it is a keyframe, the number of entries on two bytes and the ID and the progress of
+   * each entry. Entries that don't fit in the buffer are left out, to be written in another frame.
+   *
+   * @param buffer the buffer to write to, after the opcode
+   * @param from the index of the first entry to write
+   * @return the number of entries written
+   */
+  public int putBinary(ByteBuffer buffer, int from) {
+    BinaryCodec.putVarint(buffer, ++sequence);
+    buffer.put((byte) (keyframe ? 1 : 0));
+    int countPosition = buffer.position();
+    buffer.putShort((short) 0);
+    int count = 0;
+    for (int i = from; i < size && buffer.remaining() >= 6; ++i) {
+      BinaryCodec.putVarint(buffer, ids[i]);
+      buffer.put((byte) progress[i]);
+      count++;
+    }
+    buffer.putShort(countPosition, (short) count);
+    return count;
+  }
+
+  /**
+   * Mark the first entries of the frame as sent, so that they are only listed again once they
+   * change.
+   *
+   * @param count the number of entries sent, from the first one
+   */
+  public void markSent(int count) {
+    for (int i = 0; i < count; ++i) {
+      players.setLastSentProgress(ids[i], progress[i]);
+    }
+  }
+
+  private void add(String username, int id, int value) {
+    if (size == ids.length) {
+      usernames = Arrays.copyOf(usernames, size * 2);
+      ids = Arrays.copyOf(ids, size * 2);
+      progress = Arrays.copyOf(progress, size * 2);
+    }
+    usernames[size] = username;
+    ids[size] = id;
+    progress[size] = value;
+    size++;
+  }
+
+  public int getSequence() {
+    return sequence;
+  }
+
+  public boolean isKeyframe() {
+    return keyframe;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public String getUsername(int index) {
+    return usernames[index];
+  }
+
+  public int getId(int index) {
+    return ids[index];
+  }
+
+  public int getProgress(int index) {
+    return progress[index];
+  }
+}
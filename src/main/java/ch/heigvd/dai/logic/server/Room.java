@@ -0,0 +1,239 @@
+package ch.heigvd.dai.logic.server;
+
+import ch.heigvd.dai.logic.shared.BinaryCodec;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A race room. Each room has its own roster, game state, paragraph and multicast group. All the
+ * logic of a room runs on its own (virtual) thread, the only one changing the state of the room, so
+ * rooms are processed in parallel while the messages of a given room are still handled in order.
+ *
+ * <p>Commands reach the thread of the room through a lock-free {@link CommandRing}, and the thread
+ * parks when the ring is empty. Delayed tasks, such as the start of a game, wait on a shared timer
+ * and are then queued like any other command, so they never block the handling of the messages.
+ */
+public class Room {
+  /** Number of commands a room can queue before dropping the next ones. */
+  public static final int QUEUE_CAPACITY = 4096;
+
+  private static final Logger LOGGER = Logger.getLogger(Room.class.getName());
+  private static final ScheduledExecutorService TIMER =
+      Executors.newSingleThreadScheduledExecutor(
+          Thread.ofPlatform().name("room-timer").daemon().factory());
+  private static final long TIMER_RETRY_MS = 1;
+
+  public final int id;
+  public final InetSocketAddress multicastGroup;
+  public final ServerState state;
+  public final ProgressFrame progressFrame = new ProgressFrame();
+  public final ControlLog controlLog = new ControlLog(ThreadLocalRandom.current().nextInt());
+  private final CommandRing commands = new CommandRing(QUEUE_CAPACITY);
+  private Thread thread;
+  private volatile boolean parked = false;
+  private volatile boolean closed = false;
+  private volatile String paragraph;
+  private volatile int paragraphId = -1; // Read by the workers answering the text requests
+  private long paragraphHash;
+  private int paragraphLength;
+  private boolean gameScheduled = false;
+  private int countdown = 0; // Number of the last countdown, so that a cancelled one never starts
+  private BroadcastScheduler.Tick broadcastTick;
+
+  /**
+   * Create a new room.
+   *
+   * @param id the id of the room
+   * @param multicastGroup the multicast group used to broadcast the messages of the room
+   * @param players the table of the players of the server
+   */
+  public Room(int id, InetSocketAddress multicastGroup, PlayerTable players) {
+    this.id = id;
+    this.multicastGroup = multicastGroup;
+    this.state = new ServerState(id, players);
+  }
+
+  /**
+   * Start the thread of the room, which handles the commands executed until then. Called once,
+   * after the state of the room is restored.
+   */
+  public void start() {
+    thread = Thread.ofVirtual().name("room-" + id).start(this::run);
+  }
+
+  /** Run the commands of the room until it is closed. */
+  private void run() {
+    while (!closed) {
+      Runnable task = commands.poll();
+      if (task == null) {
+        // A batch of commands is over, a good time to write it to the journal
+        state.flushJournal();
+        parked = true;
+        // Checked again once parked is set, so that a command added meanwhile is not missed
+        task = commands.poll();
+        if (task == null) {
+          if (!closed) LockSupport.park(this);
+          parked = false;
+          continue;
+        }
+        parked = false;
+      }
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        LOGGER.log(Level.SEVERE, "Error in room " + id, e);
+      }
+    }
+    state.closeJournal();
+  }
+
+  /**
+   * Run a task on the thread of the room.
+   *
+   * @param task the task to run
+   * @return false if the queue of the room is full, in which case the task is dropped
+   */
+  public boolean execute(Runnable task) {
+    if (!commands.offer(task)) {
+      return false;
+    }
+    if (parked) {
+      LockSupport.unpark(thread);
+    }
+    return true;
+  }
+
+  /**
+   * Run a task on the thread of the room after a delay. The task is never dropped, it waits until
+   * the queue of the room has room for it.
+   *
+   * @param task the task to run
+   * @param delay the delay before running the task
+   * @param unit the unit of the delay
+   */
+  public void schedule(Runnable task, long delay, TimeUnit unit) {
+    TIMER.schedule(
+        () -> {
+          if (!closed && !execute(task)) {
+            schedule(task, TIMER_RETRY_MS, TimeUnit.MILLISECONDS);
+          }
+        },
+        delay,
+        unit);
+  }
+
+  /**
+   * Get the number of commands waiting to be handled by the room.
+   *
+   * @return the number of commands
+   */
+  public int getQueueSize() {
+    return commands.size();
+  }
+
+  /**
+   * Check if the start of a game is scheduled. Only used on the thread of the room.
+   *
+   * @return true if a game is about to start
+   */
+  public boolean isGameScheduled() {
+    return gameScheduled;
+  }
+
+  /**
+   * Start the countdown of a game. Only used on the thread of the room.
+   *
+   * @return the number of the countdown, to end it with
+   */
+  public int startCountdown() {
+    gameScheduled = true;
+    return ++countdown;
+  }
+
+  /**
+   * End the countdown of a game once it is over. Only used on the thread of the room.
+   *
+   * @param countdown the number of the countdown
+   * @return true if the game is to start, false if the countdown was cancelled
+   */
+  public boolean endCountdown(int countdown) {
+    if (!gameScheduled || countdown != this.countdown) {
+      return false;
+    }
+    gameScheduled = false;
+    return true;
+  }
+
+  /** Cancel the countdown of a game. Only used on the thread of the room. */
+  public void cancelCountdown() {
+    gameScheduled = false;
+  }
+
+  public String getParagraph() {
+    return paragraph;
+  }
+
+  /**
+   * Set the paragraph of the next game. Only used on the thread of the room.
+   *
+   * @param id the ID of the paragraph
+   * @param paragraph the paragraph
+   */
+  public void setParagraph(int id, String paragraph) {
+    byte[] bytes = paragraph.getBytes(StandardCharsets.UTF_8);
+    this.paragraph = paragraph;
+    this.paragraphHash = BinaryCodec.textHash(bytes);
+    this.paragraphLength = bytes.length;
+    this.paragraphId = id;
+  }
+
+  public int getParagraphId() {
+    return paragraphId;
+  }
+
+  public long getParagraphHash() {
+    return paragraphHash;
+  }
+
+  /**
+   * Get the length of the paragraph encoded in UTF-8.
+   *
+   * @return the length in bytes
+   */
+  public int getParagraphLength() {
+    return paragraphLength;
+  }
+
+  /**
+   * Replace the broadcast tick of the room.
+   *
+   * @param tick the new tick
+   * @return the previous tick, or null if the room was never broadcast
+   */
+  synchronized BroadcastScheduler.Tick swapBroadcastTick(BroadcastScheduler.Tick tick) {
+    BroadcastScheduler.Tick previous = broadcastTick;
+    broadcastTick = tick;
+    return previous;
+  }
+
+  /** Stop the room. Pending tasks are discarded, and the journal of the room is closed. */
+  public void close() {
+    closed = true;
+    if (thread == null) {
+      return;
+    }
+    LockSupport.unpark(thread);
+    try {
+      thread.join(TimeUnit.SECONDS.toMillis(1));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
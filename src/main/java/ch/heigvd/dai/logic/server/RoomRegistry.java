@@ -0,0 +1,223 @@
+package ch.heigvd.dai.logic.server;
+
+import ch.heigvd.dai.logic.shared.InternTable;
+import ch.heigvd.dai.logic.shared.Tokenizer;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Registry of the rooms hosted by the server. Usernames are unique across all the rooms. Each
+ * connected player gets a small integer ID, which indexes its data in the {@link PlayerTable} and
+ * identifies it in the binary protocol, so the room of a player is found from its ID only.
+ * Usernames are interned so that text messages can find them without decoding.
+ */
+public class RoomRegistry {
+  /** Highest multicast port, that of the last room. */
+  public static final int MAX_PORT = 0xFFFF;
+
+  private static final Logger LOGGER = Logger.getLogger(RoomRegistry.class.getName());
+
+  private final Room[] rooms;
+  private final PlayerTable players = new PlayerTable();
+  private final ConcurrentHashMap<String, Integer> idsByUser = new ConcurrentHashMap<>();
+  private final InternTable usernames = new InternTable();
+
+  /**
+   * Create a new room registry.
+   *
+   * @param numRooms the number of rooms to host, at most {@link #maxRooms(int)}
+   * @param multicastAddress the multicast address shared by the rooms
+   * @param baseMulticastPort the multicast port of the first room, the next rooms use the following
+   *     ports
+   */
+  public RoomRegistry(int numRooms, InetAddress multicastAddress, int baseMulticastPort) {
+    rooms = new Room[numRooms];
+    for (int i = 0; i < numRooms; ++i) {
+      rooms[i] =
+          new Room(i, new InetSocketAddress(multicastAddress, baseMulticastPort + i), players);
+    }
+  }
+
+  /**
+   * Get the maximum number of rooms, each room multicasting on its own port from the first one. The
+   * IDs of the rooms then fit in the 16 bits of the room of a player in the {@link PlayerTable}.
+   *
+   * @param baseMulticastPort the multicast port of the first room
+   * @return the number of ports from the first one to {@link #MAX_PORT}
+   */
+  public static int maxRooms(int baseMulticastPort) {
+    return MAX_PORT - baseMulticastPort + 1;
+  }
+
+  /**
+   * Get a room from its id.
+   *
+   * @param id the id of the room
+   * @return the room or null if the room doesn't exist
+   */
+  public Room getRoom(int id) {
+    if (id < 0 || id >= rooms.length) return null;
+    return rooms[id];
+  }
+
+  public int getNumRooms() {
+    return rooms.length;
+  }
+
+  public PlayerTable getPlayers() {
+    return players;
+  }
+
+  /**
+   * Get the room of a player.
+   *
+   * @param id the ID of the player
+   * @return the room of the player or null if the player is not connected
+   */
+  public Room getRoomOf(int id) {
+    return getRoom(players.getRoom(id));
+  }
+
+  /**
+   * Get the username of a player from its ID.
+   *
+   * @param id the ID of the player
+   * @return the username or null if no player has this ID
+   */
+  public String getUsername(int id) {
+    return players.getUsername(id);
+  }
+
+  /**
+   * Get the ID of a player from its username.
+   *
+   * @param username the username of the player
+   * @return the ID of the player or -1 if no player has this username
+   */
+  public int getId(String username) {
+    Integer id = idsByUser.get(username);
+    return id != null ? id : -1;
+  }
+
+  /**
+   * Find the username of a connected player from the current token of a tokenizer.
+   *
+   * @param tokenizer the tokenizer positioned on the username
+   * @return the interned username or null if no player has this username
+   */
+  public String findUsername(Tokenizer tokenizer) {
+    return tokenizer.tokenInterned(usernames);
+  }
+
+  /**
+   * Reserve a username and give it an ID. The player is then to be registered in its room.
+   *
+   * @param username the username to reserve
+   * @return the ID of the player, or -1 if the username is already taken or the server is full
+   */
+  public int reserveUsername(String username) {
+    int id = players.allocate(username);
+    if (id < 0) {
+      return -1;
+    }
+    if (idsByUser.putIfAbsent(username, id) != null) {
+      players.release(id);
+      return -1;
+    }
+    usernames.intern(username);
+    return id;
+  }
+
+  /**
+   * Release a username and its ID.
+   *
+   * @param username the username to release
+   * @param id the ID of the player
+   */
+  public void releaseUsername(String username, int id) {
+    // The username is only free once everything else is released
+    usernames.remove(username);
+    players.release(id);
+    idsByUser.remove(username);
+  }
+
+  /**
+   * Restore the rooms from their journals in a directory, then journal every change of the rooms
+   * there. Only used before the rooms are started.
+   *
+   * @param directory the directory of the journals, created if needed
+   * @return the number of players restored
+   * @throws IOException if a journal can't be read or written
+   */
+  public int openJournals(Path directory) throws IOException {
+    Files.createDirectories(directory);
+    int numRestored = 0;
+    for (Room room : rooms) {
+      Path path = journalPath(directory, room);
+      if (Files.exists(path)) {
+        numRestored += restore(room.state, StateJournal.replay(path));
+      }
+    }
+    players.rebuildFreeIds();
+    for (Room room : rooms) {
+      room.state.setJournal(StateJournal.create(journalPath(directory, room), room.state));
+    }
+    return numRestored;
+  }
+
+  private static Path journalPath(Path directory, Room room) {
+    return directory.resolve("room-" + room.id + ".journal");
+  }
+
+  /**
+   * Restore the state of a room and its players.
+   *
+   * @param state the state of the room
+   * @param image the state of the room rebuilt from its journal
+   * @return the number of players restored
+   */
+  private int restore(ServerState state, StateJournal.Image image) {
+    int numRestored = 0;
+    for (Map.Entry<Integer, StateJournal.Member> entry : image.members.entrySet()) {
+      int id = entry.getKey();
+      StateJournal.Member member = entry.getValue();
+      // Only when a journal was not flushed before the server stopped
+      if (idsByUser.containsKey(member.username) || !players.claim(id, member.username)) {
+        LOGGER.warning("Player " + member.username + " is in several rooms, keeping the first one");
+        continue;
+      }
+      idsByUser.put(member.username, id);
+      usernames.intern(member.username);
+      players.setAddress(id, member.address);
+      state.registerClient(id, member.binary);
+      if (member.heartbeats) state.setHeartbeats(id);
+      if (member.reliable) state.setReliable(id);
+      if (member.ready) state.setUserReady(id);
+      state.setInGame(id, member.inGame);
+      state.setPlayerProgress(id, member.progress);
+      ++numRestored;
+    }
+    state.setGameState(image.gameState);
+    return numRestored;
+  }
+
+  /** Start the threads of all the rooms, once their state is restored. */
+  public void start() {
+    for (Room room : rooms) {
+      room.start();
+    }
+  }
+
+  /** Close all the rooms. */
+  public void close() {
+    for (Room room : rooms) {
+      room.close();
+    }
+  }
+}
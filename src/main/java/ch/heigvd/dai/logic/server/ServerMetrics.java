@@ -0,0 +1,179 @@
+package ch.heigvd.dai.logic.server;
+
+import ch.heigvd.dai.commands.Client;
+import ch.heigvd.dai.commands.Server;
+import ch.heigvd.dai.logic.shared.BinaryCodec;
+import ch.heigvd.dai.logic.shared.CommandNames;
+import ch.heigvd.dai.logic.shared.FragmentAssembler;
+import ch.heigvd.dai.logic.shared.Tokenizer;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Live metrics of the server: counters updated as messages come and go, gauges read from the state
+ * of the server when the metrics are queried, and the latency of the handling of the messages.
+ * Counters are striped so that they can be updated from any thread without contention.
+ *
+ * <p>The metrics are reported as text, one {@code name value} line per metric.
+ */
+public class ServerMetrics {
+  private static final Client.Command[] CLIENT_COMMANDS = Client.Command.values();
+  private static final Server.Command[] SERVER_COMMANDS = Server.Command.values();
+  private static final CommandNames<Server.Command> SERVER_COMMAND_NAMES =
+      new CommandNames<>(SERVER_COMMANDS);
+
+  private final long startTime = System.nanoTime();
+  private final LongAdder[] packetsIn = newCounters(CLIENT_COMMANDS.length);
+  private final LongAdder[] packetsOut = newCounters(SERVER_COMMANDS.length);
+  private final LongAdder fragmentsOut = new LongAdder();
+  private final LongAdder bytesIn = new LongAdder();
+  private final LongAdder bytesOut = new LongAdder();
+  private final LongAdder parseErrors = new LongAdder();
+  private final LongAdder droppedIn = new LongAdder();
+  private final LongAdder truncatedIn = new LongAdder();
+  private final LongAdder sessionsExpired = new LongAdder();
+  private final LongAdder controlRetransmits = new LongAdder();
+  private final LatencyHistogram handleLatency = new LatencyHistogram();
+  private final Map<String, LongSupplier> gauges = new LinkedHashMap<>();
+  // Only used by the sending thread
+  private final Tokenizer sentTokenizer = new Tokenizer();
+
+  private static LongAdder[] newCounters(int size) {
+    LongAdder[] counters = new LongAdder[size];
+    for (int i = 0; i < size; ++i) {
+      counters[i] = new LongAdder();
+    }
+    return counters;
+  }
+
+  /**
+   * Count a datagram received.
+   *
+   * @param bytes the size of the datagram
+   * @param truncated true if the datagram didn't fit in the receive buffer
+   */
+  public void countReceived(int bytes, boolean truncated) {
+    bytesIn.add(bytes);
+    if (truncated) {
+      truncatedIn.increment();
+    }
+  }
+
+  /**
+   * Count a valid command received.
+   *
+   * @param command the command received
+   */
+  public void countCommand(Client.Command command) {
+    packetsIn[command.ordinal()].increment();
+  }
+
+  /** Count a message that couldn't be parsed. */
+  public void countParseError() {
+    parseErrors.increment();
+  }
+
+  /** Count a datagram dropped before being handled. */
+  public void countDropped() {
+    droppedIn.increment();
+  }
+
+  /** Count a player removed because it stopped sending messages. */
+  public void countSessionExpired() {
+    sessionsExpired.increment();
+  }
+
+  /** Count a control frame multicast again because a client missed it. */
+  public void countControlRetransmit() {
+    controlRetransmits.increment();
+  }
+
+  /**
+   * Record the time taken to handle a message.
+   *
+   * @param nanos the time in nanoseconds
+   */
+  public void recordHandleTime(long nanos) {
+    handleLatency.record(nanos);
+  }
+
+  /**
+   * Count a datagram sent. Only called by the sending thread. The frame is read without being
+   * modified.
+   *
+   * @param frame the frame sent, from its position to its limit
+   */
+  public void countSent(ByteBuffer frame) {
+    bytesOut.add(frame.remaining());
+    if (FragmentAssembler.isFragment(frame)) {
+      fragmentsOut.increment();
+      return;
+    }
+    Server.Command command;
+    if (BinaryCodec.isBinary(frame)) {
+      int ordinal = BinaryCodec.ordinal(frame.get(frame.position()));
+      command = ordinal < SERVER_COMMANDS.length ? SERVER_COMMANDS[ordinal] : null;
+    } else {
+      Tokenizer tokenizer = sentTokenizer.reset(frame);
+      command = tokenizer.next() ? SERVER_COMMAND_NAMES.match(tokenizer) : null;
+    }
+    if (command != null) {
+      packetsOut[command.ordinal()].increment();
+    }
+  }
+
+  /**
+   * Register a gauge, read each time the metrics are reported.
+   *
+   * @param name the name of the gauge
+   * @param gauge the function giving the value of the gauge
+   */
+  public synchronized void registerGauge(String name, LongSupplier gauge) {
+    gauges.put(name, gauge);
+  }
+
+  /**
+   * Report the current value of all the metrics.
+   *
+   * @param droppedOut the number of datagrams dropped by the sender
+   * @param truncatedOut the number of messages truncated by the sender
+   * @return the metrics as text, one metric per line
+   */
+  public synchronized String report(long droppedOut, long truncatedOut) {
+    StringBuilder sb = new StringBuilder();
+    line(sb, "uptime_seconds", TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startTime));
+    for (Client.Command command : CLIENT_COMMANDS) {
+      line(sb, "packets_in{command=\"" + command + "\"}", packetsIn[command.ordinal()].sum());
+    }
+    for (Server.Command command : SERVER_COMMANDS) {
+      line(sb, "packets_out{command=\"" + command + "\"}", packetsOut[command.ordinal()].sum());
+    }
+    line(sb, "fragments_out", fragmentsOut.sum());
+    line(sb, "bytes_in", bytesIn.sum());
+    line(sb, "bytes_out", bytesOut.sum());
+    line(sb, "parse_errors", parseErrors.sum());
+    line(sb, "dropped_in", droppedIn.sum());
+    line(sb, "truncated_in", truncatedIn.sum());
+    line(sb, "dropped_out", droppedOut);
+    line(sb, "truncated_out", truncatedOut);
+    line(sb, "sessions_expired", sessionsExpired.sum());
+    line(sb, "control_retransmits", controlRetransmits.sum());
+    for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+      line(sb, gauge.getKey(), gauge.getValue().getAsLong());
+    }
+    line(sb, "handle_message_count", handleLatency.getCount());
+    line(sb, "handle_message_mean_ns", handleLatency.getMean());
+    line(sb, "handle_message_p50_ns", handleLatency.getPercentile(50));
+    line(sb, "handle_message_p99_ns", handleLatency.getPercentile(99));
+    line(sb, "handle_message_max_ns", handleLatency.getMax());
+    return sb.toString();
+  }
+
+  private static void line(StringBuilder sb, String name, long value) {
+    sb.append(name).append(' ').append(value).append('\n');
+  }
+}
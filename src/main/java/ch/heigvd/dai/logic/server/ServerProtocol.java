@@ -1,118 +1,369 @@
 package ch.heigvd.dai.logic.server;
 
+import ch.heigvd.dai.logic.shared.DatagramSender;
 import ch.heigvd.dai.logic.shared.Message;
+import ch.heigvd.dai.logic.shared.Packet;
+import ch.heigvd.dai.logic.shared.PacketPool;
 import java.io.IOException;
 import java.net.*;
-import java.nio.charset.StandardCharsets;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.function.Consumer;
 import java.util.logging.Logger;
 
-/** Server protocol for sending and receiving messages to the clients. */
+/**
+ * Server protocol for sending and receiving messages to the clients.
+ *
+ * <p>Unicast messages are received by a non-blocking event loop into pooled packets. The packets
+ * are then handed to a worker stage: either directly on the event loop thread, or to a fixed set of
+ * worker lanes. Each lane has its own bounded queue and thread, and the packets of a client always
+ * go to the same lane, picked from a hash of its address, so the messages of a client are handled
+ * in order while the clients are spread over all the lanes. When the queue of a lane is full,
+ * packets are dropped as the network would do.
+ *
+ * <p>Outbound messages, unicast and multicast, all go through a single long-lived channel.
+ */
 public class ServerProtocol {
 
   private static final Logger LOGGER = Logger.getLogger(ServerProtocol.class.getName());
-  private static final int BUFFER_SIZE = 1024;
+  // Every outbound message at FINE, in its own logger so that it can be enabled and sampled apart
+  private static final Logger MESSAGE_LOGGER =
+      Logger.getLogger(ServerProtocol.class.getName() + ".messages");
 
-  private final int multicastPort;
-  private final DatagramSocket unicastSocket;
-  private final MulticastSocket multicastSocket;
-  private final InetAddress multicastGroup;
+  /** Maximum size of a datagram, text messages included. */
+  public static final int BUFFER_SIZE = 1024;
+
+  private static final int QUEUE_CAPACITY = 4096;
+  private static final int MIN_LANE_CAPACITY = 256;
+
+  private final DatagramChannel unicastChannel;
+  private final Selector selector;
+  private final DatagramChannel sendChannel;
+  private final DatagramSender sender;
+  private final Lane[] lanes;
+  private final PacketPool packetPool;
+  private final ServerMetrics metrics;
 
   /**
    * Create a new server protocol.
    *
    * @param port the port to use for the unicast socket
-   * @param multicastAddress the multicast address to use
-   * @param multicastPort the multicast port to use
+   * @param numWorkers the number of worker lanes handling the messages, 0 to handle them on the
+   *     receiving thread
+   * @param metrics the metrics to update with the traffic of the server
    * @throws IOException if an error occurs while creating the sockets
    */
-  public ServerProtocol(int port, String multicastAddress, int multicastPort) throws IOException {
+  public ServerProtocol(int port, int numWorkers, ServerMetrics metrics) throws IOException {
     try {
-      unicastSocket = new DatagramSocket(port);
-      this.multicastPort = multicastPort;
-      multicastSocket = new MulticastSocket();
-      multicastGroup = InetAddress.getByName(multicastAddress);
+      unicastChannel = DatagramChannel.open();
+      unicastChannel.bind(new InetSocketAddress(port));
+      unicastChannel.configureBlocking(false);
+      selector = Selector.open();
+      unicastChannel.register(selector, SelectionKey.OP_READ);
+      sendChannel = DatagramChannel.open();
     } catch (IOException e) {
       LOGGER.severe("Error creating sockets: " + e.getMessage());
       throw e;
     }
+    int laneCapacity =
+        numWorkers > 0 ? Math.max(MIN_LANE_CAPACITY, QUEUE_CAPACITY / numWorkers) : 0;
+    this.lanes = new Lane[numWorkers];
+    for (int i = 0; i < numWorkers; ++i) {
+      lanes[i] = new Lane(i, laneCapacity);
+    }
+    // Enough packets for full queues, one per lane and the one being received
+    this.packetPool = new PacketPool(laneCapacity * numWorkers + numWorkers + 1, BUFFER_SIZE);
+    this.sender = new DatagramSender(sendChannel, QUEUE_CAPACITY, BUFFER_SIZE, "server-sender");
+    this.metrics = metrics;
+    sender.setSentListener(metrics::countSent);
+    for (Lane lane : lanes) {
+      registerLaneGauges(lane);
+    }
   }
 
   /**
-   * Listen to unicast messages. This function will block until the socket is closed.
+   * Register the gauges of a worker lane: the number of packets waiting in its queue and the time
+   * taken to handle them.
    *
-   * @param messageHandler the handler to call for each message
-   * @throws IOException if an error occurs while listening
+   * @param lane the lane
    */
-  public void listenForUnicastMessages(Consumer<Message> messageHandler) {
-    while (unicastSocket.isBound() && !unicastSocket.isClosed()) {
+  private void registerLaneGauges(Lane lane) {
+    String label = "{lane=\"" + lane.index + "\"}";
+    metrics.registerGauge("lane_queue_size" + label, lane.queue::size);
+    metrics.registerGauge("lane_handled" + label, lane.handleLatency::getCount);
+    metrics.registerGauge("lane_handle_mean_ns" + label, lane.handleLatency::getMean);
+    metrics.registerGauge("lane_handle_p99_ns" + label, () -> lane.handleLatency.getPercentile(99));
+  }
+
+  /**
+   * Listen to unicast messages. This function will block until the socket is closed. The packet
+   * given to the handler is released once the handler returns and must not be kept.
+   *
+   * @param packetHandler the handler to call for each packet
+   */
+  public void listenForUnicastMessages(Consumer<Packet> packetHandler) {
+    startWorkers(packetHandler);
+    while (selector.isOpen()) {
       try {
-        Message message = receiveUnicast();
-        messageHandler.accept(message);
+        selector.select();
+        selector.selectedKeys().clear();
+        receiveAll(packetHandler);
+      } catch (ClosedSelectorException e) {
+        break;
       } catch (IOException e) {
+        if (!unicastChannel.isOpen()) break;
         LOGGER.warning("Error receiving unicast message: " + e.getMessage());
       }
     }
   }
 
   /**
-   * Receive a unicast message.
+   * Receive all the datagrams available on the unicast channel.
+   *
+   * @param packetHandler the handler to call when handling packets on the receiving thread
+   * @throws IOException if an error occurs while receiving
+   */
+  private void receiveAll(Consumer<Packet> packetHandler) throws IOException {
+    while (true) {
+      Packet packet = packetPool.acquire();
+      if (!packet.receive(unicastChannel)) {
+        packet.release();
+        return;
+      }
+      // A datagram filling the whole buffer was most likely cut
+      int size = packet.buffer.remaining();
+      metrics.countReceived(size, size == packet.buffer.capacity());
+      if (lanes.length == 0) {
+        handlePacket(packet, packetHandler);
+        continue;
+      }
+      Lane lane = laneOf(packet);
+      if (!lane.queue.offer(packet)) {
+        metrics.countDropped();
+        LOGGER.warning(
+            "Queue of lane " + lane.index + " full, dropping message from " + packet.getRemote());
+        packet.release();
+      }
+    }
+  }
+
+  /**
+   * Get the lane handling the packets of a client. The address is hashed rather than the player, so
+   * that the lane is known without parsing the message.
    *
-   * @return the message received
-   * @throws IOException if an error occurs while receiving the message
+   * @param packet the packet of the client
+   * @return the lane
    */
-  private Message receiveUnicast() throws IOException {
-    byte[] buffer = new byte[BUFFER_SIZE];
-    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+  private Lane laneOf(Packet packet) {
+    InetSocketAddress remote = packet.getRemote();
+    // Spreads the consecutive ports of clients on the same host over all the lanes
+    int hash = (remote.getAddress().hashCode() * 31 + remote.getPort()) * 0x9E3779B9;
+    return lanes[Integer.remainderUnsigned(hash, lanes.length)];
+  }
 
-    unicastSocket.receive(packet);
-    String message =
-        new String(
-            packet.getData(), packet.getOffset(), packet.getLength(), StandardCharsets.UTF_8);
+  /**
+   * Start the worker threads, if any.
+   *
+   * @param packetHandler the handler to call for each packet
+   */
+  private void startWorkers(Consumer<Packet> packetHandler) {
+    for (Lane lane : lanes) {
+      lane.thread =
+          Thread.ofPlatform()
+              .name("server-worker-" + lane.index)
+              .daemon()
+              .start(
+                  () -> {
+                    try {
+                      while (!Thread.currentThread().isInterrupted()) {
+                        Packet packet = lane.queue.take();
+                        long start = System.nanoTime();
+                        handlePacket(packet, packetHandler);
+                        lane.handleLatency.record(System.nanoTime() - start);
+                      }
+                    } catch (InterruptedException e) {
+                      Thread.currentThread().interrupt();
+                    }
+                  });
+    }
+  }
 
-    return new Message(message, packet.getAddress(), packet.getPort());
+  /**
+   * Handle a packet and release it.
+   *
+   * @param packet the packet to handle
+   * @param packetHandler the handler to call
+   */
+  private void handlePacket(Packet packet, Consumer<Packet> packetHandler) {
+    try {
+      packetHandler.accept(packet);
+    } catch (RuntimeException e) {
+      LOGGER.warning("Error handling message from " + packet.getRemote() + ": " + e);
+    } finally {
+      packet.release();
+    }
   }
 
   /**
    * Send a unicast message to a client.
    *
    * @param message the message to send
-   * @throws IOException if an error occurs while sending the message
    */
   public void sendUnicast(Message message) {
-    try (DatagramSocket socket = new DatagramSocket()) {
-      byte[] buffer = message.str.getBytes(StandardCharsets.UTF_8);
-      DatagramPacket packet =
-          new DatagramPacket(buffer, buffer.length, message.address, message.port);
-      socket.send(packet);
-      LOGGER.info(
-          "Sent message to client " + message.address + ":" + message.port + ": " + message.str);
+    send(message.str, new InetSocketAddress(message.address, message.port));
+    MESSAGE_LOGGER.fine(
+        () ->
+            "Sent message to client " + message.address + ":" + message.port + ": " + message.str);
+  }
+
+  /**
+   * Send a multicast message to all clients of a multicast group.
+   *
+   * @param message the message to send
+   * @param group the multicast group to send to (one per room)
+   */
+  public void multicast(String message, InetSocketAddress group) {
+    send(message, group);
+    MESSAGE_LOGGER.fine(() -> "Sent multicast to clients on " + group + ": " + message);
+  }
+
+  /**
+   * Take an empty packet to write a binary frame into. The packet must then be given to {@link
+   * #send(Packet)}.
+   *
+   * @param target the address to send the packet to
+   * @return an empty packet
+   */
+  public Packet newPacket(InetSocketAddress target) {
+    return sender.allocate(target);
+  }
+
+  /**
+   * Take an empty packet to write a binary frame to a client into.
+   *
+   * @param address the address of the client
+   * @param port the port of the client
+   * @return an empty packet
+   */
+  public Packet newPacket(InetAddress address, int port) {
+    return newPacket(new InetSocketAddress(address, port));
+  }
+
+  /**
+   * Take an empty packet to write a binary frame that may not fit in a datagram into, such as a
+   * roster or a paragraph. The frame is fragmented when sent if needed.
+   *
+   * @param target the address to send the packet to
+   * @return an empty packet
+   */
+  public Packet newLargePacket(InetSocketAddress target) {
+    return sender.allocateLarge(target);
+  }
+
+  /**
+   * Take an empty packet to write a binary frame to a client that may not fit in a datagram into.
+   *
+   * @param address the address of the client
+   * @param port the port of the client
+   * @return an empty packet
+   */
+  public Packet newLargePacket(InetAddress address, int port) {
+    return newLargePacket(new InetSocketAddress(address, port));
+  }
+
+  /**
+   * Send a binary frame written into a packet obtained from {@link #newPacket(InetSocketAddress)}
+   * or {@link #newLargePacket(InetSocketAddress)}.
+   *
+   * @param packet the packet to send
+   */
+  public void send(Packet packet) {
+    InetSocketAddress target = packet.getRemote();
+    try {
+      sender.submit(packet);
+      MESSAGE_LOGGER.fine(() -> "Sent binary frame to " + target);
     } catch (IOException e) {
-      LOGGER.severe("Error sending message to client: " + e.getMessage());
+      LOGGER.severe("Error sending message to " + target + ": " + e.getMessage());
     }
   }
 
   /**
-   * Send a multicast message to all clients.
+   * Queue a message on the send channel.
    *
    * @param message the message to send
-   * @throws IOException if an error occurs while sending the message
+   * @param target the address to send the message to
    */
-  public void multicast(String message) {
+  private void send(String message, InetSocketAddress target) {
     try {
-      byte[] buffer = message.getBytes(StandardCharsets.UTF_8);
-      DatagramPacket packet =
-          new DatagramPacket(buffer, buffer.length, multicastGroup, multicastPort);
-      multicastSocket.send(packet);
-      LOGGER.info("Sent multicast to clients: " + message);
+      sender.send(message, target);
     } catch (IOException e) {
-      LOGGER.severe("Error multicasting message to clients: " + e.getMessage());
+      LOGGER.severe("Error sending message to " + target + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Get the number of packets waiting for a worker, in all the lanes.
+   *
+   * @return the size of the worker queues
+   */
+  public int getWorkQueueSize() {
+    int size = 0;
+    for (Lane lane : lanes) {
+      size += lane.queue.size();
     }
+    return size;
+  }
+
+  /**
+   * Get the number of datagrams waiting to be sent.
+   *
+   * @return the size of the send queue
+   */
+  public int getSendQueueSize() {
+    return sender.getQueueSize();
+  }
+
+  /**
+   * Report the metrics of the server, along with the counters of the sender.
+   *
+   * @return the metrics as text
+   */
+  public String reportMetrics() {
+    return metrics.report(sender.getNumDropped(), sender.getNumTruncated());
   }
 
-  /** Close the sockets. */
+  /** Close the sockets and stop the workers. */
   public void closeSockets() {
-    if (unicastSocket != null && !unicastSocket.isClosed()) unicastSocket.close();
-    if (multicastSocket != null && !multicastSocket.isClosed()) multicastSocket.close();
+    try {
+      selector.close();
+      unicastChannel.close();
+    } catch (IOException e) {
+      LOGGER.warning("Error closing unicast channel: " + e.getMessage());
+    }
+    sender.close();
+    try {
+      sendChannel.close();
+    } catch (IOException e) {
+      LOGGER.warning("Error closing send channel: " + e.getMessage());
+    }
+    for (Lane lane : lanes) {
+      if (lane.thread != null) lane.thread.interrupt();
+    }
+  }
+
+  /** Worker lane: a queue of packets and the thread handling them in order. */
+  private static class Lane {
+    private final int index;
+    private final ArrayBlockingQueue<Packet> queue;
+    private final LatencyHistogram handleLatency = new LatencyHistogram();
+    private Thread thread;
+
+    private Lane(int index, int capacity) {
+      this.index = index;
+      this.queue = new ArrayBlockingQueue<>(capacity);
+    }
   }
 }
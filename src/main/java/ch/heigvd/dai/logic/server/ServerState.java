@@ -1,35 +1,200 @@
 package ch.heigvd.dai.logic.server;
 
 import ch.heigvd.dai.logic.shared.BaseState;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Arrays;
 
-/** Sever state for the server logic. */
+/**
+ * Sever state of a room. The players of the room are listed by their ID, and their data is kept in
+ * the {@link PlayerTable} shared by all the rooms.
+ *
+ * <p>The state is only changed by the thread of the room. The game state and the list of players
+ * are published together as an immutable {@link Snapshot}, replaced on every change, so other
+ * threads such as the progress broadcasts read a consistent view without locking. Each change is
+ * also recorded in the {@link StateJournal} of the room, if any.
+ */
 public class ServerState extends BaseState {
-  private final ConcurrentHashMap<String, ClientInfo> connectedClients = new ConcurrentHashMap<>();
+  private final int roomId;
+  private final PlayerTable players;
+  private volatile Snapshot snapshot = new Snapshot(GameState.WAITING, new int[0], 0);
+  private StateJournal journal;
 
-  public ConcurrentHashMap<String, ClientInfo> getConnectedClients() {
-    return connectedClients;
+  /**
+   * State of a room at some point.
+   *
+   * @param gameState the state of the game
+   * @param members the IDs of the players, in the order they joined, which must not be modified
+   * @param numBinaryClients the number of players using the binary protocol
+   */
+  public record Snapshot(GameState gameState, int[] members, int numBinaryClients) {
+    public boolean hasBinaryClients() {
+      return numBinaryClients > 0;
+    }
+
+    public boolean hasTextClients() {
+      return numBinaryClients < members.length;
+    }
+  }
+
+  /**
+   * Create the state of a room.
+   *
+   * @param roomId the ID of the room
+   * @param players the table of the players of the server
+   */
+  public ServerState(int roomId, PlayerTable players) {
+    this.roomId = roomId;
+    this.players = players;
+  }
+
+  public Snapshot getSnapshot() {
+    return snapshot;
+  }
+
+  /**
+   * Set the journal recording the changes of the room. Only used before the room handles messages.
+   *
+   * @param journal the journal
+   */
+  void setJournal(StateJournal journal) {
+    this.journal = journal;
+  }
+
+  /** Write the changes recorded so far to the journal. Only used on the thread of the room. */
+  void flushJournal() {
+    if (journal != null) journal.flush();
+  }
+
+  /** Close the journal of the room. Only used on the thread of the room. */
+  void closeJournal() {
+    if (journal != null) journal.close();
+    journal = null;
+  }
+
+  /**
+   * Rewrite the journal of the room with its current state, once a game ended. Only used on the
+   * thread of the room.
+   */
+  public void checkpointJournal() {
+    if (journal != null) journal = journal.checkpoint(this);
+  }
+
+  private void record(byte operation, int id, int value) {
+    if (journal != null) journal.record(operation, id, value);
+  }
+
+  @Override
+  public GameState getGameState() {
+    return snapshot.gameState;
+  }
+
+  @Override
+  public void setGameState(GameState gameState) {
+    Snapshot current = snapshot;
+    snapshot = new Snapshot(gameState, current.members, current.numBinaryClients);
+    record(StateJournal.GAME_STATE, 0, gameState.ordinal());
+  }
+
+  /**
+   * Get the IDs of the players of the room.
+   *
+   * @return the IDs, in the order the players joined, which must not be modified
+   */
+  public int[] getMembers() {
+    return snapshot.members;
+  }
+
+  public PlayerTable getPlayers() {
+    return players;
+  }
+
+  /**
+   * Check if a player is in the room.
+   *
+   * @param id the ID of the player
+   * @return true if the player is connected to this room
+   */
+  public boolean isMember(int id) {
+    return players.getRoom(id) == roomId;
+  }
+
+  /**
+   * Add a player to the room. The address of the player is set before, so that it is journaled.
+   *
+   * @param id the ID of the player
+   * @param binary true if the player uses the binary protocol
+   */
+  public void registerClient(int id, boolean binary) {
+    players.register(id, roomId, binary);
+    Snapshot current = snapshot;
+    int[] members = Arrays.copyOf(current.members, current.members.length + 1);
+    members[current.members.length] = id;
+    snapshot =
+        new Snapshot(current.gameState, members, current.numBinaryClients + (binary ? 1 : 0));
+    if (journal != null) {
+      journal.join(id, players.getUsername(id), binary, players.getAddress(id));
+    }
   }
 
-  public boolean usernameExists(String username) {
-    return connectedClients.containsKey(username);
+  /**
+   * Remove a player from the room. Its ID is still to be released.
+   *
+   * @param id the ID of the player
+   */
+  public void removeUser(int id) {
+    Snapshot current = snapshot;
+    for (int i = 0; i < current.members.length; ++i) {
+      if (current.members[i] == id) {
+        int[] members = Arrays.copyOf(current.members, current.members.length - 1);
+        System.arraycopy(current.members, i + 1, members, i, current.members.length - i - 1);
+        int numBinaryClients = current.numBinaryClients - (players.isBinary(id) ? 1 : 0);
+        snapshot = new Snapshot(current.gameState, members, numBinaryClients);
+        record(StateJournal.QUIT, id, 0);
+        return;
+      }
+    }
+  }
+
+  public boolean hasBinaryClients() {
+    return snapshot.hasBinaryClients();
+  }
+
+  public boolean hasTextClients() {
+    return snapshot.hasTextClients();
+  }
+
+  public void setUserReady(int id) {
+    players.setReady(id, true);
+    record(StateJournal.READY, id, 1);
   }
 
-  public void registerClient(String username, ClientInfo clientInfo) {
-    connectedClients.put(username, clientInfo);
+  /**
+   * Mark a player as sending heartbeats, so that it is removed once it stops sending messages.
+   *
+   * @param id the ID of the player
+   */
+  public void setHeartbeats(int id) {
+    players.setHeartbeats(id);
+    record(StateJournal.HEARTBEATS, id, 1);
   }
 
-  public void setUserReady(String username) {
-    connectedClients.get(username).player.setReady(true);
+  /**
+   * Mark a player as acknowledging the control frames of the room, so that they are sent again
+   * until it does.
+   *
+   * @param id the ID of the player
+   */
+  public void setReliable(int id) {
+    players.setReliable(id);
+    record(StateJournal.RELIABLE, id, 1);
   }
 
-  public boolean isUserReady(String username) {
-    return connectedClients.get(username).player.isReady();
+  public boolean isUserReady(int id) {
+    return players.isReady(id);
   }
 
-  public synchronized boolean areAllUsersReady() {
-    for (ClientInfo clientInfo : connectedClients.values()) {
-      if (!clientInfo.player.isReady()) {
+  public boolean areAllUsersReady() {
+    for (int id : snapshot.members) {
+      if (!players.isReady(id)) {
         return false;
       }
     }
@@ -37,29 +202,36 @@ public class ServerState extends BaseState {
   }
 
   public int getNumPlayers() {
-    return connectedClients.size();
+    return snapshot.members.length;
+  }
+
+  public boolean isInGame(int id) {
+    return players.isInGame(id);
   }
 
-  public void removeUser(String username) {
-    connectedClients.remove(username);
+  public void setInGame(int id, boolean inGame) {
+    players.setInGame(id, inGame);
+    record(StateJournal.IN_GAME, id, inGame ? 1 : 0);
   }
 
-  public void setPlayerProgress(String username, int progress) {
-    connectedClients.get(username).player.setProgress(progress);
+  public void setPlayerProgress(int id, int progress) {
+    players.setProgress(id, progress);
+    record(StateJournal.PROGRESS, id, progress);
   }
 
-  public synchronized boolean isPlayerInGame() {
-    for (ClientInfo clientInfo : connectedClients.values()) {
-      if (clientInfo.player.isInGame()) {
+  public boolean isPlayerInGame() {
+    for (int id : snapshot.members) {
+      if (players.isInGame(id)) {
         return true;
       }
     }
     return false;
   }
 
-  public synchronized void resetPlayers() {
-    for (ClientInfo clientInfo : connectedClients.values()) {
-      clientInfo.player.reset();
+  public void resetPlayers() {
+    for (int id : snapshot.members) {
+      players.reset(id);
     }
+    record(StateJournal.RESET, 0, 0);
   }
 }
@@ -0,0 +1,319 @@
+package ch.heigvd.dai.logic.server;
+
+import ch.heigvd.dai.logic.shared.BaseState;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Append-only journal of the changes made to the state of a room, so that the rooms of a server
+ * that stopped can be restored as they were. A journal file starts with a header, followed by one
+ * entry per change:
+ *
+ * <pre>
+ * [magic int][version int]
+ * [operation byte][player ID unsigned short][value byte]   then for a JOIN:
+ * [username UTF][address length byte][address bytes][port unsigned short]
+ * </pre>
+ *
+ * <p>The address a player joined from is journaled with it, as the server only accepts the messages
+ * of a binary client from that address. A player without an address has an address length of 0 and
+ * no port. Version 1 journals, without the addresses, are still read: their players are restored
+ * without an address and have to join again.
+ *
+ * <p>A journal is only written by the thread of its room, and is flushed each time the room has no
+ * more commands to handle. A journal starts with the state of the room when it was opened, and is
+ * rewritten with the state of the room each time a game ends, so that it only grows with the
+ * changes made since the last game, such as the progress of the players.
+ */
+public class StateJournal implements Closeable {
+  private static final Logger LOGGER = Logger.getLogger(StateJournal.class.getName());
+  private static final int MAGIC = 0x4650534A; // "FPSJ"
+  private static final int VERSION = 2;
+  private static final int FIRST_ADDRESS_VERSION = 2;
+  private static final BaseState.GameState[] GAME_STATES = BaseState.GameState.values();
+
+  static final byte JOIN = 1;
+  static final byte QUIT = 2;
+  static final byte READY = 3;
+  static final byte IN_GAME = 4;
+  static final byte PROGRESS = 5;
+  static final byte RESET = 6;
+  static final byte GAME_STATE = 7;
+  static final byte HEARTBEATS = 8;
+  static final byte RELIABLE = 9;
+
+  private final Path path;
+  private final DataOutputStream out;
+  private boolean failed = false;
+
+  private StateJournal(Path path, StandardOpenOption... options) throws IOException {
+    this.path = path;
+    this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path, options)));
+  }
+
+  /**
+   * Create the journal of a room, starting with its current state. Any previous journal is replaced
+   * once the new one is complete.
+   *
+   * @param path the path of the journal file
+   * @param state the state of the room
+   * @return the journal, open for the next changes
+   * @throws IOException if the journal can't be written
+   */
+  static StateJournal create(Path path, ServerState state) throws IOException {
+    Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+    try (StateJournal checkpoint = new StateJournal(temp)) {
+      checkpoint.out.writeInt(MAGIC);
+      checkpoint.out.writeInt(VERSION);
+      checkpoint.recordState(state);
+      if (checkpoint.failed) {
+        throw new IOException("Can't write the journal " + temp);
+      }
+    }
+    Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    return new StateJournal(path, StandardOpenOption.APPEND);
+  }
+
+  /**
+   * Replace this journal by the current state of its room, once the changes recorded so far are no
+   * longer needed to restore it.
+   *
+   * @param state the state of the room
+   * @return the new journal, or null if it can't be written, in which case the room keeps running
+   *     without its journal
+   */
+  StateJournal checkpoint(ServerState state) {
+    close();
+    try {
+      return create(path, state);
+    } catch (IOException e) {
+      fail(e);
+      return null;
+    }
+  }
+
+  /**
+   * Record the whole state of a room.
+   *
+   * @param state the state of the room
+   */
+  private void recordState(ServerState state) {
+    PlayerTable players = state.getPlayers();
+    for (int id : state.getMembers()) {
+      join(id, players.getUsername(id), players.isBinary(id), players.getAddress(id));
+      if (players.hasHeartbeats(id)) record(HEARTBEATS, id, 1);
+      if (players.isReliable(id)) record(RELIABLE, id, 1);
+      if (players.isReady(id)) record(READY, id, 1);
+      if (players.isInGame(id)) record(IN_GAME, id, 1);
+      if (players.getProgress(id) != 0) record(PROGRESS, id, players.getProgress(id));
+    }
+    record(GAME_STATE, 0, state.getGameState().ordinal());
+  }
+
+  /**
+   * Record a player joining the room.
+   *
+   * @param id the ID of the player
+   * @param username the username of the player
+   * @param binary true if the player uses the binary protocol
+   * @param address the address the player joined from, or null if unknown
+   */
+  void join(int id, String username, boolean binary, InetSocketAddress address) {
+    record(JOIN, id, binary ? 1 : 0);
+    if (failed) return;
+    try {
+      out.writeUTF(username);
+      if (address == null) {
+        out.writeByte(0);
+        return;
+      }
+      byte[] bytes = address.getAddress().getAddress();
+      out.writeByte(bytes.length);
+      out.write(bytes);
+      out.writeShort(address.getPort());
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  /**
+   * Record a change of the room.
+   *
+   * @param operation the change
+   * @param id the ID of the player changed, 0 if the change is about the room
+   * @param value the new value, 0 if the change has none
+   */
+  void record(byte operation, int id, int value) {
+    if (failed) return;
+    try {
+      out.writeByte(operation);
+      out.writeShort(id);
+      out.writeByte(value);
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  /** Write the changes recorded so far to the file. */
+  void flush() {
+    if (failed) return;
+    try {
+      out.flush();
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  /**
+   * Stop journaling after an error, so that the room keeps running without its journal.
+   *
+   * @param e the error
+   */
+  private void fail(IOException e) {
+    failed = true;
+    LOGGER.severe("Journal " + path + " disabled: " + e.getMessage());
+  }
+
+  @Override
+  public void close() {
+    try {
+      out.close();
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  /**
+   * Rebuild the state of a room from its journal. An entry cut short, when the server stopped while
+   * writing it, ends the journal.
+   *
+   * @param path the path of the journal file
+   * @return the state of the room at the end of the journal
+   * @throws IOException if the journal can't be read or is corrupted
+   */
+  static Image replay(Path path) throws IOException {
+    Image image = new Image();
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+      int version = in.readInt() == MAGIC ? in.readInt() : -1;
+      if (version < 1 || version > VERSION) {
+        throw new IOException("Not a journal file: " + path);
+      }
+      int operation;
+      while ((operation = in.read()) >= 0) {
+        int id = in.readUnsignedShort();
+        int value = in.readUnsignedByte();
+        String username = null;
+        InetSocketAddress address = null;
+        if (operation == JOIN) {
+          username = in.readUTF();
+          address = version >= FIRST_ADDRESS_VERSION ? readAddress(in) : null;
+        }
+        if (!image.apply(operation, id, value, username, address)) {
+          throw new IOException("Corrupted journal " + path);
+        }
+      }
+    } catch (EOFException e) {
+      // Whatever was read is the state of the room
+    }
+    return image;
+  }
+
+  /**
+   * Read the address of a JOIN entry.
+   *
+   * @param in the journal, positioned at the address
+   * @return the address, or null if the player had none
+   * @throws IOException if the address is cut short or invalid
+   */
+  private static InetSocketAddress readAddress(DataInputStream in) throws IOException {
+    int length = in.readUnsignedByte();
+    if (length == 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    int port = in.readUnsignedShort();
+    // Throws UnknownHostException if the length is neither that of IPv4 nor of IPv6
+    return new InetSocketAddress(InetAddress.getByAddress(bytes), port);
+  }
+
+  /** State of a room rebuilt from its journal. */
+  static class Image {
+    BaseState.GameState gameState = BaseState.GameState.WAITING;
+    final Map<Integer, Member> members = new LinkedHashMap<>();
+
+    /**
+     * Apply an entry of the journal, the same way the change was made to the room.
+     *
+     * @return false if the entry is invalid
+     */
+    private boolean apply(
+        int operation, int id, int value, String username, InetSocketAddress address) {
+      if (operation == JOIN) {
+        members.put(id, new Member(username, value != 0, address));
+        return true;
+      }
+      if (operation == RESET) {
+        for (Member member : members.values()) {
+          member.ready = false;
+          member.inGame = false;
+          member.progress = 0;
+        }
+        return true;
+      }
+      if (operation == GAME_STATE) {
+        if (value >= GAME_STATES.length) return false;
+        gameState = GAME_STATES[value];
+        return true;
+      }
+
+      Member member = members.get(id);
+      if (member == null) return false;
+      switch (operation) {
+        case QUIT -> members.remove(id);
+        case READY -> member.ready = value != 0;
+        case IN_GAME -> member.inGame = value != 0;
+        case PROGRESS -> member.progress = value;
+        case HEARTBEATS -> member.heartbeats = value != 0;
+        case RELIABLE -> member.reliable = value != 0;
+        default -> {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /** Player of a room rebuilt from a journal. */
+  static class Member {
+    final String username;
+    final boolean binary;
+    final InetSocketAddress address;
+    boolean ready = false;
+    boolean inGame = false;
+    int progress = 0;
+    boolean heartbeats = false;
+    boolean reliable = false;
+
+    private Member(String username, boolean binary, InetSocketAddress address) {
+      this.username = username;
+      this.binary = binary;
+      this.address = address;
+    }
+  }
+}
@@ -0,0 +1,65 @@
+package ch.heigvd.dai.logic.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Local endpoint answering metrics queries. Any datagram received on the loopback port is answered
+ * with the current report of the metrics, in a single datagram.
+ */
+public class StatsEndpoint {
+  private static final Logger LOGGER = Logger.getLogger(StatsEndpoint.class.getName());
+  private static final int REQUEST_SIZE = 64;
+  private static final int MAX_REPORT_SIZE = 65507;
+
+  private final DatagramChannel channel;
+  private final Supplier<String> report;
+
+  /**
+   * Open the endpoint on the loopback interface and start answering queries.
+   *
+   * @param port the port to listen on
+   * @param report the function giving the current report
+   * @throws IOException if the port can't be bound
+   */
+  public StatsEndpoint(int port, Supplier<String> report) throws IOException {
+    this.channel = DatagramChannel.open();
+    this.channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    this.report = report;
+    Thread.ofVirtual().name("stats-endpoint").start(this::serve);
+    LOGGER.info("Serving metrics on " + channel.getLocalAddress());
+  }
+
+  private void serve() {
+    ByteBuffer request = ByteBuffer.allocate(REQUEST_SIZE);
+    while (channel.isOpen()) {
+      try {
+        request.clear();
+        SocketAddress client = channel.receive(request);
+        byte[] bytes = report.get().getBytes(StandardCharsets.UTF_8);
+        channel.send(ByteBuffer.wrap(bytes, 0, Math.min(bytes.length, MAX_REPORT_SIZE)), client);
+      } catch (AsynchronousCloseException e) {
+        return;
+      } catch (IOException e) {
+        LOGGER.warning("Error answering metrics query: " + e.getMessage());
+      }
+    }
+  }
+
+  /** Stop answering queries. */
+  public void close() {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      LOGGER.warning("Error closing metrics endpoint: " + e.getMessage());
+    }
+  }
+}
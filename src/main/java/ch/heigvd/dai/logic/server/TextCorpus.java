@@ -0,0 +1,296 @@
+package ch.heigvd.dai.logic.server;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+/**
+ * Read-only collection of race texts. A corpus file starts with a header, an index of offsets and
+ * the band of each text, followed by the texts encoded in UTF-8:
+ *
+ * <pre>
+ * [magic int][version int][count int][reserved int]
+ * [offset long] * (count + 1)   absolute offset of each text, then the end of the last one
+ * [band byte] * count           length band in the high 4 bits, difficulty band in the low ones
+ * [text bytes] * count
+ * </pre>
+ *
+ * <p>The bands are scored when the corpus is built, so that the server indexes the texts without
+ * reading them.
+ *
+ * <p>The file is memory-mapped, so opening a corpus reads only its header and checks its index, and
+ * getting a text reads two offsets and its bytes. The texts stay in the page cache instead of the
+ * heap. Corpus files are limited to 2 GiB.
+ */
+public class TextCorpus {
+  private static final int MAGIC = 0x46505443; // "FPTC"
+  private static final int VERSION = 2;
+  private static final int HEADER_SIZE = 16;
+
+  private final ByteBuffer buffer;
+  private final int size;
+
+  private TextCorpus(ByteBuffer buffer) {
+    if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+      throw new IllegalArgumentException("Not a corpus file");
+    }
+    if (buffer.getInt(4) != VERSION) {
+      throw new IllegalArgumentException(
+          "Corpus file of version " + buffer.getInt(4) + ", rebuild it with the corpus command");
+    }
+    int size = buffer.getInt(8);
+    if (size <= 0 || indexSize(size) > buffer.limit()) {
+      throw new IllegalArgumentException("Invalid number of texts: " + size);
+    }
+    checkIndex(buffer, size);
+    this.buffer = buffer;
+    this.size = size;
+  }
+
+  /**
+   * Check that the offsets of the texts follow each other from the end of the bands to the end of
+   * the file, so that getting a text never reads outside of it, and that the bands are valid.
+   *
+   * @param buffer the corpus file
+   * @param size the number of texts
+   * @throws IllegalArgumentException if an offset is out of order or out of the file, or a band is
+   *     unknown
+   */
+  private static void checkIndex(ByteBuffer buffer, int size) {
+    long previous = indexSize(size);
+    if (buffer.getLong(offsetPosition(0)) != previous) {
+      throw new IllegalArgumentException("Invalid offset of text 0");
+    }
+    for (int i = 1; i <= size; ++i) {
+      long offset = buffer.getLong(offsetPosition(i));
+      if (offset < previous || offset > buffer.limit()) {
+        throw new IllegalArgumentException("Invalid offset of text " + i);
+      }
+      previous = offset;
+    }
+    if (previous != buffer.limit()) {
+      throw new IllegalArgumentException("Truncated corpus file");
+    }
+    for (int i = 0; i < size; ++i) {
+      if (!TextScorer.isValid(buffer.get(offsetPosition(size + 1) + i))) {
+        throw new IllegalArgumentException("Invalid band of text " + i);
+      }
+    }
+  }
+
+  /**
+   * Open a corpus file.
+   *
+   * @param path the path of the corpus file
+   * @return the corpus
+   * @throws IOException if the file can't be read
+   * @throws IllegalArgumentException if the file isn't a valid corpus
+   */
+  public static TextCorpus open(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      // The mapping stays valid once the channel is closed
+      return new TextCorpus(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  /**
+   * Create a corpus in memory.
+   *
+   * @param texts the texts of the corpus
+   * @return the corpus
+   */
+  public static TextCorpus of(List<String> texts) {
+    TextScorer scorer = new TextScorer();
+    byte[][] encoded = new byte[texts.size()][];
+    long position = indexSize(texts.size());
+    for (int i = 0; i < encoded.length; ++i) {
+      scorer.count(texts.get(i));
+      encoded[i] = texts.get(i).getBytes(StandardCharsets.UTF_8);
+      position += encoded[i].length;
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(position));
+    putHeader(buffer, encoded.length);
+    long offset = indexSize(encoded.length);
+    for (byte[] text : encoded) {
+      buffer.putLong(offset);
+      offset += text.length;
+    }
+    buffer.putLong(offset);
+    for (String text : texts) {
+      buffer.put(scorer.band(text));
+    }
+    for (byte[] text : encoded) {
+      buffer.put(text);
+    }
+    return new TextCorpus(buffer.flip().asReadOnlyBuffer());
+  }
+
+  /**
+   * Build a corpus file from a text file holding one text per line. Blank lines are skipped. The
+   * source is read twice so that the texts never have to fit in memory: the first time for the
+   * offsets of the texts and the words of the corpus, the second time for the texts and their
+   * bands, which are written before the texts once they are all scored.
+   *
+   * @param source the text file to read
+   * @param target the corpus file to write
+   * @param normalize the transformation applied to each text, e.g. to lowercase it
+   * @return the number of texts written
+   * @throws IOException if a file can't be read or written
+   */
+  public static int build(Path source, Path target, UnaryOperator<String> normalize)
+      throws IOException {
+    // First pass: the offsets of the texts, which come before the texts themselves
+    TextScorer scorer = new TextScorer();
+    int count = 0;
+    int[] lengths = new int[1024];
+    try (BufferedReader reader = Files.newBufferedReader(source, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.isBlank()) continue;
+        if (count == lengths.length) {
+          lengths = Arrays.copyOf(lengths, count * 2);
+        }
+        String text = normalize.apply(line.strip());
+        scorer.count(text);
+        lengths[count++] = text.getBytes(StandardCharsets.UTF_8).length;
+      }
+    }
+    if (count == 0) {
+      throw new IllegalArgumentException("No text in " + source);
+    }
+
+    try (FileChannel channel =
+            FileChannel.open(
+                target,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel))) {
+      ByteBuffer index = ByteBuffer.allocate(Math.toIntExact(indexSize(count)));
+      putHeader(index, count);
+      long offset = index.capacity();
+      for (int i = 0; i < count; ++i) {
+        index.putLong(offset);
+        offset += lengths[i];
+      }
+      index.putLong(offset);
+      if (offset > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("Corpus larger than 2 GiB");
+      }
+      // The bands are left blank until the texts are scored
+      out.write(index.array());
+
+      // Second pass: the texts, and their bands
+      ByteBuffer bands = ByteBuffer.allocate(count);
+      try (BufferedReader reader = Files.newBufferedReader(source, StandardCharsets.UTF_8)) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          if (line.isBlank()) continue;
+          String text = normalize.apply(line.strip());
+          bands.put(scorer.band(text));
+          out.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+      }
+      out.flush();
+      channel.write(bands.flip(), offsetPosition(count + 1));
+    }
+    return count;
+  }
+
+  private static void putHeader(ByteBuffer buffer, int count) {
+    buffer.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(0);
+  }
+
+  private static int offsetPosition(int index) {
+    return HEADER_SIZE + index * Long.BYTES;
+  }
+
+  /**
+   * Get the size of the header, the offsets and the bands of a corpus, where its first text starts.
+   *
+   * @param count the number of texts
+   * @return the size in bytes
+   */
+  private static long indexSize(int count) {
+    return HEADER_SIZE + (count + 1L) * Long.BYTES + count;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Get the length band of a text, scored when the corpus was built.
+   *
+   * @param index the index of the text
+   * @return the length band
+   * @throws IndexOutOfBoundsException if the index isn't in the corpus
+   */
+  public TextIndex.Length getLength(int index) {
+    return TextScorer.lengthOf(band(index));
+  }
+
+  /**
+   * Get the difficulty band of a text, scored when the corpus was built.
+   *
+   * @param index the index of the text
+   * @return the difficulty band
+   * @throws IndexOutOfBoundsException if the index isn't in the corpus
+   */
+  public TextIndex.Difficulty getDifficulty(int index) {
+    return TextScorer.difficultyOf(band(index));
+  }
+
+  private byte band(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException(index);
+    }
+    return buffer.get(offsetPosition(size + 1) + index);
+  }
+
+  /**
+   * Get the bytes of a text of the corpus in UTF-8, without decoding them. Safe to call from
+   * several threads.
+   *
+   * @param index the index of the text
+   * @return a read-only buffer over the bytes of the text in the corpus
+   * @throws IndexOutOfBoundsException if the index isn't in the corpus
+   */
+  public ByteBuffer getBytes(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException(index);
+    }
+    int start = (int) buffer.getLong(offsetPosition(index));
+    int end = (int) buffer.getLong(offsetPosition(index + 1));
+    return buffer.slice(start, end - start).asReadOnlyBuffer();
+  }
+
+  /**
+   * Get a text of the corpus. Safe to call from several threads.
+   *
+   * @param index the index of the text
+   * @return the text
+   * @throws IndexOutOfBoundsException if the index isn't in the corpus
+   */
+  public String get(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException(index);
+    }
+    int start = (int) buffer.getLong(offsetPosition(index));
+    int end = (int) buffer.getLong(offsetPosition(index + 1));
+    byte[] bytes = new byte[end - start];
+    buffer.get(start, bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,201 @@
+package ch.heigvd.dai.logic.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Index of the race texts by length and difficulty, so that the text of a race is picked in
+ * constant time for any band. The band of each text is scored when its corpus is built, see {@link
+ * TextScorer}, so adding a corpus only reads one byte per text, none of the texts themselves.
+ *
+ * <p>Texts are identified by an ID, from 0 in the order in which they were added, which stays the
+ * same as more corpora are added.
+ *
+ * <p>Picking a text never waits on an addition, it uses the last complete index.
+ */
+public class TextIndex {
+  /** Length band of a text. */
+  public enum Length {
+    SHORT,
+    MEDIUM,
+    LONG;
+
+    static final Length[] VALUES = values();
+
+    static Length of(int characters) {
+      if (characters < MEDIUM_LENGTH) return SHORT;
+      if (characters < LONG_LENGTH) return MEDIUM;
+      return LONG;
+    }
+  }
+
+  /** Difficulty band of a text. */
+  public enum Difficulty {
+    EASY,
+    MEDIUM,
+    HARD;
+
+    static final Difficulty[] VALUES = values();
+
+    static Difficulty of(double score) {
+      if (score < MEDIUM_DIFFICULTY) return EASY;
+      if (score < HARD_DIFFICULTY) return MEDIUM;
+      return HARD;
+    }
+  }
+
+  private static final int MEDIUM_LENGTH = 150; // In characters
+  private static final int LONG_LENGTH = 400;
+  private static final double MEDIUM_DIFFICULTY = 0.25;
+  private static final double HARD_DIFFICULTY = 0.5;
+  private static final int ANY = 0;
+  private static final int NUM_LENGTHS = Length.values().length + 1;
+  private static final int NUM_DIFFICULTIES = Difficulty.values().length + 1;
+
+  private volatile Snapshot snapshot =
+      new Snapshot(List.of(), new int[0], new int[NUM_LENGTHS * NUM_DIFFICULTIES][]);
+
+  /**
+   * Texts indexed at some point. Each bucket lists the IDs of the texts of a length and a
+   * difficulty, either of which can be any. The ID of the first text of each corpus is in {@code
+   * firstIds}.
+   */
+  private record Snapshot(List<TextCorpus> corpora, int[] firstIds, int[][] buckets) {
+    int[] bucket(int length, int difficulty) {
+      return buckets[length * NUM_DIFFICULTIES + difficulty];
+    }
+
+    int size() {
+      int[] all = bucket(ANY, ANY);
+      return all != null ? all.length : 0;
+    }
+  }
+
+  /**
+   * Add the texts of a corpus to the index.
+   *
+   * @param corpus the corpus to add
+   */
+  public synchronized void add(TextCorpus corpus) {
+    Snapshot current = snapshot;
+    int firstId = current.size();
+    if (firstId + (long) corpus.size() > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Too many texts");
+    }
+
+    // The band of each text, and the number of texts added to each bucket
+    byte[] lengths = new byte[corpus.size()];
+    byte[] difficulties = new byte[corpus.size()];
+    int[] numAdded = new int[current.buckets.length];
+    for (int i = 0; i < corpus.size(); ++i) {
+      lengths[i] = (byte) (corpus.getLength(i).ordinal() + 1);
+      difficulties[i] = (byte) (corpus.getDifficulty(i).ordinal() + 1);
+      for (int bucket : bucketsOf(lengths[i], difficulties[i])) {
+        ++numAdded[bucket];
+      }
+    }
+
+    // The buckets are copied, so that the previous snapshot stays valid while it is used
+    int[][] buckets = new int[current.buckets.length][];
+    int[] sizes = new int[buckets.length];
+    for (int i = 0; i < buckets.length; ++i) {
+      int[] previous = current.buckets[i] != null ? current.buckets[i] : new int[0];
+      buckets[i] = Arrays.copyOf(previous, previous.length + numAdded[i]);
+      sizes[i] = previous.length;
+    }
+    for (int i = 0; i < corpus.size(); ++i) {
+      for (int bucket : bucketsOf(lengths[i], difficulties[i])) {
+        buckets[bucket][sizes[bucket]++] = firstId + i;
+      }
+    }
+    List<TextCorpus> corpora = new ArrayList<>(current.corpora);
+    corpora.add(corpus);
+    int[] firstIds = Arrays.copyOf(current.firstIds, current.firstIds.length + 1);
+    firstIds[firstIds.length - 1] = firstId;
+    snapshot = new Snapshot(List.copyOf(corpora), firstIds, buckets);
+  }
+
+  private static int[] bucketsOf(int length, int difficulty) {
+    return new int[] {
+      length * NUM_DIFFICULTIES + difficulty,
+      length * NUM_DIFFICULTIES + ANY,
+      ANY * NUM_DIFFICULTIES + difficulty,
+      ANY * NUM_DIFFICULTIES + ANY
+    };
+  }
+
+  /**
+   * Get the number of texts indexed.
+   *
+   * @return the number of texts
+   */
+  public int size() {
+    return snapshot.size();
+  }
+
+  /**
+   * Get a text by its ID.
+   *
+   * @param id the ID of the text
+   * @return the text
+   * @throws IndexOutOfBoundsException if no text has this ID
+   */
+  public String get(int id) {
+    Snapshot current = snapshot;
+    int corpus = corpusOf(current, id);
+    return current.corpora.get(corpus).get(id - current.firstIds[corpus]);
+  }
+
+  /**
+   * Get the bytes of a text by its ID, in UTF-8.
+   *
+   * @param id the ID of the text
+   * @return a read-only buffer over the bytes of the text
+   * @throws IndexOutOfBoundsException if no text has this ID
+   */
+  public ByteBuffer getBytes(int id) {
+    Snapshot current = snapshot;
+    int corpus = corpusOf(current, id);
+    return current.corpora.get(corpus).getBytes(id - current.firstIds[corpus]);
+  }
+
+  private static int corpusOf(Snapshot current, int id) {
+    if (id < 0 || id >= current.size()) {
+      throw new IndexOutOfBoundsException(id);
+    }
+    int corpus = Arrays.binarySearch(current.firstIds, id);
+    // Not the first text of a corpus: the insertion point is after the corpus of the text
+    return corpus >= 0 ? corpus : -corpus - 2;
+  }
+
+  /**
+   * Pick a random text of a band. When no text is in the band, the difficulty is relaxed first,
+   * then the length.
+   *
+   * @param length the length of the text, or null for any length
+   * @param difficulty the difficulty of the text, or null for any difficulty
+   * @param random the generator used to pick the text
+   * @return the ID of the text
+   * @throws IllegalStateException if the index is empty
+   */
+  public int pick(Length length, Difficulty difficulty, Random random) {
+    Snapshot current = snapshot;
+    int l = length != null ? length.ordinal() + 1 : ANY;
+    int d = difficulty != null ? difficulty.ordinal() + 1 : ANY;
+    int[] bucket = current.bucket(l, d);
+    if (isEmpty(bucket)) bucket = current.bucket(l, ANY);
+    if (isEmpty(bucket)) bucket = current.bucket(ANY, d);
+    if (isEmpty(bucket)) bucket = current.bucket(ANY, ANY);
+    if (isEmpty(bucket)) {
+      throw new IllegalStateException("No text indexed");
+    }
+    return bucket[random.nextInt(bucket.length)];
+  }
+
+  private static boolean isEmpty(int[] bucket) {
+    return bucket == null || bucket.length == 0;
+  }
+}
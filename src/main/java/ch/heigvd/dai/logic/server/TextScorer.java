@@ -0,0 +1,124 @@
+package ch.heigvd.dai.logic.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Scores the texts of a corpus when it is built, so that the server only reads the band of each
+ * text from the corpus file:
+ *
+ * <ul>
+ *   <li>its length in characters
+ *   <li>its difficulty, from the share of characters that are hard to type (punctuation, digits and
+ *       capitals) and the share of its words that are rare in the corpus
+ * </ul>
+ *
+ * <p>All the texts of the corpus are counted first, so that each text is scored against the words
+ * of the whole corpus.
+ */
+class TextScorer {
+  // A text with this share of hard characters or rare words is as hard as it gets on that criterion
+  private static final double MAX_HARD_CHARACTERS = 0.2;
+  private static final double MAX_RARE_WORDS = 0.3;
+  private static final double RARE_WORD_FREQUENCY = 1e-4;
+
+  private final Map<String, Integer> wordCounts = new HashMap<>();
+  private long numWords = 0;
+
+  /**
+   * Count the words of a text of the corpus.
+   *
+   * @param text the text
+   */
+  void count(String text) {
+    for (String word : words(text)) {
+      wordCounts.merge(word, 1, Integer::sum);
+      ++numWords;
+    }
+  }
+
+  /**
+   * Get the band of a text, once all the texts of the corpus were counted.
+   *
+   * @param text the text
+   * @return the band, as stored in the corpus file
+   */
+  byte band(String text) {
+    TextIndex.Length length = TextIndex.Length.of(text.length());
+    TextIndex.Difficulty difficulty = TextIndex.Difficulty.of(score(text));
+    return (byte) (length.ordinal() << 4 | difficulty.ordinal());
+  }
+
+  static boolean isValid(byte band) {
+    return (band >> 4 & 0xF) < TextIndex.Length.VALUES.length
+        && (band & 0xF) < TextIndex.Difficulty.VALUES.length;
+  }
+
+  static TextIndex.Length lengthOf(byte band) {
+    return TextIndex.Length.VALUES[band >> 4 & 0xF];
+  }
+
+  static TextIndex.Difficulty difficultyOf(byte band) {
+    return TextIndex.Difficulty.VALUES[band & 0xF];
+  }
+
+  /**
+   * Score the difficulty of a text, between 0 (easy) and 1 (hard). Half of the score comes from the
+   * share of hard characters, the other half from the share of rare words. A word is rare when it
+   * is less frequent than {@link #RARE_WORD_FREQUENCY} in the corpus, so that no word is rare in a
+   * small corpus.
+   *
+   * @param text the text to score
+   * @return the score
+   */
+  private double score(String text) {
+    int hard = 0;
+    for (int i = 0; i < text.length(); ++i) {
+      char c = text.charAt(i);
+      if (Character.isDigit(c) || Character.isUpperCase(c) || isPunctuation(c)) {
+        ++hard;
+      }
+    }
+    double characters = Math.min(1, hard / (MAX_HARD_CHARACTERS * Math.max(1, text.length())));
+
+    List<String> words = words(text);
+    double rarity = 0;
+    if (!words.isEmpty()) {
+      int rare = 0;
+      for (String word : words) {
+        if (wordCounts.getOrDefault(word, 0) < RARE_WORD_FREQUENCY * numWords) {
+          ++rare;
+        }
+      }
+      rarity = Math.min(1, rare / (MAX_RARE_WORDS * words.size()));
+    }
+    return (characters + rarity) / 2;
+  }
+
+  private static boolean isPunctuation(char c) {
+    return !Character.isLetterOrDigit(c) && !Character.isWhitespace(c);
+  }
+
+  /**
+   * Split a text into its words, lowercased.
+   *
+   * @param text the text to split
+   * @return the words
+   */
+  private static List<String> words(String text) {
+    List<String> words = new ArrayList<>();
+    int start = -1;
+    for (int i = 0; i <= text.length(); ++i) {
+      boolean letter = i < text.length() && Character.isLetter(text.charAt(i));
+      if (letter && start < 0) {
+        start = i;
+      } else if (!letter && start >= 0) {
+        words.add(text.substring(start, i).toLowerCase());
+        start = -1;
+      }
+    }
+    return words;
+  }
+}
@@ -0,0 +1,102 @@
+package ch.heigvd.dai.logic.server;
+
+import java.util.Arrays;
+
+/**
+ * Hashed timing wheel of integer keys, such as player IDs. A key is due at a tick, and waits in the
+ * slot of that tick modulo the number of slots: keys due more than a turn away are skipped until
+ * their turn comes. Scheduling a key is O(1), and advancing by a tick only visits one slot.
+ *
+ * <p>The keys of a slot are linked through arrays indexed by key, and the keys due are taken out
+ * into a buffer reused by each advance, so the wheel never allocates while it runs, apart from
+ * growing that buffer. A key is scheduled at most once at a time.
+ */
+class TimingWheel {
+  private final int[] heads; // First key of each slot, -1 if the slot is empty
+  private final int[] next; // Next key in the same slot, -1 at the end
+  private final int[] due; // Tick at which each key is due
+  private final boolean[] scheduled;
+  private final int mask;
+  private int current = 0; // Last tick advanced to
+  private int[] expired = new int[64];
+
+  /**
+   * Create a new wheel.
+   *
+   * @param numSlots the number of slots, a power of two
+   * @param numKeys the number of keys, which go from 0 to numKeys - 1
+   */
+  TimingWheel(int numSlots, int numKeys) {
+    if (numSlots <= 0 || Integer.bitCount(numSlots) != 1) {
+      throw new IllegalArgumentException("The number of slots must be a power of two");
+    }
+    heads = new int[numSlots];
+    Arrays.fill(heads, -1);
+    next = new int[numKeys];
+    due = new int[numKeys];
+    scheduled = new boolean[numKeys];
+    mask = numSlots - 1;
+  }
+
+  /**
+   * Schedule a key. A key already scheduled keeps its due tick, so the caller checks again whether
+   * the key is due when it comes out of the wheel.
+   *
+   * @param key the key to schedule
+   * @param tick the tick at which the key is due, moved to the next tick if already past
+   */
+  synchronized void schedule(int key, int tick) {
+    if (scheduled[key]) return;
+    if (tick - current <= 0) tick = current + 1;
+    scheduled[key] = true;
+    link(key, tick);
+  }
+
+  private void link(int key, int tick) {
+    int slot = tick & mask;
+    due[key] = tick;
+    next[key] = heads[slot];
+    heads[slot] = key;
+  }
+
+  /**
+   * Advance the wheel to a tick, taking out the keys due by then. The keys are then read with
+   * {@link #getExpired()}, until the next advance.
+   *
+   * @param tick the tick to advance to
+   * @return the number of keys due, which are no longer scheduled
+   */
+  synchronized int advance(int tick) {
+    int numExpired = 0;
+    for (int t = current + 1; t - tick <= 0; ++t) {
+      int slot = t & mask;
+      int key = heads[slot];
+      heads[slot] = -1;
+      while (key >= 0) {
+        int following = next[key];
+        if (due[key] - t > 0) {
+          // Due on a later turn of the wheel
+          link(key, due[key]);
+        } else {
+          scheduled[key] = false;
+          if (numExpired == expired.length) {
+            expired = Arrays.copyOf(expired, numExpired * 2);
+          }
+          expired[numExpired++] = key;
+        }
+        key = following;
+      }
+    }
+    current = tick;
+    return numExpired;
+  }
+
+  /**
+   * Get the keys taken out by the last advance. Only used by the thread advancing the wheel.
+   *
+   * @return the buffer holding the keys first, overwritten by the next advance
+   */
+  int[] getExpired() {
+    return expired;
+  }
+}
@@ -1,8 +1,13 @@
 package ch.heigvd.dai.logic.server;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Random;
 
-/** Class for the typing game. This class contains the "rules" for the typing game. */
+/**
+ * Class for the typing game. This class contains the "rules" for the typing game and picks the
+ * texts of the races from an index of corpora.
+ */
 public class TypingGame {
   public static final int MIN_PLAYERS_FOR_GAME = 2;
   public static final int GAME_START_DELAY = 5; // In seconds
@@ -14,9 +19,77 @@ public class TypingGame {
     "Cats are agile and graceful. They jump great heights and twist easily, showcasing impressive physical skills."
   };
 
-  public static String getParagraph() {
-    Random random = new Random();
-    int indexChosen = random.nextInt(PARAGRAPHS.length);
-    return PARAGRAPHS[indexChosen].toLowerCase();
+  private final TextIndex index = new TextIndex();
+  private final Random random;
+
+  /**
+   * Create a new game, without any text until a corpus is added.
+   *
+   * @param random the generator used to pick the texts, seeded for a reproducible sequence
+   */
+  public TypingGame(Random random) {
+    this.random = random;
+  }
+
+  /**
+   * Add texts to pick from. The texts are indexed by the bands stored in their corpus, and the
+   * races keep being started while they are.
+   *
+   * @param corpus the texts to add
+   */
+  public void addCorpus(TextCorpus corpus) {
+    index.add(corpus);
+  }
+
+  /**
+   * Get the number of texts to pick from.
+   *
+   * @return the number of texts
+   */
+  public int getNumTexts() {
+    return index.size();
+  }
+
+  /**
+   * Get the corpus of the built-in paragraphs.
+   *
+   * @return the corpus
+   */
+  public static TextCorpus defaultCorpus() {
+    return TextCorpus.of(Arrays.stream(PARAGRAPHS).map(String::toLowerCase).toList());
+  }
+
+  /**
+   * Pick the text of a race, in constant time. Safe to call from several rooms at once. When no
+   * text matches the band, the closest texts are picked instead.
+   *
+   * @param length the length of the text, or null for any length
+   * @param difficulty the difficulty of the text, or null for any difficulty
+   * @return the ID of the text
+   */
+  public int pickParagraph(TextIndex.Length length, TextIndex.Difficulty difficulty) {
+    return index.pick(length, difficulty, random);
+  }
+
+  /**
+   * Get a text by its ID, e.g. for the clients fetching the text of a race.
+   *
+   * @param id the ID of the text
+   * @return the text
+   * @throws IndexOutOfBoundsException if no text has this ID
+   */
+  public String getParagraph(int id) {
+    return index.get(id);
+  }
+
+  /**
+   * Get the bytes of a text by its ID in UTF-8, e.g. to send a chunk of it without decoding it.
+   *
+   * @param id the ID of the text
+   * @return a read-only buffer over the bytes of the text
+   * @throws IndexOutOfBoundsException if no text has this ID
+   */
+  public ByteBuffer getParagraphBytes(int id) {
+    return index.getBytes(id);
   }
 }
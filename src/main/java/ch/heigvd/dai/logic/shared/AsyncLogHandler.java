@@ -0,0 +1,286 @@
+package ch.heigvd.dai.logic.shared;
+
+import java.io.PrintStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.ErrorManager;
+import java.util.logging.Formatter;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+import java.util.logging.SimpleFormatter;
+
+/**
+ * Log handler writing to the standard error from a background thread. Logging only queues the
+ * record in a bounded buffer, so the threads handling messages never wait on the console: when the
+ * buffer is full, records are dropped and counted.
+ *
+ * <p>Records can be sampled and rate limited per category. A category is a logger name prefix with
+ * knobs in the logging configuration, and each logger belongs to the category of its longest
+ * configured prefix. For a category {@code <name>}:
+ *
+ * <ul>
+ *   <li>{@code ch.heigvd.dai.logic.shared.AsyncLogHandler.sample.<name>} keeps one record out of N.
+ *       Warnings and errors are never sampled out.
+ *   <li>{@code ch.heigvd.dai.logic.shared.AsyncLogHandler.rateLimit.<name>} keeps at most N records
+ *       per second, whatever their level.
+ * </ul>
+ *
+ * <p>The handler also reads the usual {@code level} and {@code formatter} properties, and {@code
+ * capacity} for the size of the buffer. The number of records dropped is logged periodically.
+ *
+ * <p>Sampling and rate limits only look at the name of the logger. The class and method that logged
+ * a record are inferred from the stack, which has to be walked on the logging thread, so only the
+ * warnings and errors kept are worth it: the source of the other records is their logger, named
+ * after its class.
+ */
+public final class AsyncLogHandler extends Handler {
+  private static final int DEFAULT_CAPACITY = 8192;
+  private static final long POLL_INTERVAL_MS = 100;
+  private static final long DROP_REPORT_INTERVAL_MS = 10_000;
+  private static final long CLOSE_TIMEOUT_MS = 1000;
+  private static final Category UNLIMITED = new Category(1, 0);
+
+  private final String prefix = getClass().getName();
+  private final LogManager manager = LogManager.getLogManager();
+  private final PrintStream out = System.err;
+  private final ArrayBlockingQueue<LogRecord> queue;
+  private final ConcurrentHashMap<String, Category> categoriesByLogger = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Category> categoriesByPrefix = new ConcurrentHashMap<>();
+  private final LongAdder numRateLimited = new LongAdder();
+  private final LongAdder numOverflowed = new LongAdder();
+  private final Thread writer;
+  private long lastDropReport = System.currentTimeMillis();
+  private volatile boolean closed = false;
+
+  /** Create a new handler, configured from the logging configuration. */
+  public AsyncLogHandler() {
+    setLevel(parseLevel(manager.getProperty(prefix + ".level"), Level.ALL));
+    setFormatter(newFormatter(manager.getProperty(prefix + ".formatter")));
+    this.queue = new ArrayBlockingQueue<>(parseInt(prefix + ".capacity", DEFAULT_CAPACITY));
+    this.writer = Thread.ofPlatform().name("log-writer").daemon().start(this::writeLoop);
+  }
+
+  @Override
+  public void publish(LogRecord record) {
+    if (closed || !isLoggable(record)) {
+      return;
+    }
+    Category category = categoryOf(record.getLoggerName());
+    if (!category.sample(record.getLevel())) {
+      return;
+    }
+    if (!category.acquire(record.getMillis())) {
+      numRateLimited.increment();
+      return;
+    }
+    inferSource(record);
+    if (!queue.offer(record)) {
+      numOverflowed.increment();
+    }
+  }
+
+  /**
+   * Set the source of a record that is kept, before it leaves the logging thread.
+   *
+   * @param record the record
+   */
+  private static void inferSource(LogRecord record) {
+    if (record.getLevel().intValue() >= Level.WARNING.intValue()) {
+      // Walks the stack of the logging thread
+      record.getSourceClassName();
+    } else {
+      record.setSourceClassName(record.getLoggerName());
+      record.setSourceMethodName(null);
+    }
+  }
+
+  /** Records are written as soon as possible by the background thread, so there's nothing to do. */
+  @Override
+  public void flush() {}
+
+  /** Write the records left in the buffer and stop the background thread. */
+  @Override
+  public void close() {
+    closed = true;
+    try {
+      writer.join(CLOSE_TIMEOUT_MS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    out.flush();
+  }
+
+  /** Write the queued records until the handler is closed and its buffer is empty. */
+  private void writeLoop() {
+    try {
+      while (!closed || !queue.isEmpty()) {
+        LogRecord record = queue.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        // Write the whole batch before flushing
+        while (record != null) {
+          write(record);
+          record = queue.poll();
+        }
+        reportDrops();
+        out.flush();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void write(LogRecord record) {
+    try {
+      out.print(getFormatter().format(record));
+    } catch (RuntimeException e) {
+      reportError(null, e, ErrorManager.FORMAT_FAILURE);
+    }
+  }
+
+  /** Log the number of records dropped since the last report, if any. */
+  private void reportDrops() {
+    long now = System.currentTimeMillis();
+    if (now - lastDropReport < DROP_REPORT_INTERVAL_MS && !closed) {
+      return;
+    }
+    lastDropReport = now;
+    long rateLimited = numRateLimited.sumThenReset();
+    long overflowed = numOverflowed.sumThenReset();
+    if (rateLimited > 0 || overflowed > 0) {
+      LogRecord record =
+          new LogRecord(
+              Level.WARNING,
+              "Dropped "
+                  + rateLimited
+                  + " log record(s) over their rate limit and "
+                  + overflowed
+                  + " with a full log buffer");
+      record.setLoggerName(prefix);
+      write(record);
+    }
+  }
+
+  /**
+   * Find the category of a logger.
+   *
+   * @param loggerName the name of the logger
+   * @return the category of the longest configured prefix of the name
+   */
+  private Category categoryOf(String loggerName) {
+    String name = loggerName != null ? loggerName : "";
+    Category category = categoriesByLogger.get(name);
+    if (category == null) {
+      category = categoriesByLogger.computeIfAbsent(name, this::findCategory);
+    }
+    return category;
+  }
+
+  private Category findCategory(String loggerName) {
+    String name = loggerName;
+    while (true) {
+      String sample = manager.getProperty(prefix + ".sample." + name);
+      String rateLimit = manager.getProperty(prefix + ".rateLimit." + name);
+      if (sample != null || rateLimit != null) {
+        return categoriesByPrefix.computeIfAbsent(
+            name,
+            n ->
+                new Category(
+                    parseInt(prefix + ".sample." + n, 1), parseInt(prefix + ".rateLimit." + n, 0)));
+      }
+      int dot = name.lastIndexOf('.');
+      if (dot < 0) {
+        return UNLIMITED;
+      }
+      name = name.substring(0, dot);
+    }
+  }
+
+  private int parseInt(String property, int defaultValue) {
+    String value = manager.getProperty(property);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value.strip());
+    } catch (NumberFormatException e) {
+      reportError("Invalid value for " + property + ": " + value, e, ErrorManager.GENERIC_FAILURE);
+      return defaultValue;
+    }
+  }
+
+  private Level parseLevel(String value, Level defaultValue) {
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Level.parse(value.strip());
+    } catch (IllegalArgumentException e) {
+      reportError("Invalid level: " + value, e, ErrorManager.GENERIC_FAILURE);
+      return defaultValue;
+    }
+  }
+
+  private Formatter newFormatter(String className) {
+    if (className != null) {
+      try {
+        return (Formatter)
+            ClassLoader.getSystemClassLoader()
+                .loadClass(className.strip())
+                .getDeclaredConstructor()
+                .newInstance();
+      } catch (ReflectiveOperationException | ClassCastException e) {
+        reportError("Invalid formatter: " + className, e, ErrorManager.GENERIC_FAILURE);
+      }
+    }
+    return new SimpleFormatter();
+  }
+
+  /** Sampling and rate limit of a category, shared by all its loggers. */
+  private static class Category {
+    private final int sampleRate;
+    private final int rateLimit;
+    private final AtomicLong numSeen = new AtomicLong();
+    // Second of the current window in the high bits, number of records kept in it in the low bits
+    private final AtomicLong window = new AtomicLong(-1L << 32);
+
+    /**
+     * Create a new category.
+     *
+     * @param sampleRate keep one record out of this number, 1 to keep them all
+     * @param rateLimit the maximum number of records per second, 0 for no limit
+     */
+    Category(int sampleRate, int rateLimit) {
+      this.sampleRate = sampleRate;
+      this.rateLimit = rateLimit;
+    }
+
+    boolean sample(Level level) {
+      if (sampleRate <= 1 || level.intValue() >= Level.WARNING.intValue()) {
+        return true;
+      }
+      return numSeen.getAndIncrement() % sampleRate == 0;
+    }
+
+    boolean acquire(long millis) {
+      return rateLimit <= 0 || acquireInWindow(millis);
+    }
+
+    private boolean acquireInWindow(long millis) {
+      long second = millis / 1000;
+      while (true) {
+        long current = window.get();
+        int numInWindow = current >> 32 == second ? (int) current : 0;
+        if (numInWindow >= rateLimit) {
+          return false;
+        }
+        if (window.compareAndSet(current, second << 32 | (numInWindow + 1))) {
+          return true;
+        }
+      }
+    }
+  }
+}
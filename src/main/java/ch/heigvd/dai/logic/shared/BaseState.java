@@ -2,7 +2,7 @@ package ch.heigvd.dai.logic.shared;
 
 /** Base state for the client and server logic. */
 public abstract class BaseState {
-  private GameState gameState = GameState.WAITING;
+  private volatile GameState gameState = GameState.WAITING;
 
   public enum GameState {
     WAITING,
@@ -10,19 +10,23 @@ public abstract class BaseState {
     FINISHED,
   }
 
+  public GameState getGameState() {
+    return gameState;
+  }
+
   public boolean isGameWaiting() {
-    return gameState == GameState.WAITING;
+    return getGameState() == GameState.WAITING;
   }
 
   public boolean isGameRunning() {
-    return gameState == GameState.RUNNING;
+    return getGameState() == GameState.RUNNING;
   }
 
   public boolean isGameFinished() {
-    return gameState == GameState.FINISHED;
+    return getGameState() == GameState.FINISHED;
   }
 
-  public synchronized void setGameState(GameState gameState) {
+  public void setGameState(GameState gameState) {
     this.gameState = gameState;
   }
 }
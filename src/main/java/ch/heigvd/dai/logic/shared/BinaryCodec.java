@@ -0,0 +1,186 @@
+package ch.heigvd.dai.logic.shared;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Encoding helpers for the binary protocol. A binary frame starts with an opcode byte that has its
+ * high bit set, which never happens with the text protocol whose commands are ASCII words. The
+ * lower bits of the opcode are the ordinal of the command. Player IDs are encoded as unsigned
+ * varints and progress values as a single byte.
+ *
+ * <p>The texts of the races aren't broadcast: START_GAME carries the ID, the hash and the length of
+ * the text, and clients that don't have it yet fetch it in chunks of {@link #TEXT_CHUNK_SIZE}
+ * bytes.
+ */
+public final class BinaryCodec {
+  /** Version of the text protocol, used by clients that don't negotiate a version. */
+  public static final int TEXT_VERSION = 1;
+
+  /** Oldest version of the binary protocol still supported. */
+  public static final int MIN_BINARY_VERSION = 3;
+
+  /** Version of the binary protocol. */
+  public static final int BINARY_VERSION = 5;
+
+  /** First version whose clients send heartbeats when idle. */
+  public static final int HEARTBEAT_VERSION = 4;
+
+  /**
+   * First version whose clients acknowledge the control frames (START_GAME, END_GAME and DEL_USER),
+   * which end with a sequence number.
+   */
+  public static final int RELIABLE_VERSION = 5;
+
+  /** Winner ID of an END_GAME frame that cancels a game during its countdown. */
+  public static final int NO_WINNER = -1;
+
+  /** Interval between two heartbeats of a client that sent nothing else. */
+  public static final long HEARTBEAT_INTERVAL_MS = 5000;
+
+  /** Maximum number of bytes of text in a TEXT_CHUNK frame, so that it fits in a datagram. */
+  public static final int TEXT_CHUNK_SIZE = 960;
+
+  private static final int OPCODE_FLAG = 0x80;
+  private static final int MAX_VARINT_BYTES = 5;
+
+  private BinaryCodec() {}
+
+  /**
+   * Check if the frame in a buffer is a binary frame.
+   *
+   * @param buffer the buffer holding the frame, positioned at its start
+   * @return true if the frame is binary, false if it is a text frame
+   */
+  public static boolean isBinary(ByteBuffer buffer) {
+    return buffer.hasRemaining() && (buffer.get(buffer.position()) & OPCODE_FLAG) != 0;
+  }
+
+  /**
+   * Get the opcode of a command.
+   *
+   * @param command the command
+   * @return the opcode of the command
+   */
+  public static byte opcode(Enum<?> command) {
+    return (byte) (OPCODE_FLAG | command.ordinal());
+  }
+
+  /**
+   * Get the ordinal of the command of an opcode.
+   *
+   * @param opcode the opcode
+   * @return the ordinal of the command
+   */
+  public static int ordinal(byte opcode) {
+    return opcode & ~OPCODE_FLAG & 0xFF;
+  }
+
+  /**
+   * Write an unsigned varint.
+   *
+   * @param buffer the buffer to write to
+   * @param value the value to write, must be positive
+   */
+  public static void putVarint(ByteBuffer buffer, int value) {
+    while ((value & ~0x7F) != 0) {
+      buffer.put((byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    buffer.put((byte) value);
+  }
+
+  /**
+   * Read an unsigned varint.
+   *
+   * @param buffer the buffer to read from
+   * @return the value read
+   * @throws IllegalArgumentException if the varint is too long
+   */
+  public static int getVarint(ByteBuffer buffer) {
+    int value = 0;
+    for (int i = 0; i < MAX_VARINT_BYTES; ++i) {
+      byte b = buffer.get();
+      value |= (b & 0x7F) << (7 * i);
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IllegalArgumentException("Varint too long");
+  }
+
+  /**
+   * Write a string prefixed by its length in bytes.
+   *
+   * @param buffer the buffer to write to
+   * @param str the string to write
+   */
+  public static void putString(ByteBuffer buffer, String str) {
+    byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+    putVarint(buffer, bytes.length);
+    buffer.put(bytes);
+  }
+
+  /**
+   * Read a string prefixed by its length in bytes.
+   *
+   * @param buffer the buffer to read from
+   * @return the string read
+   */
+  public static String getString(ByteBuffer buffer) {
+    int length = getVarint(buffer);
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Write a string that takes the rest of the frame. The string is truncated if it doesn't fit.
+   *
+   * @param buffer the buffer to write to
+   * @param str the string to write
+   */
+  public static void putRest(ByteBuffer buffer, String str) {
+    byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+    buffer.put(bytes, 0, Math.min(bytes.length, buffer.remaining()));
+  }
+
+  /**
+   * Read a string that takes the rest of the frame.
+   *
+   * @param buffer the buffer to read from
+   * @return the string read
+   */
+  public static String getRest(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Hash a text, to identify it whatever its ID on the server.
+   *
+   * @param text the text encoded in UTF-8
+   * @return the first 8 bytes of the SHA-256 digest of the text
+   */
+  public static long textHash(byte[] text) {
+    try {
+      return ByteBuffer.wrap(MessageDigest.getInstance("SHA-256").digest(text)).getLong();
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform supports SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Get the number of TEXT_CHUNK frames needed to send a text.
+   *
+   * @param length the length of the text in bytes
+   * @return the number of chunks
+   */
+  public static int numTextChunks(int length) {
+    return Math.max(1, (length + TEXT_CHUNK_SIZE - 1) / TEXT_CHUNK_SIZE);
+  }
+}
@@ -0,0 +1,42 @@
+package ch.heigvd.dai.logic.shared;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Names of the constants of a command enum as bytes, so that commands can be matched from a {@link
+ * Tokenizer} without decoding the token or going through {@link Enum#valueOf}.
+ *
+ * @param <E> the type of the commands
+ */
+public class CommandNames<E extends Enum<E>> {
+  private final E[] values;
+  private final byte[][] names;
+
+  /**
+   * Create the names of the commands of an enum.
+   *
+   * @param values the constants of the enum
+   */
+  public CommandNames(E[] values) {
+    this.values = values;
+    this.names = new byte[values.length][];
+    for (int i = 0; i < values.length; ++i) {
+      names[i] = values[i].name().getBytes(StandardCharsets.US_ASCII);
+    }
+  }
+
+  /**
+   * Match the current token of a tokenizer with a command.
+   *
+   * @param tokenizer the tokenizer positioned on the command
+   * @return the command or null if the token isn't a known command
+   */
+  public E match(Tokenizer tokenizer) {
+    for (int i = 0; i < names.length; ++i) {
+      if (tokenizer.tokenEquals(names[i])) {
+        return values[i];
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,312 @@
+package ch.heigvd.dai.logic.shared;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Sender for outbound datagrams over a long-lived channel. Messages are encoded into pooled packets
+ * on the calling thread and queued. A single flushing thread then writes all the queued datagrams
+ * in a row, so callers never wait on the network and a datagram costs a single system call.
+ *
+ * <p>Binary frames larger than a datagram are written into a larger packet and split into
+ * fragments, which the receiver puts back together with a {@link FragmentAssembler}. The pool of
+ * large packets is only created the first time such a frame is sent, as most senders never need it.
+ * Text messages are never fragmented, as text clients don't know about fragments: a text message
+ * larger than a datagram is truncated and logged instead.
+ *
+ * <p>Datagrams dropped because the queue is full are counted, and summed up in the log at most
+ * every {@link #DROP_REPORT_INTERVAL_MS}, so an overloaded sender doesn't flood the log too.
+ */
+public class DatagramSender {
+  private static final Logger LOGGER = Logger.getLogger(DatagramSender.class.getName());
+  private static final long POLL_INTERVAL_MS = 100;
+  private static final long CLOSE_TIMEOUT_MS = 1000;
+  private static final int LARGE_POOL_SIZE = 4;
+  private static final long DROP_REPORT_INTERVAL_MS = 10_000;
+
+  private final DatagramChannel channel;
+  private final PacketPool packetPool;
+  private volatile PacketPool largePacketPool;
+  private final int datagramSize;
+  private final int chunkSize;
+  private final AtomicInteger nextMessageId = new AtomicInteger();
+  private final LongAdder numDropped = new LongAdder();
+  private final LongAdder numTruncated = new LongAdder();
+  private volatile Consumer<ByteBuffer> sentListener;
+  private final ArrayBlockingQueue<Packet> queue;
+  private final Thread flusher;
+  private volatile boolean closed = false;
+  // Only used by the flushing thread
+  private long numDropsReported = 0;
+  private long lastDropReport = 0;
+
+  /**
+   * Create a new sender.
+   *
+   * @param channel the blocking channel to send through
+   * @param capacity the maximum number of datagrams waiting to be sent
+   * @param bufferSize the maximum size of a datagram, larger frames are fragmented
+   * @param name the name of the flushing thread
+   */
+  public DatagramSender(DatagramChannel channel, int capacity, int bufferSize, String name) {
+    this(channel, capacity, bufferSize, Thread.ofPlatform().name(name).daemon().factory());
+  }
+
+  /**
+   * Create a new sender whose flushing thread is created by a factory, e.g. a virtual thread for
+   * senders that only send a few messages.
+   *
+   * @param channel the blocking channel to send through
+   * @param capacity the maximum number of datagrams waiting to be sent
+   * @param bufferSize the maximum size of a datagram, larger frames are fragmented
+   * @param threadFactory the factory of the flushing thread
+   */
+  public DatagramSender(
+      DatagramChannel channel, int capacity, int bufferSize, ThreadFactory threadFactory) {
+    this.channel = channel;
+    this.packetPool = new PacketPool(capacity + 1, bufferSize);
+    this.datagramSize = bufferSize;
+    this.chunkSize = bufferSize - FragmentAssembler.MAX_HEADER_SIZE;
+    this.queue = new ArrayBlockingQueue<>(capacity);
+    this.flusher = threadFactory.newThread(this::flushLoop);
+    this.flusher.start();
+  }
+
+  private PacketPool largePacketPool() {
+    PacketPool pool = largePacketPool;
+    if (pool == null) {
+      synchronized (this) {
+        pool = largePacketPool;
+        if (pool == null) {
+          pool = new PacketPool(LARGE_POOL_SIZE, FragmentAssembler.MAX_FRAGMENTS * chunkSize);
+          largePacketPool = pool;
+        }
+      }
+    }
+    return pool;
+  }
+
+  /**
+   * Queue a text message to be sent. Messages larger than a datagram are truncated, and messages
+   * are dropped when the queue is full.
+   *
+   * @param message the message to send
+   * @param target the address to send the message to
+   * @return true if the message was queued, false if it was dropped
+   * @throws ClosedChannelException if the sender is closed
+   */
+  public boolean send(CharSequence message, InetSocketAddress target)
+      throws ClosedChannelException {
+    if (closed) {
+      throw new ClosedChannelException();
+    }
+    Packet packet = packetPool.acquire();
+    if (!packet.encode(message, target)) {
+      numTruncated.increment();
+      LOGGER.warning("Message to " + target + " truncated to " + packet.buffer.limit() + " bytes");
+    }
+    return enqueue(packet);
+  }
+
+  /**
+   * Take an empty packet to write a binary frame into. The packet must then be given to {@link
+   * #submit(Packet)}.
+   *
+   * @param target the address to send the packet to
+   * @return an empty packet, ready to be written
+   */
+  public Packet allocate(InetSocketAddress target) {
+    Packet packet = packetPool.acquire();
+    packet.prepare(target);
+    return packet;
+  }
+
+  /**
+   * Take an empty packet to write a binary frame that may not fit in a datagram into. The packet
+   * must then be given to {@link #submit(Packet)}, which fragments it if needed.
+   *
+   * @param target the address to send the packet to
+   * @return an empty packet, ready to be written
+   */
+  public Packet allocateLarge(InetSocketAddress target) {
+    Packet packet = largePacketPool().acquire();
+    packet.prepare(target);
+    return packet;
+  }
+
+  /**
+   * Queue a packet obtained from {@link #allocate(InetSocketAddress)} or {@link
+   * #allocateLarge(InetSocketAddress)} once its frame is written.
+   *
+   * @param packet the packet to send
+   * @return true if the packet was queued, false if it was dropped
+   * @throws ClosedChannelException if the sender is closed
+   */
+  public boolean submit(Packet packet) throws ClosedChannelException {
+    packet.buffer.flip();
+    if (closed) {
+      packet.release();
+      throw new ClosedChannelException();
+    }
+    if (packet.buffer.limit() > datagramSize) {
+      return enqueueFragments(packet);
+    }
+    return enqueue(packet);
+  }
+
+  /**
+   * Split a frame into fragments and queue them. The packet of the frame is released.
+   *
+   * @param packet the packet holding the whole frame, ready to be read
+   * @return true if all the fragments were queued, false if some were dropped
+   */
+  private boolean enqueueFragments(Packet packet) {
+    ByteBuffer frame = packet.buffer;
+    int count = (frame.limit() + chunkSize - 1) / chunkSize;
+    int messageId = nextMessageId.getAndIncrement() & Integer.MAX_VALUE;
+    try {
+      for (int i = 0; i < count; ++i) {
+        int offset = i * chunkSize;
+        int length = Math.min(chunkSize, frame.limit() - offset);
+        Packet fragment = packetPool.acquire();
+        fragment.prepare(packet.getRemote());
+        ByteBuffer buffer = fragment.buffer;
+        buffer.put(FragmentAssembler.FRAGMENT_OPCODE);
+        BinaryCodec.putVarint(buffer, messageId);
+        BinaryCodec.putVarint(buffer, i);
+        BinaryCodec.putVarint(buffer, count);
+        buffer.put(buffer.position(), frame, offset, length);
+        buffer.position(buffer.position() + length).flip();
+        if (!enqueue(fragment)) {
+          // The receiver can't rebuild the frame anyway
+          return false;
+        }
+      }
+      return true;
+    } finally {
+      packet.release();
+    }
+  }
+
+  private boolean enqueue(Packet packet) {
+    if (!queue.offer(packet)) {
+      numDropped.increment();
+      packet.release();
+      return false;
+    }
+    return true;
+  }
+
+  /** Write the queued packets until the sender is closed and its queue is empty. */
+  private void flushLoop() {
+    try {
+      while (!closed || !queue.isEmpty()) {
+        Packet packet = queue.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        // Flush the whole batch that accumulated while we were waiting
+        while (packet != null) {
+          flush(packet);
+          packet = queue.poll();
+        }
+        reportDrops();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Log the number of datagrams dropped since the last report, at most once per interval. */
+  private void reportDrops() {
+    long now = System.currentTimeMillis();
+    if (now - lastDropReport < DROP_REPORT_INTERVAL_MS) {
+      return;
+    }
+    lastDropReport = now;
+    long dropped = numDropped.sum();
+    if (dropped != numDropsReported) {
+      LOGGER.warning(
+          "Send queue full, dropped "
+              + (dropped - numDropsReported)
+              + " datagram(s) since last report");
+      numDropsReported = dropped;
+    }
+  }
+
+  /**
+   * Write a packet and release it.
+   *
+   * @param packet the packet to write
+   */
+  private void flush(Packet packet) {
+    try {
+      Consumer<ByteBuffer> listener = sentListener;
+      if (listener != null) {
+        listener.accept(packet.buffer);
+      }
+      packet.send(channel);
+    } catch (IOException e) {
+      LOGGER.severe("Error sending message to " + packet.getRemote() + ": " + e.getMessage());
+    } finally {
+      packet.release();
+    }
+  }
+
+  /**
+   * Set a listener called by the sending thread with each datagram about to be sent. The listener
+   * must not modify the buffer.
+   *
+   * @param listener the listener, or null to remove it
+   */
+  public void setSentListener(Consumer<ByteBuffer> listener) {
+    this.sentListener = listener;
+  }
+
+  /**
+   * Get the number of datagrams dropped because the queue was full.
+   *
+   * @return the number of datagrams dropped
+   */
+  public long getNumDropped() {
+    return numDropped.sum();
+  }
+
+  /**
+   * Get the number of messages truncated because they didn't fit in the largest frame.
+   *
+   * @return the number of messages truncated
+   */
+  public long getNumTruncated() {
+    return numTruncated.sum();
+  }
+
+  /**
+   * Get the number of datagrams waiting to be sent.
+   *
+   * @return the size of the queue
+   */
+  public int getQueueSize() {
+    return queue.size();
+  }
+
+  /**
+   * Close the sender. The messages already queued are sent before returning, the channel itself is
+   * left open.
+   */
+  public void close() {
+    closed = true;
+    try {
+      flusher.join(CLOSE_TIMEOUT_MS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,129 @@
+package ch.heigvd.dai.logic.shared;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.logging.Logger;
+
+/**
+ * Reassembly of the frames too large for a single datagram. Such frames are split by the {@link
+ * DatagramSender} into fragments of the form {@code [0xFF][message ID][index][count][chunk]}, the
+ * ID, index and count being varints. The fragments of a frame are collected until all of them
+ * arrived, and incomplete frames are dropped after a timeout.
+ *
+ * <p>An assembler is not thread-safe, each receiving thread must use its own. Message IDs are only
+ * unique per sender, so an assembler must only receive from a single sender.
+ */
+public class FragmentAssembler {
+  /** Opcode of a fragment, never used by a command. */
+  public static final byte FRAGMENT_OPCODE = (byte) 0xFF;
+
+  /** Maximum size of the header of a fragment. */
+  public static final int MAX_HEADER_SIZE = 8;
+
+  /** Maximum number of fragments of a frame. */
+  public static final int MAX_FRAGMENTS = 64;
+
+  private static final Logger LOGGER = Logger.getLogger(FragmentAssembler.class.getName());
+
+  private final long timeoutMs;
+  private final HashMap<Integer, PartialFrame> partialFrames = new HashMap<>();
+
+  /**
+   * Create a new fragment assembler.
+   *
+   * @param timeoutMs the time after which an incomplete frame is dropped
+   */
+  public FragmentAssembler(long timeoutMs) {
+    this.timeoutMs = timeoutMs;
+  }
+
+  /**
+   * Check if the frame in a buffer is a fragment.
+   *
+   * @param buffer the buffer holding the frame, positioned at its start
+   * @return true if the frame is a fragment
+   */
+  public static boolean isFragment(ByteBuffer buffer) {
+    return buffer.hasRemaining() && buffer.get(buffer.position()) == FRAGMENT_OPCODE;
+  }
+
+  /**
+   * Add a fragment to its frame.
+   *
+   * @param fragment the fragment, positioned at its start
+   * @param now the current time in milliseconds
+   * @return the whole frame once its last fragment arrived, or null if fragments are missing
+   */
+  public ByteBuffer accept(ByteBuffer fragment, long now) {
+    dropExpired(now);
+    int messageId;
+    int index;
+    int count;
+    try {
+      fragment.get();
+      messageId = BinaryCodec.getVarint(fragment);
+      index = BinaryCodec.getVarint(fragment);
+      count = BinaryCodec.getVarint(fragment);
+    } catch (RuntimeException e) {
+      LOGGER.warning("Invalid fragment header: " + e);
+      return null;
+    }
+    if (count <= 0 || count > MAX_FRAGMENTS || index < 0 || index >= count) {
+      LOGGER.warning("Invalid fragment " + index + "/" + count + " of message " + messageId);
+      return null;
+    }
+
+    PartialFrame frame = partialFrames.get(messageId);
+    if (frame == null || frame.chunks.length != count) {
+      frame = new PartialFrame(count, now);
+      partialFrames.put(messageId, frame);
+    }
+    if (frame.chunks[index] == null) {
+      byte[] chunk = new byte[fragment.remaining()];
+      fragment.get(chunk);
+      frame.chunks[index] = chunk;
+      frame.size += chunk.length;
+      ++frame.numReceived;
+    }
+    if (frame.numReceived < count) {
+      return null;
+    }
+
+    partialFrames.remove(messageId);
+    ByteBuffer whole = ByteBuffer.allocate(frame.size);
+    for (byte[] chunk : frame.chunks) {
+      whole.put(chunk);
+    }
+    return whole.flip();
+  }
+
+  /**
+   * Drop the frames whose fragments didn't all arrive in time.
+   *
+   * @param now the current time in milliseconds
+   */
+  private void dropExpired(long now) {
+    Iterator<PartialFrame> it = partialFrames.values().iterator();
+    while (it.hasNext()) {
+      PartialFrame frame = it.next();
+      if (now - frame.firstReceived > timeoutMs) {
+        LOGGER.fine("Dropping incomplete frame of " + frame.chunks.length + " fragments");
+        it.remove();
+      }
+    }
+  }
+
+  /** Fragments of a frame received so far. */
+  private static class PartialFrame {
+    private final byte[][] chunks;
+    private final long firstReceived;
+    private int numReceived = 0;
+    private int size = 0;
+
+    private PartialFrame(int count, long firstReceived) {
+      this.chunks = new byte[count][];
+      this.firstReceived = firstReceived;
+    }
+  }
+}
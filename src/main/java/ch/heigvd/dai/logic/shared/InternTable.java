@@ -0,0 +1,124 @@
+package ch.heigvd.dai.logic.shared;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Table of interned strings that can be looked up from their raw UTF-8 bytes, without decoding
+ * them. Lookups are lock-free and don't allocate, while insertions and removals are serialized and
+ * publish new immutable bucket chains.
+ */
+public class InternTable {
+  private static final int INITIAL_CAPACITY = 16;
+
+  private record Entry(byte[] bytes, String value, int hash, Entry next) {}
+
+  private volatile AtomicReferenceArray<Entry> buckets =
+      new AtomicReferenceArray<>(INITIAL_CAPACITY);
+  private int size = 0;
+
+  /**
+   * Look up the string whose UTF-8 bytes are a slice of a buffer.
+   *
+   * @param buffer the buffer holding the bytes
+   * @param start the index of the first byte
+   * @param end the index after the last byte
+   * @return the interned string or null if the string isn't in the table
+   */
+  public String get(ByteBuffer buffer, int start, int end) {
+    int hash = hash(buffer, start, end);
+    AtomicReferenceArray<Entry> table = buckets;
+    for (Entry e = table.get(hash & (table.length() - 1)); e != null; e = e.next) {
+      if (e.hash == hash && matches(e.bytes, buffer, start, end)) {
+        return e.value;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Add a string to the table.
+   *
+   * @param value the string to add
+   * @return the interned string, which is the one already in the table if any
+   */
+  public synchronized String intern(String value) {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    String existing = get(ByteBuffer.wrap(bytes), 0, bytes.length);
+    if (existing != null) {
+      return existing;
+    }
+    if (size + 1 > buckets.length() * 3 / 4) {
+      resize();
+    }
+    int hash = hash(ByteBuffer.wrap(bytes), 0, bytes.length);
+    int index = hash & (buckets.length() - 1);
+    buckets.set(index, new Entry(bytes, value, hash, buckets.get(index)));
+    size++;
+    return value;
+  }
+
+  /**
+   * Remove a string from the table.
+   *
+   * @param value the string to remove
+   */
+  public synchronized void remove(String value) {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    int hash = hash(ByteBuffer.wrap(bytes), 0, bytes.length);
+    int index = hash & (buckets.length() - 1);
+    Entry head = buckets.get(index);
+    Entry rebuilt = null;
+    boolean found = false;
+    for (Entry e = head; e != null; e = e.next) {
+      if (!found && e.value.equals(value)) {
+        found = true;
+      } else {
+        rebuilt = new Entry(e.bytes, e.value, e.hash, rebuilt);
+      }
+    }
+    if (found) {
+      buckets.set(index, rebuilt);
+      size--;
+    }
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+
+  private void resize() {
+    AtomicReferenceArray<Entry> old = buckets;
+    AtomicReferenceArray<Entry> table = new AtomicReferenceArray<>(old.length() * 2);
+    for (int i = 0; i < old.length(); ++i) {
+      for (Entry e = old.get(i); e != null; e = e.next) {
+        int index = e.hash & (table.length() - 1);
+        table.set(index, new Entry(e.bytes, e.value, e.hash, table.get(index)));
+      }
+    }
+    buckets = table;
+  }
+
+  /** FNV-1a hash of a slice of bytes. */
+  private static int hash(ByteBuffer buffer, int start, int end) {
+    int hash = 0x811C9DC5;
+    for (int i = start; i < end; ++i) {
+      hash ^= buffer.get(i) & 0xFF;
+      hash *= 0x01000193;
+    }
+    return hash;
+  }
+
+  private static boolean matches(byte[] bytes, ByteBuffer buffer, int start, int end) {
+    if (bytes.length != end - start) {
+      return false;
+    }
+    for (int i = 0; i < bytes.length; ++i) {
+      if (bytes[i] != buffer.get(start + i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
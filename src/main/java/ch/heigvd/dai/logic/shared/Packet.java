@@ -0,0 +1,132 @@
+package ch.heigvd.dai.logic.shared;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A datagram received from or sent to the network. Packets are backed by a direct buffer and are
+ * recycled through a {@link PacketPool}, so they must be released once handled.
+ */
+public class Packet {
+  public final ByteBuffer buffer;
+  private final PacketPool pool;
+  private InetSocketAddress remote;
+  private CharsetEncoder encoder;
+
+  Packet(PacketPool pool, int bufferSize) {
+    this.pool = pool;
+    this.buffer = ByteBuffer.allocateDirect(bufferSize);
+  }
+
+  /**
+   * Receive a datagram from a non-blocking channel into this packet.
+   *
+   * @param channel the channel to receive from
+   * @return true if a datagram was received, false if no datagram was available
+   * @throws IOException if an error occurs while receiving
+   */
+  public boolean receive(DatagramChannel channel) throws IOException {
+    buffer.clear();
+    remote = (InetSocketAddress) channel.receive(buffer);
+    buffer.flip();
+    return remote != null;
+  }
+
+  /**
+   * Clear this packet to write a frame to send.
+   *
+   * @param target the address to send the packet to
+   */
+  public void prepare(InetSocketAddress target) {
+    buffer.clear();
+    remote = target;
+  }
+
+  /**
+   * Encode a text message into this packet. Plain ASCII messages are copied without allocating,
+   * other messages go through a UTF-8 encoder kept with the packet.
+   *
+   * @param message the message to encode
+   * @param target the address to send the packet to
+   * @return true if the whole message fits in the packet, false if it was truncated
+   */
+  public boolean encode(CharSequence message, InetSocketAddress target) {
+    prepare(target);
+    int length = message.length();
+    for (int i = 0; i < length; ++i) {
+      char c = message.charAt(i);
+      if (c >= 0x80) {
+        return encodeUtf8(message, i);
+      }
+      if (!buffer.hasRemaining()) {
+        buffer.flip();
+        return false;
+      }
+      buffer.put((byte) c);
+    }
+    buffer.flip();
+    return true;
+  }
+
+  private boolean encodeUtf8(CharSequence message, int from) {
+    if (encoder == null) {
+      encoder = StandardCharsets.UTF_8.newEncoder();
+    }
+    encoder.reset();
+    CoderResult result =
+        encoder.encode(CharBuffer.wrap(message, from, message.length()), buffer, true);
+    buffer.flip();
+    return !result.isOverflow();
+  }
+
+  /**
+   * Send this packet to its target.
+   *
+   * @param channel the channel to send through
+   * @throws IOException if an error occurs while sending
+   */
+  public void send(DatagramChannel channel) throws IOException {
+    channel.send(buffer, remote);
+  }
+
+  /**
+   * Get the remote address of the packet: the sender of a received packet or the target of a packet
+   * to send.
+   *
+   * @return the remote address
+   */
+  public InetSocketAddress getRemote() {
+    return remote;
+  }
+
+  public InetAddress getAddress() {
+    return remote.getAddress();
+  }
+
+  public int getPort() {
+    return remote.getPort();
+  }
+
+  /**
+   * Decode the packet as a text message.
+   *
+   * @return the decoded message
+   */
+  public Message toMessage() {
+    String str = StandardCharsets.UTF_8.decode(buffer.duplicate()).toString();
+    return new Message(str, remote.getAddress(), remote.getPort());
+  }
+
+  /** Give the packet back to its pool. The packet must not be used afterwards. */
+  public void release() {
+    remote = null;
+    pool.release(this);
+  }
+}
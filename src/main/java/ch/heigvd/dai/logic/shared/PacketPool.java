@@ -0,0 +1,41 @@
+package ch.heigvd.dai.logic.shared;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Pool of reusable packets. The pool is preallocated so that receiving a datagram doesn't allocate
+ * any buffer. If the pool runs dry, a new packet is allocated and kept if there is room for it when
+ * released.
+ */
+public class PacketPool {
+  private final ArrayBlockingQueue<Packet> free;
+  private final int bufferSize;
+
+  /**
+   * Create a new packet pool.
+   *
+   * @param size the number of packets to preallocate
+   * @param bufferSize the size of the buffer of each packet
+   */
+  public PacketPool(int size, int bufferSize) {
+    this.free = new ArrayBlockingQueue<>(size);
+    this.bufferSize = bufferSize;
+    for (int i = 0; i < size; ++i) {
+      free.add(new Packet(this, bufferSize));
+    }
+  }
+
+  /**
+   * Take a packet from the pool.
+   *
+   * @return a free packet
+   */
+  public Packet acquire() {
+    Packet packet = free.poll();
+    return packet != null ? packet : new Packet(this, bufferSize);
+  }
+
+  void release(Packet packet) {
+    free.offer(packet);
+  }
+}
@@ -0,0 +1,154 @@
+package ch.heigvd.dai.logic.shared;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Cursor-based tokenizer for text messages. It reads the space-separated tokens of a message
+ * straight from its buffer: commands are matched against their names as bytes, integers are parsed
+ * in place and known usernames are found in an {@link InternTable}, so the common messages are
+ * parsed without allocating. A tokenizer is reused for every message but isn't thread-safe.
+ */
+public class Tokenizer {
+  private ByteBuffer buffer;
+  private int position;
+  private int limit;
+  private int tokenStart;
+  private int tokenEnd;
+
+  /**
+   * Start tokenizing a new message. The position of the buffer isn't modified.
+   *
+   * @param buffer the buffer holding the message, from its position to its limit
+   * @return this tokenizer
+   */
+  public Tokenizer reset(ByteBuffer buffer) {
+    this.buffer = buffer;
+    this.position = buffer.position();
+    this.limit = buffer.limit();
+    this.tokenStart = position;
+    this.tokenEnd = position;
+    return this;
+  }
+
+  /**
+   * Move to the next token.
+   *
+   * @return true if there is a token, false if the end of the message was reached
+   */
+  public boolean next() {
+    while (position < limit && isSeparator(buffer.get(position))) {
+      position++;
+    }
+    if (position == limit) {
+      tokenStart = tokenEnd = limit;
+      return false;
+    }
+    tokenStart = position;
+    while (position < limit && !isSeparator(buffer.get(position))) {
+      position++;
+    }
+    tokenEnd = position;
+    return true;
+  }
+
+  /**
+   * Count the tokens left after the current one, without moving.
+   *
+   * @return the number of tokens left
+   */
+  public int countRemaining() {
+    int count = 0;
+    boolean inToken = false;
+    for (int i = position; i < limit; ++i) {
+      boolean separator = isSeparator(buffer.get(i));
+      if (!separator && !inToken) {
+        count++;
+      }
+      inToken = !separator;
+    }
+    return count;
+  }
+
+  /**
+   * Check if the current token is equal to the given bytes.
+   *
+   * @param bytes the ASCII bytes to compare to
+   * @return true if the token is equal to the bytes
+   */
+  public boolean tokenEquals(byte[] bytes) {
+    if (bytes.length != tokenEnd - tokenStart) {
+      return false;
+    }
+    for (int i = 0; i < bytes.length; ++i) {
+      if (bytes[i] != buffer.get(tokenStart + i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Parse the current token as a positive integer.
+   *
+   * @return the integer or -1 if the token is not a valid positive integer
+   */
+  public int tokenInt() {
+    if (tokenStart == tokenEnd || tokenEnd - tokenStart > 9) {
+      return -1;
+    }
+    int value = 0;
+    for (int i = tokenStart; i < tokenEnd; ++i) {
+      int digit = buffer.get(i) - '0';
+      if (digit < 0 || digit > 9) {
+        return -1;
+      }
+      value = value * 10 + digit;
+    }
+    return value;
+  }
+
+  /**
+   * Look up the current token in an intern table.
+   *
+   * @param table the table to look into
+   * @return the interned string or null if the token isn't in the table
+   */
+  public String tokenInterned(InternTable table) {
+    return table.get(buffer, tokenStart, tokenEnd);
+  }
+
+  /**
+   * Decode the current token. This allocates a new string.
+   *
+   * @return the current token
+   */
+  public String tokenString() {
+    return decode(tokenStart, tokenEnd);
+  }
+
+  /**
+   * Decode the rest of the message, from the start of the next token to the end. This allocates a
+   * new string.
+   *
+   * @return the rest of the message
+   */
+  public String rest() {
+    while (position < limit && isSeparator(buffer.get(position))) {
+      position++;
+    }
+    String rest = decode(position, limit);
+    position = limit;
+    return rest;
+  }
+
+  private String decode(int start, int end) {
+    byte[] bytes = new byte[end - start];
+    buffer.get(start, bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static boolean isSeparator(byte b) {
+    return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+  }
+}
@@ -0,0 +1,201 @@
+package ch.heigvd.dai.commands;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import ch.heigvd.dai.logic.shared.BinaryCodec;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import picocli.CommandLine;
+
+/** Runs a server on other ports than the default ones, and talks to it in binary as clients do. */
+class ServerTest {
+  private static final int PORT = 24445;
+  private static final int MULTICAST_PORT = 24446;
+  private static final String MULTICAST_ADDRESS = "230.0.0.0";
+  private static final int TIMEOUT_MS = 500;
+  private static final int MAX_ATTEMPTS = 20;
+
+  @TempDir Path journals;
+
+  private final List<DatagramSocket> sockets = new ArrayList<>();
+  private Server server;
+  private Thread serverThread;
+
+  @AfterEach
+  void tearDown() throws InterruptedException {
+    for (DatagramSocket socket : sockets) {
+      socket.close();
+    }
+    stopServer();
+  }
+
+  @Test
+  void restoredPlayerFetchesTextAfterRestart() throws Exception {
+    startServer();
+    DatagramSocket alice = newSocket();
+    DatagramSocket bob = newSocket();
+    int aliceId = BinaryCodec.getVarint(join(alice, "alice"));
+    int bobId = BinaryCodec.getVarint(join(bob, "bob"));
+    stopServer();
+
+    startServer();
+    try (MulticastSocket group = joinGroup()) {
+      waitUntilListening();
+      send(alice, BinaryCodec.opcode(Client.Command.USER_READY), aliceId);
+      send(bob, BinaryCodec.opcode(Client.Command.USER_READY), bobId);
+
+      ByteBuffer start = receive(group, BinaryCodec.opcode(Server.Command.START_GAME));
+      BinaryCodec.getVarint(start); // Delay
+      int textId = BinaryCodec.getVarint(start);
+      long hash = start.getLong();
+      int length = BinaryCodec.getVarint(start);
+
+      ByteArrayOutputStream text = new ByteArrayOutputStream();
+      for (int chunk = 0; chunk < BinaryCodec.numTextChunks(length); ++chunk) {
+        send(alice, BinaryCodec.opcode(Client.Command.TEXT_REQUEST), aliceId, textId, chunk);
+        ByteBuffer reply = receive(alice, BinaryCodec.opcode(Server.Command.TEXT_CHUNK));
+        assertEquals(textId, BinaryCodec.getVarint(reply));
+        assertEquals(chunk, BinaryCodec.getVarint(reply));
+        text.write(reply.array(), reply.position(), reply.remaining());
+      }
+      assertEquals(length, text.size());
+      assertEquals(hash, BinaryCodec.textHash(text.toByteArray()));
+    }
+  }
+
+  @Test
+  void dropsFramesFromOtherAddresses() throws Exception {
+    startServer();
+    DatagramSocket alice = newSocket();
+    int aliceId = BinaryCodec.getVarint(join(alice, "alice"));
+    DatagramSocket forger = newSocket();
+    send(forger, BinaryCodec.opcode(Client.Command.USER_QUIT), aliceId);
+
+    // The room handles the join after the quit, so alice would already be gone
+    ByteBuffer reply = join(newSocket(), "bob");
+    BinaryCodec.getVarint(reply);
+    assertEquals(1, BinaryCodec.getVarint(reply));
+    assertEquals(aliceId, BinaryCodec.getVarint(reply));
+    assertThrows(
+        SocketTimeoutException.class, () -> forger.receive(new DatagramPacket(new byte[64], 64)));
+  }
+
+  /** Start a server journaling its rooms, restoring them if they were journaled before. */
+  private void startServer() {
+    server = new Server();
+    new CommandLine(server)
+        .parseArgs(
+            "-p", String.valueOf(PORT),
+            "-pm", String.valueOf(MULTICAST_PORT),
+            "-M", MULTICAST_ADDRESS,
+            "--stats-port", "0",
+            "--journal", journals.toString());
+    serverThread = Thread.ofPlatform().name("test-server").start(server::call);
+  }
+
+  private void stopServer() throws InterruptedException {
+    if (serverThread == null) {
+      return;
+    }
+    // The server may still be starting, and only stops once it listens
+    while (serverThread.isAlive()) {
+      server.stop();
+      serverThread.join(100);
+    }
+    serverThread = null;
+  }
+
+  /**
+   * Wait until the server answers, with a message that changes nothing: a join with an invalid
+   * username.
+   */
+  private void waitUntilListening() throws IOException {
+    DatagramSocket socket = newSocket();
+    byte[] request = "USER_JOIN -".getBytes(StandardCharsets.US_ASCII);
+    for (int attempt = 1; ; ++attempt) {
+      socket.send(
+          new DatagramPacket(request, request.length, InetAddress.getLoopbackAddress(), PORT));
+      try {
+        socket.receive(new DatagramPacket(new byte[1024], 1024));
+        return;
+      } catch (SocketTimeoutException e) {
+        if (attempt == MAX_ATTEMPTS) throw e;
+      }
+    }
+  }
+
+  private DatagramSocket newSocket() throws IOException {
+    DatagramSocket socket = new DatagramSocket();
+    socket.setSoTimeout(TIMEOUT_MS);
+    sockets.add(socket);
+    return socket;
+  }
+
+  private MulticastSocket joinGroup() throws IOException {
+    MulticastSocket socket = new MulticastSocket(MULTICAST_PORT);
+    socket.joinGroup(
+        new InetSocketAddress(InetAddress.getByName(MULTICAST_ADDRESS), MULTICAST_PORT), null);
+    socket.setSoTimeout(TIMEOUT_MS * MAX_ATTEMPTS);
+    return socket;
+  }
+
+  /**
+   * Join the first room with the binary protocol, once the server listens.
+   *
+   * @return the OK reply, positioned at the ID of the player
+   */
+  private ByteBuffer join(DatagramSocket socket, String username) throws IOException {
+    waitUntilListening();
+    byte[] request =
+        ("USER_JOIN " + username + " 0 " + BinaryCodec.BINARY_VERSION)
+            .getBytes(StandardCharsets.US_ASCII);
+    socket.send(
+        new DatagramPacket(request, request.length, InetAddress.getLoopbackAddress(), PORT));
+    ByteBuffer reply = receive(socket, BinaryCodec.opcode(Server.Command.OK));
+    assertEquals(BinaryCodec.BINARY_VERSION, reply.get());
+    return reply;
+  }
+
+  /** Send a binary frame made of an opcode and varints. */
+  private static void send(DatagramSocket socket, byte opcode, int... varints) throws IOException {
+    ByteBuffer frame = ByteBuffer.allocate(1 + varints.length * 5);
+    frame.put(opcode);
+    for (int varint : varints) {
+      BinaryCodec.putVarint(frame, varint);
+    }
+    socket.send(
+        new DatagramPacket(
+            frame.array(), frame.position(), InetAddress.getLoopbackAddress(), PORT));
+  }
+
+  /**
+   * Receive datagrams until a binary frame with an opcode arrives.
+   *
+   * @return the frame, positioned after the opcode
+   */
+  private static ByteBuffer receive(DatagramSocket socket, byte opcode) throws IOException {
+    DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+    while (true) {
+      socket.receive(packet);
+      if (packet.getLength() > 0 && packet.getData()[0] == opcode) {
+        return ByteBuffer.wrap(Arrays.copyOf(packet.getData(), packet.getLength())).position(1);
+      }
+    }
+  }
+}